@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the JMH command line options, writing the results
+ * as JSON to "target/jmh-result.json" unless a result format or file is
+ * given with -rf or -rff.
+ *
+ * <p>For example, to run only the 10,000 file redeploys with the git
+ * executable:</p>
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar Redeploy -p files=10000 -p configuration=gitexe-checkout
+ * </pre>
+ *
+ * @author Kathryn Huxtable
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Run the benchmarks.
+     *
+     * @param  args the JMH command line options.
+     *
+     * @throws Exception if the options are invalid or a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+
+        if (options.shouldList()) {
+            new Runner(options).list();
+            return;
+        }
+
+        OptionsBuilder builder = new OptionsBuilder();
+
+        builder.parent(options);
+
+        if (!options.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+
+        if (!options.getResult().hasValue()) {
+            builder.result("target/jmh-result.json");
+        }
+
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmBranch;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteCheckInCommand;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSitePushCommand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the check-in command committing a file set, and the push of the
+ * commit to a bare repository.
+ *
+ * <p>Each invocation commits every file of the site to a new working
+ * directory and pushes it to a new bare repository.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CheckInBenchmark {
+
+    /** The number of files in the file set. */
+    @Param({ "1000", "100000" })
+    public int files;
+
+    /** The working directory of the benchmark. */
+    private File directory;
+
+    /** The site, which is the working directory of the check-in. */
+    private SyntheticSite site;
+
+    /** The bare repository. */
+    private File bare;
+
+    /** The files of the file set, relative to the site. */
+    private List<File> fileSet;
+
+    /**
+     * Generate the site.
+     *
+     * @throws IOException if the site cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void generateSite() throws IOException {
+        directory = File.createTempFile("gitsite-benchmark", "");
+        directory.delete();
+
+        site    = new SyntheticSite(new File(directory, "site"), files, 1L);
+        bare    = new File(directory, "site.git");
+        fileSet = new ArrayList<File>(files);
+
+        site.generate();
+
+        for (int i = 0; i < files; i++) {
+            fileSet.add(new File(site.getPath(i)));
+        }
+    }
+
+    /**
+     * Create an empty bare repository, and make the site a new working
+     * directory pushing to it.
+     *
+     * @throws IOException if git fails.
+     */
+    @Setup(Level.Invocation)
+    public void createRepositories() throws IOException {
+        FileUtils.deleteDirectory(bare);
+        FileUtils.deleteDirectory(new File(site.getDirectory(), ".git"));
+
+        bare.mkdirs();
+
+        git(bare, "init", "--bare", "--quiet");
+        git(site.getDirectory(), "init", "--quiet");
+
+        // A background "gc --auto" would be timed, and race the next invocation's delete.
+        git(bare, "config", "gc.auto", "0");
+        git(site.getDirectory(), "config", "gc.auto", "0");
+        git(site.getDirectory(), "config", "user.name", "benchmark");
+        git(site.getDirectory(), "config", "user.email", "benchmark@localhost");
+        git(site.getDirectory(), "remote", "add", "origin", bare.getPath());
+    }
+
+    /**
+     * Commit the file set and push it to the site branch.
+     *
+     * @throws ScmException if the commit or push fails.
+     */
+    @Benchmark
+    public void checkIn() throws ScmException {
+        GitScmProviderRepository repository = new GitScmProviderRepository(bare.toURI().toString());
+        CommandParameters        parameters = new CommandParameters();
+
+        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(DeployFixture.SITE_BRANCH));
+        parameters.setString(CommandParameter.MESSAGE, "Deploy " + files + " files");
+
+        GitSiteCheckInCommand checkIn = new GitSiteCheckInCommand();
+
+        checkIn.setLogger(new DeployFixture.QuietLog());
+
+        checkSuccess(checkIn.execute(repository, new ScmFileSet(site.getDirectory(), fileSet), parameters));
+
+        GitSitePushCommand push = new GitSitePushCommand();
+
+        push.setLogger(new DeployFixture.QuietLog());
+
+        checkSuccess(push.execute(repository, new ScmFileSet(site.getDirectory()), parameters));
+    }
+
+    /**
+     * Delete the site and repository.
+     *
+     * @throws IOException if they cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Fail unless a command succeeded.
+     *
+     * @param  result the command's result.
+     *
+     * @throws ScmException if the command failed.
+     */
+    private void checkSuccess(ScmResult result) throws ScmException {
+        if (!result.isSuccess()) {
+            throw new ScmException(result.getProviderMessage() + " " + result.getCommandOutput());
+        }
+    }
+
+    /**
+     * Run git.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  args             the git arguments.
+     *
+     * @throws IOException if git cannot be run or fails.
+     */
+    private void git(File workingDirectory, String... args) throws IOException {
+        Commandline cl = new Commandline("git");
+
+        cl.setWorkingDirectory(workingDirectory.getPath());
+        cl.addArguments(args);
+
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        try {
+            if (CommandLineUtils.executeCommandLine(cl, new CommandLineUtils.StringStreamConsumer(), stderr) != 0) {
+                throw new IOException("git " + args[0] + " failed: " + stderr.getOutput());
+            }
+        } catch (CommandLineException e) {
+            throw new IOException("Unable to run git " + args[0] + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Collections;
+import java.util.Random;
+
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.manager.AbstractScmManager;
+import org.apache.maven.scm.manager.ScmManager;
+import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.wagon.repository.Repository;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteDeployMetrics;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteWagon;
+import org.kathrynhuxtable.maven.wagon.gitsite.memory.InMemorySiteBackend;
+
+/**
+ * A bare repository with a site branch, and a wagon deploying to it.
+ *
+ * @author Kathryn Huxtable
+ */
+public class DeployFixture {
+
+    /** The site branch. */
+    public static final String SITE_BRANCH = "gh-pages";
+
+    /** The fetch of only the tip of the site branch. */
+    public static final String FETCH_SHALLOW = "shallow";
+
+    /** The fetch of the commits and trees, with blobs fetched on demand. */
+    public static final String FETCH_PARTIAL = "partial";
+
+    /** The repository directory. */
+    private File repository;
+
+    /** The backend of the wagon. */
+    private String backend;
+
+    /** The deploy mode of the wagon. */
+    private String deployMode;
+
+    /** Whether the wagon fetches only the tip of the site branch. */
+    private boolean shallow;
+
+    /** Whether the wagon fetches blobs on demand. */
+    private boolean partialClone;
+
+    /** The SCM manager, logging nothing so as not to time the console. */
+    private ScmManager scmManager;
+
+    /**
+     * Create a new DeployFixture object.
+     *
+     * @param repository the repository directory.
+     * @param backend    the backend of the wagon.
+     * @param deployMode the deploy mode of the wagon.
+     */
+    public DeployFixture(File repository, String backend, String deployMode) {
+        this.repository = repository;
+        this.backend    = backend;
+        this.deployMode = deployMode;
+
+        AbstractScmManager manager = new AbstractScmManager() {
+            protected ScmLogger getScmLogger() {
+                return new QuietLog();
+            }
+        };
+
+        manager.setScmProvider("git", new GitExeScmProvider());
+
+        scmManager = manager;
+    }
+
+    /**
+     * Create a fixture for a wagon configuration.
+     *
+     * @param  repository    the repository directory.
+     * @param  configuration the backend, optionally followed by "-" and the
+     *                       deploy mode, and then by "-" and
+     *                       {@link #FETCH_SHALLOW} or {@link #FETCH_PARTIAL},
+     *                       e.g. "gitexe-objects" or
+     *                       "gitexe-checkout-partial".
+     *
+     * @return the fixture.
+     */
+    public static DeployFixture create(File repository, String configuration) {
+        String[] parts = configuration.split("-");
+
+        if (parts.length == 1) {
+            return new DeployFixture(repository, configuration, GitSiteWagon.DEPLOY_MODE_CHECKOUT);
+        }
+
+        DeployFixture fixture = new DeployFixture(repository, parts[0], parts[1]);
+
+        if (parts.length > 2) {
+            if (FETCH_SHALLOW.equals(parts[2])) {
+                fixture.setShallow(true);
+            } else if (FETCH_PARTIAL.equals(parts[2])) {
+                fixture.setPartialClone(true);
+            } else {
+                throw new IllegalArgumentException("Unknown fetch \"" + parts[2] + "\" in " + configuration);
+            }
+        }
+
+        return fixture;
+    }
+
+    /**
+     * Set whether the wagon fetches only the tip of the site branch.
+     *
+     * @param shallow {@code true} for a shallow fetch.
+     */
+    public void setShallow(boolean shallow) {
+        this.shallow = shallow;
+    }
+
+    /**
+     * Set whether the wagon fetches blobs on demand.
+     *
+     * @param partialClone {@code true} for a partial clone.
+     */
+    public void setPartialClone(boolean partialClone) {
+        this.partialClone = partialClone;
+    }
+
+    /**
+     * Create the bare repository, with a site branch holding an empty commit.
+     *
+     * @throws IOException if git fails.
+     */
+    public void createRepository() throws IOException {
+        delete();
+
+        repository.mkdirs();
+
+        git("init", "--bare", "--quiet");
+
+        // A partial clone over a file URL is served in full unless filters are allowed.
+        git("config", "uploadpack.allowFilter", "true");
+
+        // Write the empty tree, which git otherwise only knows virtually.
+        String tree   = git("mktree").trim();
+        String commit = git("-c", "user.name=benchmark", "-c", "user.email=benchmark@localhost", "commit-tree", tree, "-m",
+                            "Empty site").trim();
+
+        git("update-ref", "refs/heads/" + SITE_BRANCH, commit);
+
+        InMemorySiteBackend.setBranch(getFetchUrl(), SITE_BRANCH, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Add the history of earlier deploys to the site branch, as if the site
+     * had been deployed many times with a percentage of its files changed
+     * each time. The commits are written with "git fast-import", so that
+     * thousands of them take seconds.
+     *
+     * @param  site    the site deployed.
+     * @param  commits the number of commits to add.
+     * @param  percent the percentage of the files each commit changes.
+     *
+     * @throws IOException if git fails.
+     */
+    public void addHistory(SyntheticSite site, int commits, double percent) throws IOException {
+        File stream = new File(repository, "history.fast-import");
+        int  count  = (int) Math.ceil(site.getFiles() * percent / 100);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(stream));
+
+        try {
+            for (int commit = 1; commit <= commits; commit++) {
+                Random random  = new Random(commit);
+                byte[] message = ("Wagon: Deploying site, round " + commit + "\n").getBytes("UTF-8");
+
+                out.write(("commit refs/heads/" + SITE_BRANCH + "\n").getBytes("UTF-8"));
+                out.write(("committer benchmark <benchmark@localhost> " + (1262304000L + commit * 3600L) + " +0000\n").getBytes("UTF-8"));
+                out.write(("data " + message.length + "\n").getBytes("UTF-8"));
+                out.write(message);
+
+                if (commit == 1) {
+                    out.write(("from refs/heads/" + SITE_BRANCH + "^0\n").getBytes("UTF-8"));
+                }
+
+                for (int n = 0; n < count; n++) {
+                    int index = random.nextInt(site.getFiles());
+
+                    // Rounds of their own, so that the benchmark's changes write new contents.
+                    byte[] content = site.getContent(index, -commit);
+
+                    out.write(("M 100644 inline " + site.getPath(index) + "\n").getBytes("UTF-8"));
+                    out.write(("data " + content.length + "\n").getBytes("UTF-8"));
+                    out.write(content);
+                    out.write('\n');
+                }
+
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        try {
+            git(stream, "fast-import", "--quiet");
+        } finally {
+            stream.delete();
+        }
+    }
+
+    /**
+     * Deploy a site to the root of the site branch, in one connection.
+     *
+     * @param  site the site directory.
+     *
+     * @return the metrics of the deploy.
+     *
+     * @throws Exception if the deploy fails.
+     */
+    public GitSiteDeployMetrics deploy(File site) throws Exception {
+        GitSiteWagon wagon = new GitSiteWagon();
+
+        wagon.setScmManager(scmManager);
+        wagon.setSiteBranch(SITE_BRANCH);
+        wagon.setBackend(backend);
+        wagon.setDeployMode(deployMode);
+        wagon.setShallow(shallow);
+        wagon.setPartialClone(partialClone);
+
+        wagon.connect(new Repository("site", "scm:git:" + getFetchUrl()));
+
+        try {
+            wagon.putDirectory(site, ".");
+        } finally {
+            wagon.disconnect();
+        }
+
+        return wagon.getMetrics();
+    }
+
+    /**
+     * Delete the repository.
+     *
+     * @throws IOException if it cannot be deleted.
+     */
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(repository);
+    }
+
+    /**
+     * Get the URL of the repository.
+     *
+     * @return the file URL.
+     */
+    private String getFetchUrl() {
+        return "file://" + repository.getAbsolutePath().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Run git in the repository.
+     *
+     * @param  args the git arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws IOException if git cannot be run or fails.
+     */
+    private String git(String... args) throws IOException {
+        return git(null, args);
+    }
+
+    /**
+     * Run git in the repository, reading its standard input from a file.
+     *
+     * @param  input the standard input, or {@code null} for none.
+     * @param  args  the git arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws IOException if git cannot be run or fails.
+     */
+    private String git(File input, String... args) throws IOException {
+        String[] command = new String[args.length + 1];
+
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+
+        ProcessBuilder builder = new ProcessBuilder(command).directory(repository).redirectErrorStream(true);
+
+        if (input != null) {
+            builder.redirectInput(input);
+        }
+
+        Process process = builder.start();
+
+        if (input == null) {
+            process.getOutputStream().close();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream           in     = process.getInputStream();
+        byte[]                buffer = new byte[4096];
+
+        for (int n; (n = in.read(buffer)) > 0;) {
+            output.write(buffer, 0, n);
+        }
+
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("git " + args[0] + " failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted running git " + args[0]);
+        }
+
+        return output.toString();
+    }
+
+    /**
+     * A logger logging nothing but errors.
+     */
+    static class QuietLog implements ScmLogger {
+
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        public void debug(String content) {
+        }
+
+        public void debug(String content, Throwable error) {
+        }
+
+        public void debug(Throwable error) {
+        }
+
+        public boolean isInfoEnabled() {
+            return false;
+        }
+
+        public void info(String content) {
+        }
+
+        public void info(String content, Throwable error) {
+        }
+
+        public void info(Throwable error) {
+        }
+
+        public boolean isWarnEnabled() {
+            return false;
+        }
+
+        public void warn(String content) {
+        }
+
+        public void warn(String content, Throwable error) {
+        }
+
+        public void warn(Throwable error) {
+        }
+
+        public boolean isErrorEnabled() {
+            return true;
+        }
+
+        public void error(String content) {
+            System.err.println("[ERROR] " + content);
+        }
+
+        public void error(String content, Throwable error) {
+            System.err.println("[ERROR] " + content);
+            error.printStackTrace();
+        }
+
+        public void error(Throwable error) {
+            error.printStackTrace();
+        }
+    }
+}
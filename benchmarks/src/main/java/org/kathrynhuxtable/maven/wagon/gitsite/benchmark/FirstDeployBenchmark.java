@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the first deploy of a site to an empty site branch.
+ *
+ * <p>Each invocation deploys the whole site to a new repository.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FirstDeployBenchmark {
+
+    /** The number of files in the site. */
+    @Param({ "100", "1000", "10000", "200000" })
+    public int files;
+
+    /** The backend and deploy mode of the wagon. */
+    @Param({ "gitexe-checkout", "gitexe-objects", "jgit", "memory" })
+    public String configuration;
+
+    /** The working directory of the benchmark. */
+    private File directory;
+
+    /** The site. */
+    private SyntheticSite site;
+
+    /** The repository and wagon. */
+    private DeployFixture fixture;
+
+    /**
+     * Generate the site.
+     *
+     * @throws IOException if the site cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void generateSite() throws IOException {
+        directory = File.createTempFile("gitsite-benchmark", "");
+        directory.delete();
+
+        site    = new SyntheticSite(new File(directory, "site"), files, 1L);
+        fixture = DeployFixture.create(new File(directory, "repository"), configuration);
+
+        site.generate();
+    }
+
+    /**
+     * Create an empty repository.
+     *
+     * @throws IOException if the repository cannot be created.
+     */
+    @Setup(Level.Invocation)
+    public void createRepository() throws IOException {
+        fixture.createRepository();
+    }
+
+    /**
+     * Deploy the site.
+     *
+     * @throws Exception if the deploy fails.
+     */
+    @Benchmark
+    public void firstDeploy() throws Exception {
+        fixture.deploy(site.getDirectory());
+    }
+
+    /**
+     * Delete the site and repository.
+     *
+     * @throws IOException if they cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the redeploy of a site whose site branch has a long history of
+ * earlier deploys, fetching the whole history, only the tip, or the commits
+ * and trees without the blobs.
+ *
+ * <p>The history is written once per trial, each commit changing 1% of the
+ * files, and the site is deployed on top of it. Before each invocation 1% of
+ * the files is rewritten. A full fetch grows with the history; a shallow
+ * fetch and a partial clone should not.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryRedeployBenchmark {
+
+    /** The percentage of files changed by each deploy, past and benchmarked. */
+    private static final double CHANGED_PERCENT = 1;
+
+    /** The number of files in the site. */
+    @Param({ "1000", "10000" })
+    public int files;
+
+    /** The number of earlier deploys in the site branch. */
+    @Param({ "1000", "5000" })
+    public int history;
+
+    /** The backend, deploy mode and fetch of the wagon. */
+    @Param({
+        "gitexe-checkout", "gitexe-checkout-shallow", "gitexe-checkout-partial", "gitexe-objects", "gitexe-objects-shallow",
+        "gitexe-objects-partial"
+    })
+    public String configuration;
+
+    /** The working directory of the benchmark. */
+    private File directory;
+
+    /** The site. */
+    private SyntheticSite site;
+
+    /** The repository and wagon. */
+    private DeployFixture fixture;
+
+    /** The number of changes made to the site. */
+    private int round;
+
+    /**
+     * Generate the site and the history of the site branch, and deploy the
+     * site.
+     *
+     * @throws Exception if the site cannot be written or deployed.
+     */
+    @Setup(Level.Trial)
+    public void deploySite() throws Exception {
+        directory = File.createTempFile("gitsite-benchmark", "");
+        directory.delete();
+
+        site    = new SyntheticSite(new File(directory, "site"), files, 1L);
+        fixture = DeployFixture.create(new File(directory, "repository"), configuration);
+
+        site.generate();
+        fixture.createRepository();
+        fixture.addHistory(site, history, CHANGED_PERCENT);
+        fixture.deploy(site.getDirectory());
+    }
+
+    /**
+     * Change the site.
+     *
+     * @throws IOException if the site cannot be written.
+     */
+    @Setup(Level.Invocation)
+    public void changeSite() throws IOException {
+        site.change(CHANGED_PERCENT, ++round);
+    }
+
+    /**
+     * Redeploy the site.
+     *
+     * @throws Exception if the deploy fails.
+     */
+    @Benchmark
+    public void redeploy() throws Exception {
+        fixture.deploy(site.getDirectory());
+    }
+
+    /**
+     * Delete the site and repository.
+     *
+     * @throws IOException if they cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+}
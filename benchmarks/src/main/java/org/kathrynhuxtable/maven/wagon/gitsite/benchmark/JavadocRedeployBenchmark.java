@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteDeployMetrics;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the redeploy of regenerated documentation, and count the bytes of the
+ * pack pushed against the bytes of the files changed.
+ *
+ * <p>The site is deployed once per trial. Before each invocation it is
+ * regenerated: every page gets a new generation stamp, and the given
+ * percentage of the pages a changed paragraph. The changed files are nearly
+ * all of the pages; the thin pack pushed holds deltas against the previous
+ * deploy's blobs wherever git finds a base for them.</p>
+ *
+ * <p>The "changedBytes" and "pushedBytes" secondary results are the totals
+ * per iteration. The JGit backend does not tell the size of its pack, so its
+ * "pushedBytes" are zero.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JavadocRedeployBenchmark {
+
+    /** The number of files in the site. */
+    @Param({ "1000", "10000" })
+    public int files;
+
+    /** The percentage of pages with a changed paragraph. */
+    @Param({ "1", "10" })
+    public double changedPercent;
+
+    /** The backend and deploy mode of the wagon. */
+    @Param({ "gitexe-checkout", "gitexe-objects", "jgit" })
+    public String configuration;
+
+    /** The working directory of the benchmark. */
+    private File directory;
+
+    /** The site. */
+    private SyntheticSite site;
+
+    /** The repository and wagon. */
+    private DeployFixture fixture;
+
+    /** The number of regenerations of the site. */
+    private int round;
+
+    /**
+     * Generate the site and deploy it.
+     *
+     * @throws Exception if the site cannot be written or deployed.
+     */
+    @Setup(Level.Trial)
+    public void deploySite() throws Exception {
+        directory = File.createTempFile("gitsite-benchmark", "");
+        directory.delete();
+
+        site    = new SyntheticSite(new File(directory, "site"), files, 1L);
+        fixture = DeployFixture.create(new File(directory, "repository"), configuration);
+
+        site.generate();
+        fixture.createRepository();
+        fixture.deploy(site.getDirectory());
+    }
+
+    /**
+     * Regenerate the site.
+     *
+     * @throws IOException if the site cannot be written.
+     */
+    @Setup(Level.Invocation)
+    public void regenerateSite() throws IOException {
+        site.regenerate(changedPercent, ++round);
+    }
+
+    /**
+     * Redeploy the site.
+     *
+     * @param  counters the byte counts of the iteration.
+     *
+     * @throws Exception if the deploy fails.
+     */
+    @Benchmark
+    public void redeploy(PushCounters counters) throws Exception {
+        GitSiteDeployMetrics metrics = fixture.deploy(site.getDirectory());
+
+        counters.changedBytes += metrics.getPhase(GitSiteDeployMetrics.PHASE_STAGE).getBytes();
+        counters.pushedBytes  += metrics.getPhase(GitSiteDeployMetrics.PHASE_PUSH).getBytes();
+    }
+
+    /**
+     * Delete the site and repository.
+     *
+     * @throws IOException if they cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * The bytes of the files changed and of the packs pushed, reported as
+     * secondary results.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class PushCounters {
+
+        /** The bytes of the files changed. */
+        public long changedBytes;
+
+        /** The compressed bytes pushed. */
+        public long pushedBytes;
+
+        /**
+         * Reset the counts at the start of an iteration.
+         */
+        @Setup(Level.Iteration)
+        public void reset() {
+            changedBytes = 0;
+            pushedBytes  = 0;
+        }
+    }
+}
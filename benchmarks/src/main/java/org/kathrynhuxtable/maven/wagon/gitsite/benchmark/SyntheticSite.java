@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Random;
+
+/**
+ * A generated site of a given number of files, laid out and sized like
+ * generated documentation.
+ *
+ * <p>Files are spread over a directory tree with {@link #FILES_PER_DIRECTORY}
+ * files and up to ten subdirectories per directory. Most files are small
+ * pages, some are style sheets and scripts, and a few are large images:</p>
+ *
+ * <ul>
+ *   <li>80% ".html", 256 bytes to 4 KB,</li>
+ *   <li>19% ".css" and ".js", 4 KB to 32 KB,</li>
+ *   <li>1% ".png", 32 KB to 512 KB.</li>
+ * </ul>
+ *
+ * <p>The site changes either by rewriting files with new random contents,
+ * with {@link #change(double, int)}, or as regenerated documentation does,
+ * with small edits to every page, with {@link #regenerate(double, int)}.</p>
+ *
+ * <p>The layout and contents depend only on the number of files and the seed,
+ * so runs are comparable.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class SyntheticSite {
+
+    /** The number of files in each directory. */
+    public static final int FILES_PER_DIRECTORY = 50;
+
+    /** The length of a paragraph changed by {@link #regenerate(double, int)}. */
+    private static final int PARAGRAPH_LENGTH = 64;
+
+    /** The characters of the generated text. */
+    private static final byte[] TEXT = "abcdefghijklmnopqrstuvwxyz <>/=\"\n".getBytes();
+
+    /** The site directory. */
+    private File directory;
+
+    /** The number of files. */
+    private int files;
+
+    /** The seed of the layout and contents. */
+    private long seed;
+
+    /**
+     * Create a new SyntheticSite object.
+     *
+     * @param directory the site directory.
+     * @param files     the number of files.
+     * @param seed      the seed of the layout and contents.
+     */
+    public SyntheticSite(File directory, int files, long seed) {
+        this.directory = directory;
+        this.files     = files;
+        this.seed      = seed;
+    }
+
+    /**
+     * Get the site directory.
+     *
+     * @return the site directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of files.
+     *
+     * @return the number of files.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * Write every file of the site.
+     *
+     * @throws IOException if a file cannot be written.
+     */
+    public void generate() throws IOException {
+        for (int i = 0; i < files; i++) {
+            write(i, 0);
+        }
+    }
+
+    /**
+     * Rewrite a percentage of the files with new contents.
+     *
+     * @param  percent the percentage of files to change.
+     * @param  round   the number of the change, so that successive changes
+     *                 pick other files and write other contents.
+     *
+     * @return the number of files changed.
+     *
+     * @throws IOException if a file cannot be written.
+     */
+    public int change(double percent, int round) throws IOException {
+        int    count  = (int) Math.ceil(files * percent / 100);
+        Random random = new Random(seed ^ (round * 0x9E3779B97F4A7C15L));
+
+        for (int n = 0; n < count; n++) {
+            write(random.nextInt(files), round);
+        }
+
+        return count;
+    }
+
+    /**
+     * Regenerate the site as a documentation tool does after a small source
+     * change. Every page is rewritten with a new generation stamp at its top,
+     * and a percentage of the pages also get one changed paragraph; the rest
+     * of each page is its original contents. Style sheets, scripts and images
+     * are left alone.
+     *
+     * @param  percent the percentage of pages with a changed paragraph.
+     * @param  round   the number of the regeneration, so that successive
+     *                 regenerations stamp and change the pages differently.
+     *
+     * @return the number of pages rewritten.
+     *
+     * @throws IOException if a file cannot be written.
+     */
+    public int regenerate(double percent, int round) throws IOException {
+        Random random = new Random(seed ^ (round * 0x9E3779B97F4A7C15L));
+        byte[] stamp  = ("<!-- Generated by javadoc, round " + round + " -->\n").getBytes();
+        int    pages  = 0;
+
+        for (int i = 0; i < files; i++) {
+            if (getKind(i) != 0) {
+                continue;
+            }
+
+            byte[] content = getContent(i, 0);
+
+            if (random.nextDouble() * 100 < percent) {
+                int offset = random.nextInt(content.length - PARAGRAPH_LENGTH);
+
+                for (int j = offset; j < offset + PARAGRAPH_LENGTH; j++) {
+                    content[j] = TEXT[random.nextInt(TEXT.length)];
+                }
+            }
+
+            write(i, stamp, content);
+            pages++;
+        }
+
+        return pages;
+    }
+
+    /**
+     * Get the file with the given number.
+     *
+     * @param  index the file number.
+     *
+     * @return the file.
+     */
+    public File getFile(int index) {
+        return new File(directory, getPath(index));
+    }
+
+    /**
+     * Get the path of the file with the given number, relative to the site
+     * directory and using "/" as separator.
+     *
+     * @param  index the file number.
+     *
+     * @return the path.
+     */
+    public String getPath(int index) {
+        StringBuilder path = new StringBuilder();
+
+        for (int dir = index / FILES_PER_DIRECTORY; dir > 0; dir /= 10) {
+            path.insert(0, "/d" + (dir % 10));
+        }
+
+        int    kind      = getKind(index);
+        String extension = kind == 2 ? ".png" : kind == 1 ? (index % 2 == 0 ? ".css" : ".js") : ".html";
+
+        path.append("/file-").append(index).append(extension);
+
+        return path.substring(1);
+    }
+
+    /**
+     * Write a file.
+     *
+     * @param  index the file number.
+     * @param  round the number of the change, zero for the original contents.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void write(int index, int round) throws IOException {
+        write(index, getContent(index, round));
+    }
+
+    /**
+     * Write a file from parts.
+     *
+     * @param  index the file number.
+     * @param  parts the parts of the contents, in order.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void write(int index, byte[]... parts) throws IOException {
+        File file = getFile(index);
+
+        file.getParentFile().mkdirs();
+
+        OutputStream out = new FileOutputStream(file);
+
+        try {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Generate the contents of a file.
+     *
+     * @param  index the file number.
+     * @param  round the number of the change, zero for the original contents.
+     *
+     * @return the contents.
+     */
+    public byte[] getContent(int index, int round) {
+        Random random = new Random(seed + index * 31L + round * 1000003L);
+        int    size;
+
+        switch (getKind(index)) {
+
+        case 2:
+            size = 32768 + random.nextInt(512 * 1024 - 32768);
+            break;
+
+        case 1:
+            size = 4096 + random.nextInt(32768 - 4096);
+            break;
+
+        default:
+            size = 256 + random.nextInt(4096 - 256);
+        }
+
+        byte[] content = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            content[i] = TEXT[random.nextInt(TEXT.length)];
+        }
+
+        return content;
+    }
+
+    /**
+     * Get the kind of a file.
+     *
+     * @param  index the file number.
+     *
+     * @return 0 for a page, 1 for a style sheet or script, 2 for an image.
+     */
+    private int getKind(int index) {
+        int bucket = (int) ((index * 2654435761L + seed) & 0x7fffffffL) % 100;
+
+        return bucket == 0 ? 2 : bucket < 20 ? 1 : 0;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.InputStream;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.ScmException;
+
+/**
+ * The git operations a site deploy is made of. The wagon decides what to
+ * deploy; a backend fetches the site branch, stages the changes, commits and
+ * pushes them.
+ *
+ * <p>Backends are plexus components with the role {@link #ROLE}, selected by
+ * role hint. A backend holds the state of one connection, from
+ * {@link #fetchTip(GitSiteSession)} to {@link #close()}, so components should
+ * be instantiated per lookup. Files are read back from the fetched tip, not
+ * from what has been staged since.</p>
+ *
+ * <p>Paths are relative to the root of the site branch and use "/" as
+ * separator.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public interface GitSiteBackend {
+
+    /** The plexus role. */
+    String ROLE = GitSiteBackend.class.getName();
+
+    /**
+     * Fetch the tip of the site branch, ready for staging.
+     *
+     * @param  session the connection's repository, branch and settings.
+     *
+     * @throws ScmException if the site branch cannot be fetched.
+     */
+    void fetchTip(GitSiteSession session) throws ScmException;
+
+    /**
+     * List the files of a subtree of the staged tree.
+     *
+     * @param  path the subtree or file, or the empty string for everything.
+     *
+     * @return the blob ids, keyed by path.
+     *
+     * @throws ScmException if the tree cannot be listed.
+     */
+    Map<String, String> listTree(String path) throws ScmException;
+
+    /**
+     * List the files of the fetched tip.
+     *
+     * @return the paths of the files, in git tree order.
+     *
+     * @throws ScmException if the tree cannot be listed.
+     */
+    List<String> listTip() throws ScmException;
+
+    /**
+     * Get the time of the last commit that changed a file of the fetched tip.
+     *
+     * @param  path the file.
+     *
+     * @return the commit time in milliseconds, or zero if the path is not a
+     *         file of the fetched tip.
+     *
+     * @throws ScmException if the history cannot be read.
+     */
+    long getLastModified(String path) throws ScmException;
+
+    /**
+     * Open a file of the fetched tip, as found by
+     * {@link #getLastModified(String)}. The contents are streamed, not held in
+     * memory, and an error reading them fails the stream.
+     *
+     * @param  path the file.
+     *
+     * @return the contents of the file, to be closed by the caller.
+     *
+     * @throws ScmException if the file cannot be opened.
+     */
+    InputStream openFile(String path) throws ScmException;
+
+    /**
+     * Stage files, adding or replacing them in the staged tree.
+     *
+     * @param  files the source files, keyed by their path in the site branch.
+     *
+     * @return the number of files staged.
+     *
+     * @throws ScmException if the files cannot be staged.
+     */
+    int stage(Map<String, File> files) throws ScmException;
+
+    /**
+     * Remove the files of a subtree of the staged tree that are not in a
+     * source directory.
+     *
+     * @param  path   the subtree, or the empty string for everything.
+     * @param  source the sorted paths of the source directory, relative to it.
+     *
+     * @return the number of files removed.
+     *
+     * @throws ScmException if the files cannot be removed.
+     */
+    int removeStale(String path, GitSiteTreeWalker source) throws ScmException;
+
+    /**
+     * Commit the staged tree on top of the fetched tip.
+     *
+     * @param  message the commit message.
+     *
+     * @throws ScmException if the commit fails.
+     */
+    void commit(String message) throws ScmException;
+
+    /**
+     * Push the commit to the site branch.
+     *
+     * @throws ScmException if the push fails.
+     */
+    void push() throws ScmException;
+
+    /**
+     * Get the size of the pack sent by the last push.
+     *
+     * @return the compressed bytes sent, or -1 if the backend cannot tell.
+     */
+    long getPushedBytes();
+
+    /**
+     * Release the resources held for the connection.
+     */
+    void close();
+}
@@ -0,0 +1,776 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteMirrorCache;
+
+/**
+ * Coalesces concurrent deploys to the same site branch into one commit and
+ * push.
+ *
+ * <p>In a parallel build each module's wagon fetches, commits and pushes the
+ * site branch on its own, and every push but the first fails, since the site
+ * branch has moved. Instead, the wagons deploying to the same repository and
+ * site branch at the same time join a round. The first to join opens it: it
+ * locks a lock file in a shared directory and fetches the site branch into a
+ * shared check-out directory. Every member stages through the same backend,
+ * one at a time. The last to leave closes the round: it commits everything
+ * staged in the round, pushes it and releases the lock. Deploys in other
+ * processes wait for the lock and fetch the pushed tip.</p>
+ *
+ * <p>The coordinator's lock only guards the state of the rounds, and is never
+ * held while git runs. A round being opened or closed admits no new members;
+ * they wait for it to open, or for the next round. Every wait is bounded by
+ * the joining deploy's timeout.</p>
+ *
+ * <p>A member that leaves while others are still in the round waits for the
+ * last member to push, and gets the result of the push. A member that staged
+ * changes but leaves without committing them, because its deploy failed, or
+ * that times out waiting for the others, aborts the round: nothing is
+ * committed, and every member fails.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteDeployCoordinator {
+
+    /** The coordinators, keyed by lock file path. */
+    private static final Map<String, GitSiteDeployCoordinator> COORDINATORS = new HashMap<String, GitSiteDeployCoordinator>();
+
+    /** How long to sleep between attempts to lock the lock file, in milliseconds. */
+    private static final long LOCK_POLL_INTERVAL = 100;
+
+    /** The state of a round being opened, which members wait for. */
+    private static final int OPENING = 0;
+
+    /** The state of an open round, which deploys may join. */
+    private static final int OPEN = 1;
+
+    /** The state of a round being committed and pushed. */
+    private static final int CLOSING = 2;
+
+    /** The lock file guarding the shared check-out directory. */
+    private File lockFile;
+
+    /** The shared check-out directory. */
+    private File checkoutDirectory;
+
+    /** The trash directory the check-out directory is removed into. */
+    private File trash;
+
+    /** The lock file, while a round is open. */
+    private RandomAccessFile lockRandomAccessFile;
+
+    /** The file lock, while a round is open. */
+    private FileLock fileLock;
+
+    /** The current round, or {@code null} if there is none. */
+    private Round round;
+
+    /**
+     * Create a new GitSiteDeployCoordinator object.
+     *
+     * @param directory the shared directory.
+     * @param key       the key of the repository and site branch.
+     */
+    private GitSiteDeployCoordinator(File directory, String key) {
+        this.lockFile          = new File(directory, key + ".deploy.lock");
+        this.checkoutDirectory = new File(directory, key + ".deploy");
+        this.trash             = new File(directory, GitSiteTrash.TRASH_DIRECTORY);
+    }
+
+    /**
+     * Get the coordinator of the deploys to a site branch.
+     *
+     * @param  directory  the shared directory holding the lock file and the
+     *                    check-out directory, or {@code null} for the
+     *                    temporary directory.
+     * @param  url        the SCM URL of the repository.
+     * @param  siteBranch the site branch.
+     *
+     * @return the coordinator, the same for every caller in the JVM.
+     */
+    public static GitSiteDeployCoordinator getInstance(File directory, String url, String siteBranch) {
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"));
+        }
+
+        String key  = GitSiteMirrorCache.getKey(url, siteBranch);
+        String path = new File(directory, key).getAbsolutePath();
+
+        synchronized (COORDINATORS) {
+            GitSiteDeployCoordinator coordinator = COORDINATORS.get(path);
+
+            if (coordinator == null) {
+                coordinator = new GitSiteDeployCoordinator(directory, key);
+                COORDINATORS.put(path, coordinator);
+            }
+
+            return coordinator;
+        }
+    }
+
+    /**
+     * Get the shared check-out directory.
+     *
+     * @return the check-out directory.
+     */
+    public File getCheckoutDirectory() {
+        return checkoutDirectory;
+    }
+
+    /**
+     * Join the open round, opening one if there is none.
+     *
+     * <p>Opening a round waits for rounds in other processes to finish and
+     * fetches the site branch with the new backend. If the round is open, the
+     * new backend is closed unused, unless a working tree is needed and the
+     * site branch was fetched without one before anything was staged, in
+     * which case it is fetched again.</p>
+     *
+     * @param  newBackend a new instance of the backend.
+     * @param  session    the connection's repository, branch and settings,
+     *                    with the shared check-out directory as working
+     *                    directory.
+     * @param  timeout    how long to wait for a round to open or for the
+     *                    other members to leave it, in milliseconds.
+     *
+     * @return the member's view of the round's backend. Committing records
+     *         the message, and pushing or closing leaves the round.
+     *
+     * @throws ScmException if the lock file cannot be locked, the site branch
+     *                      cannot be fetched, or the wait times out.
+     */
+    public GitSiteBackend join(GitSiteBackend newBackend, GitSiteSession session, long timeout) throws ScmException {
+        long    deadline = System.currentTimeMillis() + timeout;
+        Round   joined;
+        boolean opening;
+
+        synchronized (this) {
+            try {
+                while (round != null && round.state != OPEN) {
+                    waitUntil(deadline,
+                              round.state == OPENING ? "waiting for the coalesced site deploy to fetch the site branch"
+                                                     : "waiting for the previous coalesced site deploy to be pushed");
+                }
+            } catch (ScmException e) {
+                newBackend.close();
+                throw e;
+            }
+
+            opening = round == null;
+
+            if (opening) {
+                round = new Round();
+            }
+
+            joined = round;
+            joined.members++;
+        }
+
+        Member member = new Member(joined, timeout);
+
+        if (opening) {
+            open(joined, newBackend, session, deadline);
+        } else {
+            try {
+                joined.join(newBackend, session);
+            } catch (ScmException e) {
+                member.close();
+                throw e;
+            }
+        }
+
+        return member;
+    }
+
+    /**
+     * Open a round: lock the lock file and fetch the site branch. The members
+     * waiting for the round are let in if it opens, and otherwise try to open
+     * a round themselves.
+     *
+     * @param  opened     the round, with the opener as its only member.
+     * @param  newBackend the backend, closed if the round cannot be opened.
+     * @param  session    the connection's repository, branch and settings.
+     * @param  deadline   when to stop waiting for the lock file.
+     *
+     * @throws ScmException if the lock file cannot be locked or the site
+     *                      branch cannot be fetched.
+     */
+    private void open(Round opened, GitSiteBackend newBackend, GitSiteSession session, long deadline) throws ScmException {
+        boolean success = false;
+
+        try {
+            try {
+                lock(deadline);
+            } catch (ScmException e) {
+                newBackend.close();
+                throw e;
+            }
+
+            opened.fetch(newBackend, session);
+
+            success = true;
+        } finally {
+            if (!success) {
+                unlock();
+            }
+
+            synchronized (this) {
+                if (success) {
+                    opened.state = OPEN;
+                } else {
+                    round = null;
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Leave the round. The last member to leave closes the round: it commits
+     * and pushes whatever has been committed by the members, unless the round
+     * was aborted. The others wait for that, if asked to.
+     *
+     * @param  memberRound the member's round.
+     * @param  wait        whether to wait for the round's push.
+     * @param  timeout     how long to wait, in milliseconds.
+     *
+     * @return the compressed bytes pushed, zero if this member did not push,
+     *         or -1 if the backend cannot tell.
+     *
+     * @throws ScmException if the round was aborted, its commit or push
+     *                      failed, or the wait timed out.
+     */
+    private long leave(Round memberRound, boolean wait, long timeout) throws ScmException {
+        String abortReason;
+
+        synchronized (this) {
+            if (--memberRound.members > 0) {
+                if (wait) {
+                    memberRound.await(System.currentTimeMillis() + timeout);
+                }
+
+                return 0;
+            }
+
+            memberRound.state = CLOSING;
+            abortReason       = memberRound.abortReason;
+        }
+
+        ScmException error = null;
+
+        try {
+            if (abortReason != null) {
+                throw new ScmException("The coalesced site deploy was aborted: " + abortReason);
+            }
+
+            return memberRound.push();
+        } catch (ScmException e) {
+            error = e;
+
+            throw e;
+        } finally {
+            memberRound.close();
+            unlock();
+
+            synchronized (this) {
+                memberRound.error = error;
+                memberRound.done  = true;
+                round             = null;
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait on the coordinator's lock until notified or the deadline passes.
+     * The caller holds the lock.
+     *
+     * @param  deadline the deadline.
+     * @param  activity what the caller is waiting for, for the failure
+     *                  message.
+     *
+     * @throws ScmException if the deadline has passed, or the wait is
+     *                      interrupted.
+     */
+    private void waitUntil(long deadline, String activity) throws ScmException {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+            throw new ScmException("Timed out " + activity);
+        }
+
+        try {
+            wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new ScmException("Interrupted while " + activity);
+        }
+    }
+
+    /**
+     * Lock the lock file, waiting for rounds in other processes to finish.
+     *
+     * @param  deadline when to give up.
+     *
+     * @throws ScmException if the lock file cannot be locked before the
+     *                      deadline.
+     */
+    private void lock(long deadline) throws ScmException {
+        try {
+            lockFile.getParentFile().mkdirs();
+            lockRandomAccessFile = new RandomAccessFile(lockFile, "rw");
+
+            while ((fileLock = lockRandomAccessFile.getChannel().tryLock()) == null) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw new ScmException("Timed out waiting for another process's site deploy to release " + lockFile);
+                }
+
+                Thread.sleep(LOCK_POLL_INTERVAL);
+            }
+        } catch (IOException e) {
+            unlock();
+
+            throw new ScmException("Unable to lock the site deploy " + lockFile, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unlock();
+
+            throw new ScmException("Interrupted while waiting for the site deploy lock " + lockFile);
+        } catch (ScmException e) {
+            unlock();
+
+            throw e;
+        }
+    }
+
+    /**
+     * Release the lock file. Does nothing if it isn't locked.
+     */
+    private void unlock() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+
+            if (lockRandomAccessFile != null) {
+                lockRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            fileLock             = null;
+            lockRandomAccessFile = null;
+        }
+    }
+
+    /**
+     * A member's view of the round's backend. The backends are not safe for
+     * concurrent use, so every operation holds the round's lock, and the
+     * members stage one at a time.
+     */
+    private class Member implements GitSiteBackend {
+
+        /** The round the member joined. */
+        private Round memberRound;
+
+        /** How long to wait for the other members, in milliseconds. */
+        private long timeout;
+
+        /** Whether the member has staged changes. */
+        private boolean memberStaged;
+
+        /** Whether the member has committed. */
+        private boolean committed;
+
+        /** Whether the member has left the round. */
+        private boolean left;
+
+        /** The compressed bytes pushed when the member left. */
+        private long pushedBytes;
+
+        /**
+         * Create a new Member object.
+         *
+         * @param memberRound the round the member joined.
+         * @param timeout     how long to wait for the other members, in
+         *                    milliseconds.
+         */
+        public Member(Round memberRound, long timeout) {
+            this.memberRound = memberRound;
+            this.timeout     = timeout;
+        }
+
+        /**
+         * The round's site branch is already fetched.
+         *
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#fetchTip(org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession)
+         */
+        public void fetchTip(GitSiteSession session) throws ScmException {
+            throw new ScmException("The site branch is fetched by the coordinator");
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTree(java.lang.String)
+         */
+        public Map<String, String> listTree(String path) throws ScmException {
+            synchronized (memberRound) {
+                return memberRound.getBackend().listTree(path);
+            }
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTip()
+         */
+        public List<String> listTip() throws ScmException {
+            synchronized (memberRound) {
+                return memberRound.getBackend().listTip();
+            }
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getLastModified(java.lang.String)
+         */
+        public long getLastModified(String path) throws ScmException {
+            synchronized (memberRound) {
+                return memberRound.getBackend().getLastModified(path);
+            }
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#openFile(java.lang.String)
+         */
+        public InputStream openFile(String path) throws ScmException {
+            synchronized (memberRound) {
+                return memberRound.getBackend().openFile(path);
+            }
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#stage(java.util.Map)
+         */
+        public int stage(Map<String, File> files) throws ScmException {
+            synchronized (memberRound) {
+                memberRound.staged = true;
+                memberStaged       = true;
+
+                return memberRound.getBackend().stage(files);
+            }
+        }
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#removeStale(java.lang.String,
+         *      org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker)
+         */
+        public int removeStale(String path, GitSiteTreeWalker source) throws ScmException {
+            synchronized (memberRound) {
+                memberRound.staged = true;
+                memberStaged       = true;
+
+                return memberRound.getBackend().removeStale(path, source);
+            }
+        }
+
+        /**
+         * Record the commit message. The round is committed when the last
+         * member leaves.
+         *
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#commit(java.lang.String)
+         */
+        public void commit(String message) throws ScmException {
+            synchronized (memberRound) {
+                memberRound.messages.add(message);
+                committed = true;
+            }
+        }
+
+        /**
+         * Leave the round, pushing it if this is the last member, or else
+         * waiting for the last member to push it.
+         *
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#push()
+         */
+        public void push() throws ScmException {
+            if (!left) {
+                left        = true;
+                pushedBytes = leave(memberRound, true, timeout);
+            }
+        }
+
+        /**
+         * The size of the round's push if this member pushed it, otherwise
+         * zero.
+         *
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getPushedBytes()
+         */
+        public long getPushedBytes() {
+            return pushedBytes;
+        }
+
+        /**
+         * Leave the round if the member hasn't pushed, without waiting. A
+         * member that staged changes without committing them aborts the
+         * round. If this is the last member, a failure to push the round is
+         * logged.
+         *
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#close()
+         */
+        public void close() {
+            if (left) {
+                return;
+            }
+
+            left = true;
+
+            ScmLogger roundLogger;
+
+            synchronized (memberRound) {
+                roundLogger = memberRound.logger;
+            }
+
+            synchronized (GitSiteDeployCoordinator.this) {
+                if (memberStaged && !committed && memberRound.abortReason == null) {
+                    memberRound.abortReason = "a deploy staged changes but failed before committing them";
+                }
+            }
+
+            try {
+                leave(memberRound, false, timeout);
+            } catch (ScmException e) {
+                if (roundLogger != null) {
+                    roundLogger.error("Unable to push the coalesced site deploy: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A round of coalesced deploys. Its state, members and outcome are guarded
+     * by the coordinator's lock, and its backend and what has been staged and
+     * committed through it by the round's own lock.
+     */
+    private class Round {
+
+        /** The state of the round: OPENING, OPEN or CLOSING. */
+        private int state = OPENING;
+
+        /** The number of members in the round. */
+        private int members;
+
+        /** Whether the round has been pushed or has failed. */
+        private boolean done;
+
+        /** Why the round was aborted, or {@code null}. */
+        private String abortReason;
+
+        /** The failure of the round's commit or push, or {@code null}. */
+        private ScmException error;
+
+        /** The backend of the round, or {@code null} if none is fetched. */
+        private GitSiteBackend backend;
+
+        /** The logger of the round. */
+        private ScmLogger logger;
+
+        /** Whether the site branch was fetched with a working tree. */
+        private boolean workTree;
+
+        /** Whether anything has been staged in the round. */
+        private boolean staged;
+
+        /** The commit messages of the members that committed. */
+        private List<String> messages = new ArrayList<String>();
+
+        /**
+         * Fetch the site branch into the emptied check-out directory.
+         *
+         * @param  newBackend the backend, closed if the fetch fails.
+         * @param  session    the connection's repository, branch and
+         *                    settings.
+         *
+         * @throws ScmException if the site branch cannot be fetched.
+         */
+        public synchronized void fetch(GitSiteBackend newBackend, GitSiteSession session) throws ScmException {
+            try {
+                GitSiteTrash.remove(checkoutDirectory, trash);
+            } catch (IOException e) {
+                newBackend.close();
+
+                throw new ScmException("Unable to clean up the check-out directory " + checkoutDirectory, e);
+            }
+
+            checkoutDirectory.mkdirs();
+
+            try {
+                newBackend.fetchTip(session);
+            } catch (ScmException e) {
+                newBackend.close();
+                throw e;
+            }
+
+            backend  = newBackend;
+            logger   = session.getLogger();
+            workTree = session.isWorkTree();
+        }
+
+        /**
+         * Let a new member use the round's backend, fetching the site branch
+         * again if the member needs a working tree the round lacks.
+         *
+         * @param  newBackend the new member's backend, closed unless the site
+         *                    branch is fetched again.
+         * @param  session    the new member's repository, branch and
+         *                    settings.
+         *
+         * @throws ScmException if the site branch cannot be fetched again, or
+         *                      the member needs a working tree after changes
+         *                      were staged without one.
+         */
+        public synchronized void join(GitSiteBackend newBackend, GitSiteSession session) throws ScmException {
+            if (backend == null || (session.isWorkTree() && !workTree && !staged)) {
+                if (backend != null) {
+                    backend.close();
+                    backend = null;
+                }
+
+                fetch(newBackend, session);
+            } else if (session.isWorkTree() && !workTree) {
+                newBackend.close();
+
+                throw new ScmException("The site branch was fetched without a working tree and changes have already been staged");
+            } else {
+                newBackend.close();
+            }
+        }
+
+        /**
+         * Get the backend of the round.
+         *
+         * @return the backend.
+         *
+         * @throws ScmException if the site branch could not be fetched again.
+         */
+        public GitSiteBackend getBackend() throws ScmException {
+            if (backend == null) {
+                throw new ScmException("The site branch could not be fetched");
+            }
+
+            return backend;
+        }
+
+        /**
+         * Commit and push whatever the members committed.
+         *
+         * @return the compressed bytes pushed, zero if nothing was committed,
+         *         or -1 if the backend cannot tell.
+         *
+         * @throws ScmException if the commit or push fails.
+         */
+        public synchronized long push() throws ScmException {
+            if (backend == null || messages.isEmpty()) {
+                return 0;
+            }
+
+            backend.commit(getCommitMessage());
+            backend.push();
+
+            return backend.getPushedBytes();
+        }
+
+        /**
+         * Close the backend and remove the check-out directory.
+         */
+        public synchronized void close() {
+            if (backend != null) {
+                backend.close();
+                backend = null;
+            }
+
+            try {
+                GitSiteTrash.remove(checkoutDirectory, trash);
+            } catch (IOException e) {
+                // The next round cleans it up.
+            }
+        }
+
+        /**
+         * Get the commit message of the round.
+         *
+         * @return the message of the only member that committed, or the
+         *         messages of every member under a summary line.
+         */
+        private String getCommitMessage() {
+            if (messages.size() == 1) {
+                return messages.get(0);
+            }
+
+            StringBuilder message = new StringBuilder("Wagon: Deploying " + messages.size() + " sites to repository\n");
+
+            for (String memberMessage : messages) {
+                message.append('\n').append(memberMessage);
+            }
+
+            return message.toString();
+        }
+
+        /**
+         * Wait for the round to be done, releasing the coordinator's lock
+         * meanwhile. The caller holds the coordinator's lock. A member that
+         * stops waiting before the round is closed aborts it, since its
+         * deploy fails.
+         *
+         * @param  deadline when to stop waiting.
+         *
+         * @throws ScmException if the round failed, or the wait times out or
+         *                      is interrupted.
+         */
+        public void await(long deadline) throws ScmException {
+            while (!done) {
+                try {
+                    waitUntil(deadline, "waiting for the other coalesced site deploys to finish");
+                } catch (ScmException e) {
+                    if (state == OPEN && abortReason == null) {
+                        abortReason = "a deploy stopped waiting for the others to finish";
+                    }
+
+                    throw e;
+                }
+            }
+
+            if (error != null) {
+                throw new ScmException("The coalesced site deploy failed: " + error.getMessage(), error);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of a deploy, from opening the connection to pushing the site
+ * branch, summed per phase.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteDeployMetrics {
+
+    /**
+     * Finding which parent directories of the destination the site branch
+     * already has.
+     */
+    public static final String PHASE_RESOLVE = "resolve";
+
+    /** Fetching the site branch tip. */
+    public static final String PHASE_FETCH = "fetch";
+
+    /** Listing the blob ids already in the site branch. */
+    public static final String PHASE_LIST = "list";
+
+    /** Walking and hashing the deployed files. */
+    public static final String PHASE_SCAN = "scan";
+
+    /** Copying and staging the changed files. */
+    public static final String PHASE_STAGE = "stage";
+
+    /** Removing the stale files in mirror mode. */
+    public static final String PHASE_REMOVE_STALE = "remove-stale";
+
+    /** Committing the staged tree. */
+    public static final String PHASE_COMMIT = "commit";
+
+    /** Pushing the commit to the site branch. */
+    public static final String PHASE_PUSH = "push";
+
+    /** The repository URL. */
+    private String repository;
+
+    /** The site branch. */
+    private String siteBranch;
+
+    /** The backend. */
+    private String backend;
+
+    /** The deploy mode. */
+    private String deployMode;
+
+    /** The time the connection was opened, in milliseconds since the epoch. */
+    private long startTime;
+
+    /** The wall time of the whole connection, in milliseconds. */
+    private long wallTime;
+
+    /** The names of the resources deployed. */
+    private List<String> resources = new ArrayList<String>();
+
+    /** The metrics of each phase, in the order the phases first ran. */
+    private Map<String, GitSitePhaseMetrics> phases = new LinkedHashMap<String, GitSitePhaseMetrics>();
+
+    /**
+     * Create a new GitSiteDeployMetrics object, starting now.
+     *
+     * @param repository the repository URL.
+     * @param siteBranch the site branch.
+     * @param backend    the backend.
+     * @param deployMode the deploy mode.
+     */
+    public GitSiteDeployMetrics(String repository, String siteBranch, String backend, String deployMode) {
+        this.repository = repository;
+        this.siteBranch = siteBranch;
+        this.backend    = backend;
+        this.deployMode = deployMode;
+        this.startTime  = System.currentTimeMillis();
+    }
+
+    /**
+     * Add a measurement of a phase to the phase's totals.
+     *
+     * @param metrics the measurement.
+     */
+    public void add(GitSitePhaseMetrics metrics) {
+        GitSitePhaseMetrics total = phases.get(metrics.getPhase());
+
+        if (total == null) {
+            total = new GitSitePhaseMetrics(metrics.getPhase());
+            phases.put(metrics.getPhase(), total);
+        }
+
+        total.add(metrics);
+    }
+
+    /**
+     * Record a deployed resource.
+     *
+     * @param name the resource name.
+     */
+    public void addResource(String name) {
+        resources.add(name);
+    }
+
+    /**
+     * Record the end of the deploy.
+     */
+    public void finish() {
+        wallTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Get the repository URL.
+     *
+     * @return the repository URL.
+     */
+    public String getRepository() {
+        return repository;
+    }
+
+    /**
+     * Get the site branch.
+     *
+     * @return the site branch.
+     */
+    public String getSiteBranch() {
+        return siteBranch;
+    }
+
+    /**
+     * Get the backend.
+     *
+     * @return the backend.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Get the deploy mode.
+     *
+     * @return the deploy mode.
+     */
+    public String getDeployMode() {
+        return deployMode;
+    }
+
+    /**
+     * Get the time the connection was opened.
+     *
+     * @return the time, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the wall time of the whole connection.
+     *
+     * @return the wall time, in milliseconds.
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Get the names of the resources deployed.
+     *
+     * @return the resource names.
+     */
+    public List<String> getResources() {
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Get the totals of a phase.
+     *
+     * @param  phase the phase name.
+     *
+     * @return the totals, or {@code null} if the phase did not run.
+     */
+    public GitSitePhaseMetrics getPhase(String phase) {
+        return phases.get(phase);
+    }
+
+    /**
+     * Get the totals of every phase that ran.
+     *
+     * @return the totals, in the order the phases first ran.
+     */
+    public Collection<GitSitePhaseMetrics> getPhases() {
+        return Collections.unmodifiableCollection(phases.values());
+    }
+
+    /**
+     * Get the totals over every phase.
+     *
+     * @return the totals. The wall time is the sum of the phases, not the
+     *         wall time of the connection.
+     */
+    public GitSitePhaseMetrics getTotal() {
+        GitSitePhaseMetrics total = new GitSitePhaseMetrics("total");
+
+        for (GitSitePhaseMetrics metrics : phases.values()) {
+            total.add(metrics);
+        }
+
+        return total;
+    }
+
+    /**
+     * Get the metrics as a JSON object.
+     *
+     * @return the JSON text.
+     */
+    public String toJson() {
+        StringBuilder       json  = new StringBuilder();
+        GitSitePhaseMetrics total = getTotal();
+
+        json.append("{\n  \"repository\": ").append(quote(repository));
+        json.append(",\n  \"siteBranch\": ").append(quote(siteBranch));
+        json.append(",\n  \"backend\": ").append(quote(backend));
+        json.append(",\n  \"deployMode\": ").append(quote(deployMode));
+        json.append(",\n  \"startTime\": ").append(startTime);
+        json.append(",\n  \"wallTime\": ").append(wallTime);
+        json.append(",\n  \"processCount\": ").append(total.getProcessCount());
+        json.append(",\n  \"bytes\": ").append(total.getBytes());
+        json.append(",\n  \"filesTouched\": ").append(total.getFilesTouched());
+        json.append(",\n  \"resources\": [");
+
+        for (int i = 0; i < resources.size(); i++) {
+            json.append(i == 0 ? "" : ", ").append(quote(resources.get(i)));
+        }
+
+        json.append("],\n  \"phases\": [");
+
+        int i = 0;
+
+        for (GitSitePhaseMetrics metrics : phases.values()) {
+            json.append(i++ == 0 ? "\n    " : ",\n    ").append(metrics.toJson());
+        }
+
+        json.append("\n  ]\n}\n");
+
+        return json.toString();
+    }
+
+    /**
+     * Quote a string for JSON.
+     *
+     * @param  value the string, or {@code null}.
+     *
+     * @return the JSON string literal, or "null".
+     */
+    static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+
+        StringBuilder quoted = new StringBuilder(value.length() + 2);
+
+        quoted.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+
+        return quoted.append('"').toString();
+    }
+}
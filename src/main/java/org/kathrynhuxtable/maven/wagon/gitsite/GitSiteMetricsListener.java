@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+/**
+ * Receive the metrics of a deploy as it happens.
+ *
+ * <p>Register listeners with
+ * {@link GitSiteWagon#addMetricsListener(GitSiteMetricsListener)}.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public interface GitSiteMetricsListener {
+
+    /**
+     * Called each time a phase of a deploy completes. A phase may run
+     * several times in one connection, once per resource put.
+     *
+     * @param metrics the metrics of this run of the phase.
+     */
+    void phaseCompleted(GitSitePhaseMetrics metrics);
+
+    /**
+     * Called when the connection is closed after the deploy has been pushed.
+     *
+     * @param metrics the metrics of the whole deploy.
+     */
+    void deployCompleted(GitSiteDeployMetrics metrics);
+}
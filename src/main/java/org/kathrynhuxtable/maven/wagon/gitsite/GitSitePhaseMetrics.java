@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteCommandLineUtils;
+
+/**
+ * The cost of one phase of a deploy: its wall time, the git processes it
+ * ran, and the files and bytes it touched.
+ *
+ * <p>A phase is measured from {@link #begin(String)} to
+ * {@link #end(long, long)}. Its processes are the git processes the JVM
+ * started meanwhile, on any thread, so those of background scans, of the
+ * cat-file pool and of a coalesced round's push are counted; so are those of
+ * concurrent deploys in the same JVM. Measurements of the same phase can be
+ * summed with {@link #add(GitSitePhaseMetrics)}.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSitePhaseMetrics {
+
+    /** The phase name, one of the PHASE constants of GitSiteDeployMetrics. */
+    private String phase;
+
+    /** The wall time, in milliseconds. */
+    private long wallTime;
+
+    /** The number of git processes run. */
+    private long processCount;
+
+    /** The bytes of file content hashed or copied, or of the pack pushed. */
+    private long bytes;
+
+    /** The number of files listed, hashed, staged or removed. */
+    private long filesTouched;
+
+    /** The start time in nanoseconds, while the phase is measured. */
+    private long startNanos;
+
+    /** The process count of the JVM at the start of the phase. */
+    private long startProcessCount;
+
+    /**
+     * Create a new, empty GitSitePhaseMetrics object.
+     *
+     * @param phase the phase name.
+     */
+    public GitSitePhaseMetrics(String phase) {
+        this.phase = phase;
+    }
+
+    /**
+     * Start measuring a phase.
+     *
+     * @param  phase the phase name.
+     *
+     * @return the phase being measured.
+     */
+    public static GitSitePhaseMetrics begin(String phase) {
+        GitSitePhaseMetrics metrics = new GitSitePhaseMetrics(phase);
+
+        metrics.startNanos        = System.nanoTime();
+        metrics.startProcessCount = GitSiteCommandLineUtils.getProcessCount();
+
+        return metrics;
+    }
+
+    /**
+     * Stop measuring the phase.
+     *
+     * @param  filesTouched the number of files the phase touched.
+     * @param  bytes        the bytes of file content the phase hashed or
+     *                      copied, or of the pack it pushed.
+     *
+     * @return this phase.
+     */
+    public GitSitePhaseMetrics end(long filesTouched, long bytes) {
+        this.wallTime     = (System.nanoTime() - startNanos) / 1000000L;
+        this.processCount = GitSiteCommandLineUtils.getProcessCount() - startProcessCount;
+        this.filesTouched = filesTouched;
+        this.bytes        = bytes;
+
+        return this;
+    }
+
+    /**
+     * Add another measurement to this one.
+     *
+     * @param other the other measurement.
+     */
+    public void add(GitSitePhaseMetrics other) {
+        wallTime     += other.wallTime;
+        processCount += other.processCount;
+        bytes        += other.bytes;
+        filesTouched += other.filesTouched;
+    }
+
+    /**
+     * Get the phase name.
+     *
+     * @return the phase name.
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * Get the wall time.
+     *
+     * @return the wall time, in milliseconds.
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    /**
+     * Get the number of git processes run.
+     *
+     * @return the number of processes.
+     */
+    public long getProcessCount() {
+        return processCount;
+    }
+
+    /**
+     * Get the bytes of file content hashed while scanning or copied while
+     * staging, or the compressed bytes of the pack sent while pushing.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of files listed, hashed, staged or removed.
+     *
+     * @return the number of files.
+     */
+    public long getFilesTouched() {
+        return filesTouched;
+    }
+
+    /**
+     * Get the measurement as a JSON object.
+     *
+     * @return the JSON text.
+     */
+    public String toJson() {
+        return "{\"phase\":" + GitSiteDeployMetrics.quote(phase) + ",\"wallTime\":" + wallTime + ",\"processCount\":" + processCount
+               + ",\"bytes\":" + bytes + ",\"filesTouched\":" + filesTouched + "}";
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        return phase + ": " + wallTime + " ms, " + processCount + " processes, " + filesTouched + " files, " + bytes + " bytes";
+    }
+}
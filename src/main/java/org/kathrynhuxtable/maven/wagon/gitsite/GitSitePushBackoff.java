@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.util.Random;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+
+/**
+ * The bounded backoff between attempts to push a deploy that was rejected,
+ * typically because the site branch moved since it was fetched.
+ *
+ * <p>A backend pushing optimistically tries the push, and if it is rejected
+ * asks for a {@link #retry(String)}, which waits an exponentially growing,
+ * jittered delay. The backend then fetches the new tip, replays its commit
+ * on top if the site branch has moved, and tries again.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSitePushBackoff {
+
+    /** The maximum number of push attempts. */
+    public static final int MAX_ATTEMPTS = 8;
+
+    /** The delay before the first retry, in milliseconds. */
+    public static final long INITIAL_DELAY = 250;
+
+    /** The maximum delay before a retry, in milliseconds. */
+    public static final long MAX_DELAY = 8000;
+
+    /** The random jitter, so that competing deploys don't retry in step. */
+    private static final Random RANDOM = new Random();
+
+    /** The logger. */
+    private ScmLogger logger;
+
+    /** The site branch, for messages. */
+    private String siteBranch;
+
+    /** The number of attempts made. */
+    private int attempts = 1;
+
+    /**
+     * Create a new GitSitePushBackoff object, for a push that has been tried
+     * once.
+     *
+     * @param logger     the logger.
+     * @param siteBranch the site branch.
+     */
+    public GitSitePushBackoff(ScmLogger logger, String siteBranch) {
+        this.logger     = logger;
+        this.siteBranch = siteBranch;
+    }
+
+    /**
+     * Get the number of push attempts made.
+     *
+     * @return the number of attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Wait before retrying a rejected push.
+     *
+     * @param  reason the reason the push was rejected.
+     *
+     * @throws ScmException if no attempts are left, or the wait is
+     *                      interrupted.
+     */
+    public void retry(String reason) throws ScmException {
+        if (attempts >= MAX_ATTEMPTS) {
+            throw new ScmException("The push to " + siteBranch + " was rejected " + attempts + " times: " + reason);
+        }
+
+        long delay = Math.min(MAX_DELAY, INITIAL_DELAY << (attempts - 1));
+
+        delay = delay / 2 + (long) (RANDOM.nextDouble() * delay / 2);
+
+        if (logger.isInfoEnabled()) {
+            logger.info("The push to " + siteBranch + " was rejected (" + reason + "); retrying in " + delay + " ms");
+        }
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            throw new ScmException("Interrupted while waiting to retry the push to " + siteBranch, e);
+        }
+
+        attempts++;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+
+/**
+ * The repository, site branch and settings of one wagon connection, as
+ * handed to a {@link GitSiteBackend}.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteSession {
+
+    /** The repository. */
+    private GitScmProviderRepository repository;
+
+    /** The site branch. */
+    private String siteBranch;
+
+    /** The directory the backend may use for the connection. */
+    private File workingDirectory;
+
+    /** The logger. */
+    private ScmLogger logger;
+
+    /** The directory holding persistent mirrors, or {@code null}. */
+    private File cacheDirectory;
+
+    /** Whether to fetch only the tip of the site branch. */
+    private boolean shallow;
+
+    /** Whether to fetch blobs on demand. */
+    private boolean partialClone;
+
+    /** Whether to stage through a working tree. */
+    private boolean workTree = true;
+
+    /** The number of threads for local file work. */
+    private int parallelism = 1;
+
+    /**
+     * Create a new GitSiteSession object.
+     *
+     * @param repository       the repository.
+     * @param siteBranch       the site branch.
+     * @param workingDirectory the directory the backend may use for the
+     *                         connection. It is deleted when the connection
+     *                         is closed.
+     * @param logger           the logger.
+     */
+    public GitSiteSession(GitScmProviderRepository repository, String siteBranch, File workingDirectory, ScmLogger logger) {
+        this.repository       = repository;
+        this.siteBranch       = siteBranch;
+        this.workingDirectory = workingDirectory;
+        this.logger           = logger;
+    }
+
+    /**
+     * Get the repository.
+     *
+     * @return the repository, with its fetch and push URLs.
+     */
+    public GitScmProviderRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Get the site branch.
+     *
+     * @return the site branch.
+     */
+    public String getSiteBranch() {
+        return siteBranch;
+    }
+
+    /**
+     * Get the directory the backend may use for the connection.
+     *
+     * @return the working directory.
+     */
+    public File getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    /**
+     * Get the logger.
+     *
+     * @return the logger.
+     */
+    public ScmLogger getLogger() {
+        return logger;
+    }
+
+    /**
+     * Get the directory holding persistent mirrors of the site branch.
+     *
+     * @return the cache directory, or {@code null} if no cache is used.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory holding persistent mirrors of the site branch.
+     *
+     * @param cacheDirectory the cache directory, or {@code null}.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Whether only the tip of the site branch is fetched.
+     *
+     * @return {@code true} if the fetch is shallow.
+     */
+    public boolean isShallow() {
+        return shallow;
+    }
+
+    /**
+     * Set whether only the tip of the site branch is fetched.
+     *
+     * @param shallow {@code true} to fetch only the tip.
+     */
+    public void setShallow(boolean shallow) {
+        this.shallow = shallow;
+    }
+
+    /**
+     * Whether blobs are fetched on demand.
+     *
+     * @return {@code true} if the fetch is a partial clone.
+     */
+    public boolean isPartialClone() {
+        return partialClone;
+    }
+
+    /**
+     * Set whether blobs are fetched on demand.
+     *
+     * @param partialClone {@code true} to fetch blobs on demand.
+     */
+    public void setPartialClone(boolean partialClone) {
+        this.partialClone = partialClone;
+    }
+
+    /**
+     * Whether the files are staged through a working tree.
+     *
+     * @return {@code true} if the files are copied into a working tree.
+     */
+    public boolean isWorkTree() {
+        return workTree;
+    }
+
+    /**
+     * Set whether the files are staged through a working tree.
+     *
+     * @param workTree {@code false} to stage straight into the index.
+     */
+    public void setWorkTree(boolean workTree) {
+        this.workTree = workTree;
+    }
+
+    /**
+     * Get the number of threads for local file work.
+     *
+     * @return the number of threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads for local file work.
+     *
+     * @param parallelism the number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+}
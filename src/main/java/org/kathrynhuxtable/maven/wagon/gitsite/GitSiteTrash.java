@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Removes check-out directories in the background.
+ *
+ * <p>Deleting a check-out of a large site takes as long as the site has
+ * files. Instead, a directory is renamed into a trash directory, which is
+ * instant, and deleted by a daemon thread. Whatever is left in a trash
+ * directory when the JVM exits is deleted the next time the trash directory
+ * is used, by this or any other process.</p>
+ *
+ * <p>The trash directories belong to the wagon: by default the one in the
+ * temporary directory, which holds the check-out directories the wagon
+ * creates, or one in the cache directory for the check-out directories kept
+ * there. They are never made in a directory the user chose.</p>
+ *
+ * <p>If the directory cannot be renamed, for instance because it is on
+ * another file system than the trash, or a file in it is held open on
+ * Windows, it is deleted at once.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTrash {
+
+    /** The name of a trash directory. */
+    public static final String TRASH_DIRECTORY = "wagon-gitsite.trash";
+
+    /** The directories waiting to be deleted. */
+    private static final BlockingQueue<File> QUEUE = new LinkedBlockingQueue<File>();
+
+    /** The trash directories whose leftovers have been queued. */
+    private static final Set<File> REAPED = new HashSet<File>();
+
+    /** The deleting thread, or {@code null} until first needed. */
+    private static Thread deleter;
+
+    /** The sequence number making trash entries unique within the JVM. */
+    private static long sequence;
+
+    /**
+     * Not instantiated.
+     */
+    private GitSiteTrash() {
+    }
+
+    /**
+     * Remove a directory, renaming it into the trash in the temporary
+     * directory to be deleted in the background.
+     *
+     * @param  directory the directory.
+     *
+     * @throws IOException if the directory cannot be renamed, and cannot be
+     *                     deleted either.
+     *
+     * @see    #remove(File, File)
+     */
+    public static void remove(File directory) throws IOException {
+        remove(directory, getDefaultTrash());
+    }
+
+    /**
+     * Remove a directory, renaming it into a trash directory to be deleted in
+     * the background. The leftovers of earlier runs in the trash are queued
+     * first, whether or not the directory exists.
+     *
+     * @param  directory the directory.
+     * @param  trash     the trash directory, created if missing.
+     *
+     * @throws IOException if the directory cannot be renamed, and cannot be
+     *                     deleted either.
+     */
+    public static void remove(File directory, File trash) throws IOException {
+        reap(trash);
+
+        if (!directory.exists()) {
+            return;
+        }
+
+        File entry = moveToTrash(directory, trash);
+
+        if (entry == null) {
+            FileUtils.deleteDirectory(directory);
+            return;
+        }
+
+        delete(entry);
+    }
+
+    /**
+     * Empty a directory, renaming it into the trash in the temporary
+     * directory and creating it again.
+     *
+     * @param  directory the directory.
+     *
+     * @throws IOException if the directory cannot be removed or created.
+     */
+    public static void clean(File directory) throws IOException {
+        remove(directory);
+
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+    }
+
+    /**
+     * Queue the entries left in the trash in the temporary directory by
+     * earlier runs.
+     */
+    public static void reap() {
+        reap(getDefaultTrash());
+    }
+
+    /**
+     * Queue the entries left in a trash directory by earlier runs, the first
+     * time it is used by this JVM. Each is renamed first, so that only one
+     * process deletes it.
+     *
+     * @param trash the trash directory.
+     */
+    public static void reap(File trash) {
+        trash = trash.getAbsoluteFile();
+
+        synchronized (REAPED) {
+            if (!REAPED.add(trash)) {
+                return;
+            }
+        }
+
+        File[] entries = trash.listFiles();
+
+        if (entries == null) {
+            return;
+        }
+
+        for (File entry : entries) {
+            File claimed = moveToTrash(entry, trash);
+
+            if (claimed != null) {
+                delete(claimed);
+            }
+        }
+    }
+
+    /**
+     * Get the trash directory in the temporary directory.
+     *
+     * @return the trash directory.
+     */
+    private static File getDefaultTrash() {
+        return new File(System.getProperty("java.io.tmpdir"), TRASH_DIRECTORY);
+    }
+
+    /**
+     * Rename a file or directory to a new entry in a trash directory.
+     *
+     * @param  file  the file or directory.
+     * @param  trash the trash directory, created if missing.
+     *
+     * @return the trash entry, or {@code null} if the file could not be
+     *         renamed.
+     */
+    private static File moveToTrash(File file, File trash) {
+        if (!trash.mkdirs() && !trash.isDirectory()) {
+            return null;
+        }
+
+        long number;
+
+        synchronized (QUEUE) {
+            number = ++sequence;
+        }
+
+        File entry = new File(trash, System.currentTimeMillis() + "-" + number + ".trash");
+
+        return file.renameTo(entry) ? entry : null;
+    }
+
+    /**
+     * Queue a trash entry to be deleted by the deleting thread, starting it
+     * if need be.
+     *
+     * @param entry the trash entry.
+     */
+    private static void delete(File entry) {
+        synchronized (QUEUE) {
+            if (deleter == null) {
+                deleter = new Thread(new Deleter(), "gitsite-trash");
+                deleter.setDaemon(true);
+                deleter.setPriority(Thread.MIN_PRIORITY);
+                deleter.start();
+            }
+        }
+
+        QUEUE.add(entry);
+    }
+
+    /**
+     * Delete the queued trash entries, one at a time. A failure leaves the
+     * rest of the entry for the next reap.
+     */
+    private static class Deleter implements Runnable {
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            try {
+                while (true) {
+                    File entry = QUEUE.take();
+
+                    try {
+                        if (entry.isDirectory()) {
+                            FileUtils.deleteDirectory(entry);
+                        } else {
+                            entry.delete();
+                        }
+                    } catch (IOException e) {
+                        // The next reap deletes what is left.
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The JVM is going away; the next reap deletes what is left.
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+
+/**
+ * Iterate over the files of a directory tree lazily, in the order git sorts
+ * paths in the index, i.e. by their bytes in UTF-8.
+ *
+ * <p>Only the listings of the directories on the path to the current file are
+ * held, so the memory used depends on the depth and width of the tree, not on
+ * the number of files in it.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTreeWalker implements Iterator<String> {
+
+    /** Orders directory entries as git does, directories sorting as "name/". */
+    private static final Comparator<File> ENTRY_ORDER = new Comparator<File>() {
+        public int compare(File f1, File f2) {
+            return comparePaths(getSortName(f1), getSortName(f2));
+        }
+    };
+
+    /** The SCM specific file name to skip, e.g. ".git", or {@code null}. */
+    private String reservedName;
+
+    /** The listings of the directories being walked, innermost on top. */
+    private Stack<Listing> listings = new Stack<Listing>();
+
+    /** The next path, or {@code null} at the end. */
+    private String next;
+
+    /**
+     * Create a new GitSiteTreeWalker object.
+     *
+     * @param directory    the directory to walk.
+     * @param reservedName the SCM specific file name to skip, or
+     *                     {@code null}.
+     */
+    public GitSiteTreeWalker(File directory, String reservedName) {
+        this.reservedName = reservedName;
+
+        push(directory, "");
+
+        advance();
+    }
+
+    /**
+     * Compare two paths the way git orders them, by their bytes in UTF-8.
+     *
+     * @param  p1 the first path.
+     * @param  p2 the second path.
+     *
+     * @return a negative number, zero or a positive number as the first path
+     *         sorts before, equal to or after the second.
+     */
+    public static int comparePaths(String p1, String p2) {
+        int i1 = 0;
+        int i2 = 0;
+
+        while (i1 < p1.length() && i2 < p2.length()) {
+            int c1 = p1.codePointAt(i1);
+            int c2 = p2.codePointAt(i2);
+
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+
+        return (p1.length() - i1) - (p2.length() - i2);
+    }
+
+    /**
+     * @see java.util.Iterator#hasNext()
+     */
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    /**
+     * @see java.util.Iterator#next()
+     */
+    public String next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+
+        String path = next;
+
+        advance();
+
+        return path;
+    }
+
+    /**
+     * @see java.util.Iterator#remove()
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Find the next file.
+     */
+    private void advance() {
+        next = null;
+
+        while (!listings.isEmpty()) {
+            Listing listing = listings.peek();
+
+            if (listing.index == listing.children.length) {
+                listings.pop();
+                continue;
+            }
+
+            File child = listing.children[listing.index++];
+
+            if (reservedName != null && reservedName.equals(child.getName())) {
+                continue;
+            }
+
+            if (child.isDirectory()) {
+                push(child, listing.prefix + child.getName() + "/");
+            } else {
+                next = listing.prefix + child.getName();
+                return;
+            }
+        }
+    }
+
+    /**
+     * List a directory and push the sorted listing.
+     *
+     * @param directory the directory.
+     * @param prefix    the path prefix of the directory's children.
+     */
+    private void push(File directory, String prefix) {
+        File[] children = directory.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        Arrays.sort(children, ENTRY_ORDER);
+
+        listings.push(new Listing(children, prefix));
+    }
+
+    /**
+     * Get the name a directory entry sorts by.
+     *
+     * @param  file the directory entry.
+     *
+     * @return the name, followed by "/" for a directory.
+     */
+    private static String getSortName(File file) {
+        return file.isDirectory() ? file.getName() + "/" : file.getName();
+    }
+
+    /**
+     * A sorted directory listing and the position reached in it.
+     */
+    private static class Listing {
+
+        /** The sorted children. */
+        private File[] children;
+
+        /** The path prefix of the children. */
+        private String prefix;
+
+        /** The index of the next child. */
+        private int index;
+
+        /**
+         * Create a new Listing object.
+         *
+         * @param children the sorted children.
+         * @param prefix   the path prefix of the children.
+         */
+        public Listing(File[] children, String prefix) {
+            this.children = children;
+            this.prefix   = prefix;
+        }
+    }
+}
@@ -17,33 +17,34 @@ package org.kathrynhuxtable.maven.wagon.gitsite;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.text.DecimalFormat;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.maven.scm.CommandParameter;
-import org.apache.maven.scm.CommandParameters;
-import org.apache.maven.scm.ScmBranch;
 import org.apache.maven.scm.ScmException;
-import org.apache.maven.scm.ScmFile;
-import org.apache.maven.scm.ScmFileSet;
-import org.apache.maven.scm.ScmResult;
-import org.apache.maven.scm.ScmVersion;
-import org.apache.maven.scm.command.add.AddScmResult;
-import org.apache.maven.scm.command.checkin.CheckInScmResult;
-import org.apache.maven.scm.command.checkout.CheckOutScmResult;
-import org.apache.maven.scm.command.list.ListScmResult;
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.log.ScmLogger;
 import org.apache.maven.scm.manager.NoSuchScmProviderException;
 import org.apache.maven.scm.manager.ScmManager;
+import org.apache.maven.scm.provider.AbstractScmProvider;
 import org.apache.maven.scm.provider.ScmProvider;
 import org.apache.maven.scm.provider.ScmProviderRepository;
 import org.apache.maven.scm.provider.ScmProviderRepositoryWithHost;
-import org.apache.maven.scm.provider.git.command.GitCommand;
-import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
 import org.apache.maven.scm.repository.ScmRepository;
 import org.apache.maven.scm.repository.ScmRepositoryException;
 import org.apache.maven.wagon.AbstractWagon;
@@ -59,29 +60,58 @@ import org.apache.maven.wagon.repository.Repository;
 import org.apache.maven.wagon.resource.Resource;
 
 import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.StringUtils;
 
-import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteCheckInCommand;
-import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteCheckOutCommand;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitBlobHasher;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitExeSiteBackend;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteTreeIndex;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteTreeScanner;
+import org.kathrynhuxtable.maven.wagon.gitsite.jgit.JGitSiteBackend;
+import org.kathrynhuxtable.maven.wagon.gitsite.memory.InMemorySiteBackend;
 
 /**
  * Wagon provider to deploy site documentation to GitHub's pages system.
  *
- * <p>This should do more or less the following, but doesn't because it doesn't
- * actually delete old files.</p>
+ * <p>This does more or less the following. Old files are only deleted from
+ * the site branch in mirror mode; otherwise the site docs are copied over the
+ * existing contents.</p>
  *
  * <pre>
  * mkdir ${checkoutDirectory}
  * cd ${checkoutDirectory}
  * git init
  * git remote add origin ${gitRepoUrl}
- * git pull origin refs/heads/${siteBranch}
+ * git fetch origin refs/heads/${siteBranch}
+ * git checkout -B master FETCH_HEAD
  * <replace the contents of the checkout directory, except for the .git subdirectory, with the site docs>
  * git add .
  * git commit -a -m "Wagon: Deploying site to repository"
  * git push origin master:${siteBranch}
  * rm -Rf ${checkoutDirectory}
  * </pre>
+ *
+ * <p>In the {@link #DEPLOY_MODE_OBJECTS} deploy mode the site branch is not
+ * checked out, and the site docs are not copied:</p>
+ *
+ * <pre>
+ * git update-ref refs/heads/master FETCH_HEAD
+ * git symbolic-ref HEAD refs/heads/master
+ * git read-tree HEAD
+ * git hash-object -w --stdin-paths < <the changed site docs, in place>
+ * git update-index --index-info < <their blob ids at their site paths>
+ * </pre>
+ *
+ * <p>The check-out is done once per connection. Every resource put during the
+ * connection is staged into the same working copy, and the commit and push
+ * happen once, when the connection is closed.</p>
+ *
+ * <p>Resources are got by streaming them from the fetched site branch, which
+ * is fetched without a working tree if nothing has been put yet. Its tree is
+ * listed once into an index answering file lists and existence checks.</p>
+ *
+ * <p>The git work is done by a {@link GitSiteBackend}, looked up by the role
+ * hint set with {@link #setBackend(String)}.</p>
  * 
  * We <em>need</em> to create the gh-pages branch if it doesn't already exist:
  * 
@@ -105,6 +135,35 @@ import org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteCheckOutCommand;
  */
 public class GitSiteWagon extends AbstractWagon {
 
+    /**
+     * Deploy mode copying the site into a checked out working tree, staging
+     * and committing from there.
+     */
+    public static final String DEPLOY_MODE_CHECKOUT = "checkout";
+
+    /**
+     * Deploy mode writing the site straight into blob objects and the index,
+     * without a working tree. The files are read where they were generated,
+     * so the site is never copied.
+     */
+    public static final String DEPLOY_MODE_OBJECTS = "objects";
+
+    /** Backend running the git executable for every operation. */
+    public static final String BACKEND_GITEXE = "gitexe";
+
+    /**
+     * Backend performing every operation in-process with JGit, against the
+     * object database directly.
+     */
+    public static final String BACKEND_JGIT = "jgit";
+
+    /**
+     * Backend keeping the site branches in memory, for tests and benchmarks.
+     *
+     * @see InMemorySiteBackend
+     */
+    public static final String BACKEND_MEMORY = "memory";
+
     /**
      * The SCM Manager.
      *
@@ -112,12 +171,96 @@ public class GitSiteWagon extends AbstractWagon {
      */
     private ScmManager scmManager;
 
+    /**
+     * The backends, keyed by role hint.
+     *
+     * @plexus.requirement role="org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend"
+     */
+    private Map<String, GitSiteBackend> backends;
+
     /** The site branch. Set in connect. */
     private String siteBranch;
 
     /** The check-out directory. */
     private File checkoutDirectory;
 
+    /**
+     * The directory holding the persistent site branch mirrors, or
+     * {@code null} to pull the site branch from the remote repository on
+     * every deploy.
+     */
+    private File cacheDirectory;
+
+    /** Whether to fetch only the tip of the site branch. */
+    private boolean shallow;
+
+    /** Whether to fetch blobs on demand when fetching shallow. */
+    private boolean partialClone;
+
+    /** The deploy mode, one of the DEPLOY_MODE constants. */
+    private String deployMode = DEPLOY_MODE_CHECKOUT;
+
+    /** Whether deployed directories replace the old contents entirely. */
+    private boolean mirror;
+
+    /**
+     * Whether concurrent deploys to the same site branch are coalesced into
+     * one commit and push.
+     */
+    private boolean coalesce;
+
+    /**
+     * How long a coalesced deploy waits for its round to open and for the
+     * other deploys in it to finish, in milliseconds.
+     */
+    private long coalesceTimeout = 10 * 60 * 1000L;
+
+    /** The coordinator of this connection's deploy, or {@code null}. */
+    private GitSiteDeployCoordinator coordinator;
+
+    /** The role hint of the backend, e.g. one of the BACKEND constants. */
+    private String backend = BACKEND_GITEXE;
+
+    /** The backend of this connection, or {@code null} if not checked out. */
+    private GitSiteBackend siteBackend;
+
+    /** The number of threads walking, hashing and copying the site. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The relative path of the repository in the check-out directory, or
+     * {@code null} if the site branch has not been checked out in this
+     * connection yet.
+     */
+    private String checkoutRelPath;
+
+    /** Whether the site branch was checked out with a working tree. */
+    private boolean checkoutWorkTree;
+
+    /**
+     * The index of the fetched site branch tree, or {@code null} if it has not
+     * been listed since the fetch or push.
+     */
+    private GitSiteTreeIndex treeIndex;
+
+    /** The names of the resources deployed in this connection. */
+    private List<String> deployedResources = new ArrayList<String>();
+
+    /** Whether a put failed in this connection, possibly after staging. */
+    private boolean putFailed;
+
+    /** The metrics of this connection's deploy. */
+    private GitSiteDeployMetrics metrics;
+
+    /** The listeners notified of the metrics. */
+    private List<GitSiteMetricsListener> metricsListeners = new ArrayList<GitSiteMetricsListener>();
+
+    /** The file to write the metrics of each deploy to, or {@code null}. */
+    private File metricsFile;
+
+    /** The logger of this connection's deploy, or {@code null}. */
+    private ScmLogger logger;
+
     /**
      * Get the {@link ScmManager} used in this Wagon.
      *
@@ -136,6 +279,26 @@ public class GitSiteWagon extends AbstractWagon {
         this.scmManager = scmManager;
     }
 
+    /**
+     * Get the backends available to this Wagon.
+     *
+     * @return the backends, keyed by role hint, or {@code null} if only the
+     *         built-in backends are available.
+     */
+    public Map<String, GitSiteBackend> getBackends() {
+        return backends;
+    }
+
+    /**
+     * Set the backends available to this Wagon. Each backend is used for a
+     * single connection.
+     *
+     * @param backends the backends, keyed by role hint.
+     */
+    public void setBackends(Map<String, GitSiteBackend> backends) {
+        this.backends = backends;
+    }
+
     /**
      * Get the {@link siteBranch} used in this Wagon.
      *
@@ -174,6 +337,303 @@ public class GitSiteWagon extends AbstractWagon {
         this.checkoutDirectory = checkoutDirectory;
     }
 
+    /**
+     * Get the directory holding the persistent site branch mirrors.
+     *
+     * @return the cache directory, or {@code null} if no cache is used.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory holding the persistent site branch mirrors. The
+     * mirrors survive between builds and are refreshed with an incremental
+     * fetch before each deploy.
+     *
+     * @param cacheDirectory the cache directory, or {@code null} to not use a
+     *                       cache.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Whether only the tip of the site branch is fetched.
+     *
+     * @return {@code true} if the fetch is shallow.
+     */
+    public boolean isShallow() {
+        return shallow;
+    }
+
+    /**
+     * Set whether only the tip of the site branch is fetched, with a depth of
+     * one, rather than its whole history. The commit and push work from the
+     * shallow base, since the remote repository already has the history.
+     *
+     * @param shallow {@code true} to fetch only the tip of the site branch.
+     */
+    public void setShallow(boolean shallow) {
+        this.shallow = shallow;
+    }
+
+    /**
+     * Whether blobs are fetched on demand.
+     *
+     * @return {@code true} if the fetch is a partial clone.
+     */
+    public boolean isPartialClone() {
+        return partialClone;
+    }
+
+    /**
+     * Set whether blobs are fetched on demand rather than with the commits
+     * and trees. Only applies when no cache directory is used.
+     *
+     * @param partialClone {@code true} to fetch blobs on demand.
+     */
+    public void setPartialClone(boolean partialClone) {
+        this.partialClone = partialClone;
+    }
+
+    /**
+     * Get the deploy mode.
+     *
+     * @return the deploy mode.
+     */
+    public String getDeployMode() {
+        return deployMode;
+    }
+
+    /**
+     * Set the deploy mode. {@link #DEPLOY_MODE_CHECKOUT} copies the site into
+     * a working tree of the site branch. {@link #DEPLOY_MODE_OBJECTS} hashes
+     * the site straight into blobs and the index, and commits on top of the
+     * site branch tip without ever writing a working tree, saving the copy and
+     * the full-tree status scan. The check-out directory then only holds the
+     * git metadata: the index and the objects of the changed files, read in
+     * place from the source directory.
+     *
+     * @param deployMode the deploy mode.
+     */
+    public void setDeployMode(String deployMode) {
+        this.deployMode = deployMode;
+    }
+
+    /**
+     * Whether deployed directories replace the old contents entirely.
+     *
+     * @return {@code true} if stale files are deleted.
+     */
+    public boolean isMirror() {
+        return mirror;
+    }
+
+    /**
+     * Set whether deployed directories replace the old contents entirely. In
+     * mirror mode, every file in the destination directory of a deployed
+     * directory that is not in the deployed directory is deleted from the site
+     * branch.
+     *
+     * @param mirror {@code true} to delete stale files.
+     */
+    public void setMirror(boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * Whether concurrent deploys to the same site branch are coalesced.
+     *
+     * @return {@code true} if deploys are coalesced.
+     */
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * Set whether concurrent deploys to the same site branch are coalesced
+     * into one commit and push, as the modules of a parallel build do. The
+     * site branch is fetched into a check-out directory shared by the
+     * deploys, next to a lock file in the cache directory, or in the
+     * temporary directory if there is no cache; the check-out directory set
+     * on the wagon is not used. Deploys in other processes wait for the lock.
+     *
+     * @param coalesce {@code true} to coalesce deploys.
+     * @see   GitSiteDeployCoordinator
+     */
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Get how long a coalesced deploy waits for the other deploys.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getCoalesceTimeout() {
+        return coalesceTimeout;
+    }
+
+    /**
+     * Set how long a coalesced deploy waits for its round to open, including
+     * for deploys in other processes to release the lock file, and for the
+     * other deploys in its round to finish. Defaults to ten minutes. A deploy
+     * that times out fails, and aborts its round if it was in one.
+     *
+     * @param coalesceTimeout the timeout in milliseconds.
+     */
+    public void setCoalesceTimeout(long coalesceTimeout) {
+        this.coalesceTimeout = coalesceTimeout;
+    }
+
+    /**
+     * Get the backend.
+     *
+     * @return the backend.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Set the backend, the role hint of a {@link GitSiteBackend} component.
+     * {@link #BACKEND_GITEXE} runs the git executable. {@link #BACKEND_JGIT}
+     * fetches, stages, commits and pushes in-process with JGit, without a
+     * working tree, whatever the deploy mode. {@link #BACKEND_MEMORY} keeps
+     * the site branches in memory. The persistent mirror cache and the
+     * shallow and partial clone settings only apply to the git executable.
+     *
+     * @param backend the backend.
+     */
+    public void setBackend(String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Get a new instance of the configured backend.
+     *
+     * <p>The plexus components are used if there are any. Without plexus, the
+     * built-in backends are instantiated directly.</p>
+     *
+     * @return the backend.
+     *
+     * @throws ScmException if there is no such backend.
+     */
+    private GitSiteBackend lookupBackend() throws ScmException {
+        if (backends != null && backends.containsKey(backend)) {
+            return backends.get(backend);
+        } else if (BACKEND_GITEXE.equals(backend)) {
+            return new GitExeSiteBackend();
+        } else if (BACKEND_JGIT.equals(backend)) {
+            return new JGitSiteBackend();
+        } else if (BACKEND_MEMORY.equals(backend)) {
+            return new InMemorySiteBackend();
+        }
+
+        throw new ScmException("Unknown backend: " + backend);
+    }
+
+    /**
+     * Whether the git executable is used with a working tree.
+     *
+     * @return {@code true} if the site is copied into a working tree checked
+     *         out by the git executable.
+     */
+    private boolean isWorkTreeCheckOut() {
+        return BACKEND_GITEXE.equals(backend) && isWorkTreeDeploy();
+    }
+
+    /**
+     * Get the number of threads walking, hashing and copying the site.
+     *
+     * @return the number of threads.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Set the number of threads walking, hashing and copying the site.
+     * Defaults to the number of processors. One does all the work on the
+     * calling thread.
+     *
+     * @param parallelism the number of threads.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get the file the metrics of each deploy are written to.
+     *
+     * @return the metrics file, or {@code null} if none is written.
+     */
+    public File getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * Set the file the metrics of each deploy are written to, as JSON, when
+     * the connection is closed. The file is overwritten by each deploy.
+     *
+     * @param metricsFile the metrics file, or {@code null} to write none.
+     */
+    public void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * Add a listener to be notified of the metrics of each deploy phase.
+     *
+     * @param listener the listener.
+     */
+    public void addMetricsListener(GitSiteMetricsListener listener) {
+        if (!metricsListeners.contains(listener)) {
+            metricsListeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a metrics listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeMetricsListener(GitSiteMetricsListener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    /**
+     * Get the metrics of the current or last deploy.
+     *
+     * @return the metrics, or {@code null} if no connection has been opened.
+     */
+    public GitSiteDeployMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Record the measurement of a phase and notify the listeners.
+     *
+     * @param phase the measured phase.
+     */
+    private void firePhaseCompleted(GitSitePhaseMetrics phase) {
+        metrics.add(phase);
+
+        for (GitSiteMetricsListener listener : metricsListeners) {
+            listener.phaseCompleted(phase);
+        }
+    }
+
+    /**
+     * Whether the deploy uses a working tree.
+     *
+     * @return {@code false} if the site is written straight into objects.
+     */
+    private boolean isWorkTreeDeploy() {
+        return !DEPLOY_MODE_OBJECTS.equals(deployMode);
+    }
+
     /**
      * Convenience method to get the {@link ScmProvider} implementation to
      * handle the provided SCM type.
@@ -195,19 +655,33 @@ public class GitSiteWagon extends AbstractWagon {
      * @throws ConnectionException
      */
     public void openConnectionInternal() throws ConnectionException {
+        checkoutRelPath = null;
+
+        deployedResources.clear();
+        putFailed = false;
+
+        metrics = new GitSiteDeployMetrics(getRepository().getUrl(), siteBranch, backend, deployMode);
+
+        if (coalesce) {
+            // The coordinator's check-out directory is used once the site branch is fetched.
+            return;
+        }
+
         if (checkoutDirectory == null) {
             checkoutDirectory = createCheckoutDirectory();
-        }
 
-        if (checkoutDirectory.exists()) {
+            // Have the trash of earlier runs deleted while this one works.
+            GitSiteTrash.reap();
+        } else {
             removeCheckoutDirectory();
-        }
 
-        checkoutDirectory.mkdirs();
+            checkoutDirectory.mkdirs();
+        }
     }
 
     /**
-     * Create the checkout directory.
+     * Create the checkout directory. The name is only taken once the
+     * directory is made, since wagons on other threads may pick the same.
      *
      * @return the File representing the checkout directory.
      */
@@ -221,13 +695,14 @@ public class GitSiteWagon extends AbstractWagon {
         do {
             checkoutDirectory = new File(System.getProperty("java.io.tmpdir"),
                                          "wagon-scm" + fmt.format(Math.abs(rand.nextInt())) + ".checkout");
-        } while (checkoutDirectory.exists());
+        } while (!checkoutDirectory.mkdirs());
 
         return checkoutDirectory;
     }
 
     /**
-     * Remove (delete) the checkout directory.
+     * Remove (delete) the checkout directory. It is moved to the trash at once
+     * and deleted in the background.
      *
      * @throws ConnectionException if unable to clean up the checkout directory.
      */
@@ -237,7 +712,7 @@ public class GitSiteWagon extends AbstractWagon {
         }
 
         try {
-            FileUtils.deleteDirectory(checkoutDirectory);
+            GitSiteTrash.remove(checkoutDirectory);
         } catch (IOException e) {
             throw new ConnectionException("Unable to cleanup checkout directory", e);
         }
@@ -301,67 +776,88 @@ public class GitSiteWagon extends AbstractWagon {
     }
 
     /**
-     * Configure and perform the check-in process.
+     * Configure and perform the check-out process.
      *
-     * @param  scmProvider   the SCM provider.
-     * @param  scmRepository the SCM repository.
-     * @param  msg           the commit message.
+     * <p>The deepest existing ancestor of targetName and the directories
+     * missing below it are resolved with one lookup in the index of the site
+     * branch tree, and the missing directories are created in the working
+     * tree.</p>
      *
-     * @throws ScmException
+     * @param  scmProvider the SCM provider.
+     * @param  targetName  the check-out directory.
+     * @param  resource    the resource.
+     *
+     * @return the relative path to targetName in the check-out directory.
+     *
+     * @throws TransferFailedException
      */
-    private void checkIn(ScmProvider scmProvider, ScmRepository scmRepository, String msg) throws ScmException {
-        CommandParameters parameters = new CommandParameters();
+    private String checkOut(ScmProvider scmProvider, String targetName, Resource resource) throws TransferFailedException {
+        String relPath = checkOutSite(scmProvider, resource, true);
+
+        GitSitePhaseMetrics phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_RESOLVE);
+
+        String                      target     = getRepositoryPath(new File(checkoutDirectory, relPath + targetName));
+        GitSiteTreeIndex.Resolution resolution = getTreeIndex(resource, TransferEvent.REQUEST_PUT).resolve(target);
+
+        firePhaseCompleted(phase.end(0, 0));
 
-        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(siteBranch));
+        String path = resolution.getDirectory().length() == 0 ? "" : resolution.getDirectory() + '/';
 
-        parameters.setString(CommandParameter.MESSAGE, msg);
+        // now create the subdirs in target, if it's a parent of targetName
+
+        for (String p : resolution.getMissing()) {
+            path += p + '/';
 
-        ScmResult result = (CheckInScmResult) executeCommand((GitExeScmProvider) scmProvider, new GitSiteCheckInCommand(),
-                                                             scmRepository.getProviderRepository(),
-                                                             new ScmFileSet(checkoutDirectory), parameters);
+            File newDir = new File(checkoutDirectory, path);
+
+            // An earlier put in this connection, or in another connection of
+            // a coalesced deploy, may already have created it.
+            if (!newDir.mkdirs() && !newDir.isDirectory()) {
+                throw new TransferFailedException("Failed to create directory " + newDir.getAbsolutePath() + "; parent should exist: "
+                                                  + checkoutDirectory);
+            }
+        }
 
-        checkScmResult(result);
+        return path;
     }
 
     /**
-     * Configure and perform the check-out process.
+     * Fetch the site branch with the backend, unless that has already been
+     * done in this connection.
      *
-     * <p>Returns the relative path to targetName in the checkout dir. If the
-     * targetName already exists in the scm, this will be the empty string.</p>
+     * <p>A site branch fetched without a working tree, to get resources, is
+     * fetched again if a working tree is then needed to put resources.</p>
      *
-     * @param  scmProvider   the SCM provider.
-     * @param  scmRepository the SCM repository.
-     * @param  targetName    the check-out directory.
-     * @param  resource      the resource.
+     * @param  scmProvider the SCM provider.
+     * @param  resource    the resource.
+     * @param  workTree    {@code false} if the site branch is only read, so
+     *                     the working tree need not be checked out whatever
+     *                     the deploy mode.
      *
-     * @return the relative path to targetName in the check-out directory.
+     * @return the relative path of the repository in the check-out directory.
      *
      * @throws TransferFailedException
      */
-    private String checkOut(ScmProvider scmProvider, ScmRepository scmRepository, String targetName, Resource resource)
-        throws TransferFailedException {
-        checkoutDirectory = createCheckoutDirectory();
+    private String checkOutSite(ScmProvider scmProvider, Resource resource, boolean workTree) throws TransferFailedException {
+        workTree = workTree && isWorkTreeDeploy();
 
-        Stack<String> stack = new Stack<String>();
+        if (checkoutRelPath != null && (checkoutWorkTree || !workTree)) {
+            return checkoutRelPath;
+        }
 
-        String target = targetName;
+        treeIndex = null;
 
-        // Totally ignore scmRepository parent stuff since that is not supported by all SCMs.
-        // Instead, assume that that url exists. If not, then that's an error.
-        // Check whether targetName, which is a relative path into the scm, exists.
-        // If it doesn't, check the parent, etc.
+        if (siteBackend != null) {
+            siteBackend.close();
+            siteBackend = null;
 
-        try {
-            while (target.length() > 0
-                    && !scmProvider.list(scmRepository, new ScmFileSet(new File("."), new File(target)), false, (ScmVersion) null)
-                    .isSuccess()) {
-                stack.push(getFilename(target));
-                target = getDirname(target);
+            if (coordinator == null) {
+                try {
+                    GitSiteTrash.clean(checkoutDirectory);
+                } catch (IOException e) {
+                    throw new TransferFailedException("Unable to clean up the check-out directory: " + e.getMessage(), e);
+                }
             }
-        } catch (ScmException e) {
-            fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
-
-            throw new TransferFailedException("Error listing repository: " + e.getMessage(), e);
         }
 
         /* A URL for a module will look like: 
@@ -385,103 +881,152 @@ public class GitSiteWagon extends AbstractWagon {
         // and the configuration is incorrect. We will not try repo.getParent since most scm's don't
         // implement that.
 
+        if (coalesce && coordinator == null) {
+            coordinator       = GitSiteDeployCoordinator.getInstance(cacheDirectory, url, siteBranch);
+            checkoutDirectory = coordinator.getCheckoutDirectory();
+        }
+
         try {
-            scmRepository = getScmRepository(url);
+            ScmRepository  scmRepository = getScmRepository(url);
+            GitSiteSession session       = new GitSiteSession((GitScmProviderRepository) scmRepository.getProviderRepository(),
+                                                              siteBranch, checkoutDirectory, getLogger(scmProvider));
 
-            CommandParameters parameters = new CommandParameters();
+            session.setCacheDirectory(cacheDirectory);
+            session.setShallow(shallow);
+            session.setPartialClone(partialClone);
+            session.setWorkTree(workTree);
+            session.setParallelism(parallelism);
 
-            parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(siteBranch));
+            GitSiteBackend newBackend = lookupBackend();
 
-            parameters.setString(CommandParameter.RECURSIVE, "false");
+            GitSitePhaseMetrics phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_FETCH);
 
-            CheckOutScmResult ret = (CheckOutScmResult) executeCommand((GitExeScmProvider) scmProvider, new GitSiteCheckOutCommand(),
-                                                                       scmRepository.getProviderRepository(),
-                                                                       new ScmFileSet(new File(checkoutDirectory, "")), parameters);
+            if (coordinator != null) {
+                newBackend = coordinator.join(newBackend, session, coalesceTimeout);
+            } else {
+                newBackend.fetchTip(session);
+            }
+
+            firePhaseCompleted(phase.end(0, 0));
 
-            checkScmResult(ret);
+            siteBackend = newBackend;
+            logger      = session.getLogger();
         } catch (ScmException e) {
             fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
 
             throw new TransferFailedException("Error checking out: " + e.getMessage(), e);
         }
 
-        // now create the subdirs in target, if it's a parent of targetName
-
-        while (!stack.isEmpty()) {
-            String p = (String) stack.pop();
-
-            relPath += p + '/';
-
-            File newDir = new File(checkoutDirectory, relPath);
-
-            if (!newDir.mkdirs()) {
-                throw new TransferFailedException("Failed to create directory " + newDir.getAbsolutePath() + "; parent should exist: "
-                                                  + checkoutDirectory);
-            }
-
-            try {
-                addFiles(scmProvider, scmRepository, checkoutDirectory, relPath);
-            } catch (ScmException e) {
-                fireTransferError(resource, e, TransferEvent.REQUEST_PUT);
-
-                throw new TransferFailedException("Failed to add directory " + newDir + " to working copy", e);
-            }
-        }
+        checkoutRelPath  = relPath;
+        checkoutWorkTree = workTree;
 
         return relPath;
     }
 
     /**
-     * Add a file or directory to a SCM repository. If it's a directory all its
-     * contents are added recursively.
+     * Stage a file or directory with the backend, skipping every file whose
+     * content is already in the site branch.
      *
-     * <p>TODO this is less than optimal, SCM API should provide a way to add a
-     * directory recursively</p>
+     * <p>Files are compared by their git blob id, computed from the source
+     * file and listed by the backend for the target. The source is walked and
+     * hashed by a {@link SourceScan} started before the fetch; the files are
+     * staged in path order whatever the number of threads.</p>
      *
-     * @param  scmProvider   SCM provider
-     * @param  scmRepository SCM repository
-     * @param  basedir       local directory corresponding to scmRepository
-     * @param  scmFilePath   path of the file or directory to add, relative to
-     *                       basedir
+     * @param  scan       the scan of the source.
+     * @param  source     the file or directory to deploy.
+     * @param  targetPath the path of the file or directory in the site
+     *                    branch.
      *
-     * @return the number of files added.
+     * @return the number of files staged.
      *
      * @throws ScmException
+     * @throws IOException
      */
-    private int addFiles(ScmProvider scmProvider, ScmRepository scmRepository, File basedir, String scmFilePath) throws ScmException {
-        int addedFiles = 0;
+    private int syncFiles(SourceScan scan, File source, String targetPath) throws ScmException, IOException {
+        GitSitePhaseMetrics phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_LIST);
 
-        File scmFile = new File(basedir, scmFilePath);
+        Map<String, String> blobIds = siteBackend.listTree(targetPath);
 
-        if (scmFilePath.length() != 0) {
-            AddScmResult result = scmProvider.add(scmRepository, new ScmFileSet(basedir, new File(scmFilePath)));
+        firePhaseCompleted(phase.end(blobIds.size(), 0));
 
-            /*
-             * TODO dirty fix to work around files with property svn:eol-style=native if a file has that property, first
-             * time file is added it fails, second time it succeeds the solution is check if the scm provider is svn and
-             * unset that property when the SCM API allows it
-             */
-            if (!result.isSuccess()) {
-                result = scmProvider.add(scmRepository, new ScmFileSet(basedir, new File(scmFilePath)));
+        List<GitSiteTreeScanner.Entry> entries = scan.getEntries();
+
+        firePhaseCompleted(scan.getPhase());
+
+        Map<String, File> changedFiles = new LinkedHashMap<String, File>();
+
+        int  unchanged    = 0;
+        int  modified     = 0;
+        int  added        = 0;
+        long changedBytes = 0;
+
+        for (GitSiteTreeScanner.Entry entry : entries) {
+            String relativePath = entry.getPath();
+            String path         = targetPath.length() == 0 ? relativePath
+                                                           : relativePath.length() == 0 ? targetPath : targetPath + "/" + relativePath;
+            String blobId       = blobIds.remove(path);
+
+            if (blobId != null && blobId.equals(entry.getBlobId())) {
+                unchanged++;
+                continue;
+            }
+
+            if (blobId == null) {
+                added++;
+            } else {
+                modified++;
             }
 
-            addedFiles = result.getAddedFiles().size();
+            changedFiles.put(path, entry.getFile());
+            changedBytes += entry.getLength();
         }
 
-        String reservedScmFile = scmProvider.getScmSpecificFilename();
+        if (logger.isInfoEnabled()) {
+            logger.info("Deploying " + source.getName() + ": " + unchanged + " unchanged, " + modified + " modified, " + added
+                        + " added, " + blobIds.size() + " deleted files");
+        }
 
-        if (scmFile.isDirectory()) {
-            File[] files = scmFile.listFiles();
+        phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_STAGE);
 
-            for (int i = 0; i < files.length; i++) {
-                if (reservedScmFile != null && !reservedScmFile.equals(files[i].getName())) {
-                    addedFiles += addFiles(scmProvider, scmRepository, basedir,
-                                           (scmFilePath.length() == 0 ? "" : scmFilePath + "/") + files[i].getName());
-                }
+        int staged = siteBackend.stage(changedFiles);
+
+        firePhaseCompleted(phase.end(staged, changedBytes));
+
+        return staged;
+    }
+
+    /**
+     * Get the path of a file in the working copy relative to the check-out
+     * directory, using "/" as separator.
+     *
+     * @param  file the file in the working copy.
+     *
+     * @return the relative path, or the empty string for the check-out
+     *         directory itself.
+     */
+    private String getRepositoryPath(File file) {
+        String base = checkoutDirectory.getAbsolutePath();
+        String path = file.getAbsolutePath();
+
+        if (!path.startsWith(base)) {
+            throw new IllegalArgumentException("Not in the check-out directory: " + file);
+        }
+
+        StringBuffer relativePath = new StringBuffer();
+
+        for (String segment : path.substring(base.length()).replace(File.separatorChar, '/').split("/")) {
+            if (segment.length() == 0 || ".".equals(segment)) {
+                continue;
             }
+
+            if (relativePath.length() > 0) {
+                relativePath.append('/');
+            }
+
+            relativePath.append(segment);
         }
 
-        return addedFiles;
+        return relativePath.toString();
     }
 
     /**
@@ -549,6 +1094,8 @@ public class GitSiteWagon extends AbstractWagon {
 
         firePutInitiated(target, sourceDirectory);
 
+        boolean succeeded = false;
+
         try {
             ScmRepository scmRepository = getScmRepository(getRepository().getUrl());
 
@@ -557,47 +1104,48 @@ public class GitSiteWagon extends AbstractWagon {
 
             firePutStarted(target, sourceDirectory);
 
-            String msg = "Wagon: Deploying " + sourceDirectory.getName() + " to repository";
-
             ScmProvider scmProvider = getScmProvider(scmRepository.getProvider());
 
-            String checkoutTargetName = sourceDirectory.isDirectory() ? destinationDirectory : getDirname(destinationDirectory);
-            String relPath            = checkOut(scmProvider, scmRepository, checkoutTargetName, target);
-
-            File newCheckoutDirectory = new File(checkoutDirectory, relPath);
+            // The source doesn't depend on the site branch, so it is hashed while that is fetched.
+            SourceScan scan = new SourceScan(new GitSiteTreeScanner(parallelism, scmProvider.getScmSpecificFilename()),
+                                             sourceDirectory);
 
-            File scmFile = new File(newCheckoutDirectory, sourceDirectory.isDirectory() ? "" : getFilename(destinationDirectory));
+            scan.start();
 
-            boolean fileAlreadyInScm = scmFile.exists();
+            try {
+                if (isWorkTreeCheckOut()) {
+                    String checkoutTargetName = sourceDirectory.isDirectory() ? destinationDirectory : getDirname(destinationDirectory);
 
-            if (!scmFile.equals(sourceDirectory)) {
-                if (sourceDirectory.isDirectory()) {
-                    FileUtils.copyDirectoryStructure(sourceDirectory, scmFile);
-                } else {
-                    FileUtils.copyFile(sourceDirectory, scmFile);
+                    checkOut(scmProvider, checkoutTargetName, target);
                 }
-            }
 
-            if (!fileAlreadyInScm || scmFile.isDirectory()) {
-                int addedFiles = addFiles(scmProvider, scmRepository, newCheckoutDirectory,
-                                          sourceDirectory.isDirectory() ? "" : scmFile.getName());
+                String relPath    = checkOutSite(scmProvider, target, true);
+                String targetPath = getRepositoryPath(new File(checkoutDirectory, relPath + destinationDirectory));
+
+                syncFiles(scan, sourceDirectory, targetPath);
 
-                if (!fileAlreadyInScm && addedFiles == 0) {
-                    throw new ScmException("Unable to add file to SCM: " + scmFile + "; see error messages above for more information");
+                if (mirror && sourceDirectory.isDirectory()) {
+                    removeStaleFiles(scmProvider, sourceDirectory, targetPath);
                 }
+            } finally {
+                scan.cancel();
             }
 
-            checkIn(scmProvider, scmRepository, msg);
+            deployedResources.add(sourceDirectory.getName());
+            metrics.addResource(sourceDirectory.getName());
+
+            succeeded = true;
         } catch (ScmException e) {
-            e.printStackTrace();
-            fireTransferError(target, e, TransferEvent.REQUEST_GET);
+            fireTransferError(target, e, TransferEvent.REQUEST_PUT);
 
-            System.exit(1);
             throw new TransferFailedException("Error interacting with SCM: " + e.getMessage(), e);
         } catch (IOException e) {
-            fireTransferError(target, e, TransferEvent.REQUEST_GET);
+            fireTransferError(target, e, TransferEvent.REQUEST_PUT);
 
             throw new TransferFailedException("Error interacting with SCM: " + e.getMessage(), e);
+        } finally {
+            // Whatever a failed put staged must not be committed.
+            putFailed |= !succeeded;
         }
 
         if (sourceDirectory.isFile()) {
@@ -608,33 +1156,206 @@ public class GitSiteWagon extends AbstractWagon {
 	}
 
     /**
-     * Check that the ScmResult was a successful operation
+     * Remove the files in the destination directory that are not in the
+     * deployed directory.
      *
-     * @param  result the SCM result.
+     * @param  scmProvider the SCM provider.
+     * @param  source      the deployed directory.
+     * @param  targetPath  the path of the destination directory in the site
+     *                     branch.
      *
      * @throws ScmException
      */
-    private void checkScmResult(ScmResult result) throws ScmException {
-        if (!result.isSuccess()) {
-            throw new ScmException("Unable to commit file. " + result.getProviderMessage() + " "
-                                   + (result.getCommandOutput() == null ? "" : result.getCommandOutput()));
+    private void removeStaleFiles(ScmProvider scmProvider, File source, String targetPath) throws ScmException {
+        GitSitePhaseMetrics phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_REMOVE_STALE);
+
+        int removed = siteBackend.removeStale(targetPath, new GitSiteTreeWalker(source, scmProvider.getScmSpecificFilename()));
+
+        firePhaseCompleted(phase.end(removed, 0));
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Removed " + removed + " stale files from " + (targetPath.length() == 0 ? "." : targetPath));
         }
     }
 
+    /**
+     * Get the logger of the SCM provider.
+     *
+     * @param  scmProvider the SCM provider.
+     *
+     * @return the provider's logger, or a console logger if it has none.
+     */
+    private ScmLogger getLogger(ScmProvider scmProvider) {
+        if (scmProvider instanceof AbstractScmProvider) {
+            return ((AbstractScmProvider) scmProvider).getLogger();
+        }
+
+        return new DefaultLog();
+    }
+
     /**
      * @see org.apache.maven.wagon.AbstractWagon#closeConnection()
      */
     public void closeConnection() throws ConnectionException {
-        removeCheckoutDirectory();
+        try {
+            if (!deployedResources.isEmpty() && !putFailed) {
+                GitSitePhaseMetrics phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_COMMIT);
+
+                siteBackend.commit(getCommitMessage());
+
+                firePhaseCompleted(phase.end(0, 0));
+
+                phase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_PUSH);
+
+                siteBackend.push();
+
+                treeIndex = null;
+
+                long pushedBytes = siteBackend.getPushedBytes();
+
+                firePhaseCompleted(phase.end(0, Math.max(0, pushedBytes)));
+
+                logPushedBytes(pushedBytes);
+
+                fireDeployCompleted();
+            }
+        } catch (ScmException e) {
+            throw new ConnectionException("Error committing to SCM: " + e.getMessage(), e);
+        } finally {
+            if (siteBackend != null) {
+                siteBackend.close();
+                siteBackend = null;
+            }
+
+            deployedResources.clear();
+            putFailed       = false;
+            checkoutRelPath = null;
+            treeIndex       = null;
+            logger          = null;
+        }
+
+        if (coordinator != null) {
+            // The coordinator removes its check-out directory when the round closes.
+            coordinator       = null;
+            checkoutDirectory = null;
+        } else {
+            removeCheckoutDirectory();
+        }
     }
 
     /**
+     * Log the size of the pack pushed against the size of the files changed.
+     *
+     * @param pushedBytes the compressed bytes pushed, or -1 if unknown.
+     */
+    private void logPushedBytes(long pushedBytes) {
+        GitSitePhaseMetrics stage = metrics.getPhase(GitSiteDeployMetrics.PHASE_STAGE);
+
+        if (pushedBytes < 0 || stage == null || !logger.isInfoEnabled()) {
+            return;
+        }
+
+        logger.info("Pushed " + pushedBytes + " bytes for " + stage.getBytes() + " bytes of changed files"
+                    + (stage.getBytes() > 0 ? " (" + String.format("%.1f", pushedBytes * 100.0 / stage.getBytes()) + "%)" : ""));
+    }
+
+    /**
+     * Finish the metrics of the deploy, write them to the metrics file and
+     * notify the listeners.
+     */
+    private void fireDeployCompleted() {
+        metrics.finish();
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Deploy metrics: " + metrics.getTotal());
+        }
+
+        if (metricsFile != null) {
+            try {
+                if (metricsFile.getParentFile() != null) {
+                    metricsFile.getParentFile().mkdirs();
+                }
+
+                FileUtils.fileWrite(metricsFile.getAbsolutePath(), "UTF-8", metrics.toJson());
+            } catch (IOException e) {
+                // The deploy itself succeeded.
+                logger.warn("Unable to write the deploy metrics to " + metricsFile + ": " + e.getMessage());
+            }
+        }
+
+        for (GitSiteMetricsListener listener : metricsListeners) {
+            listener.deployCompleted(metrics);
+        }
+    }
+
+    /**
+     * Get the commit message for the resources deployed in this connection.
+     *
+     * @return the commit message.
+     */
+    private String getCommitMessage() {
+        StringBuilder names = new StringBuilder();
+
+        for (String name : deployedResources) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+
+            names.append(name);
+        }
+
+        return "Wagon: Deploying " + names + " to repository";
+    }
+
+    /**
+     * Get a file of the site branch if the last commit that changed it is
+     * newer than a timestamp.
+     *
+     * <p>The file is streamed from the site branch into the destination file,
+     * without checking out a working tree or holding the file in memory.</p>
+     *
      * @see org.apache.maven.wagon.Wagon#getIfNewer(java.lang.String,java.io.File,
      *      long)
      */
     public boolean getIfNewer(String resourceName, File destination, long timestamp) throws TransferFailedException,
         ResourceDoesNotExistException, AuthorizationException {
-        throw new UnsupportedOperationException("Not currently supported: getIfNewer");
+        Resource resource = new Resource(resourceName);
+
+        fireGetInitiated(resource, destination);
+
+        String      path = getSitePath(resource);
+        InputStream in;
+
+        try {
+            long lastModified = siteBackend.getLastModified(path);
+
+            if (lastModified == 0) {
+                throw new ResourceDoesNotExistException("The file " + path + " does not exist in " + siteBranch);
+            }
+
+            resource.setLastModified(lastModified);
+
+            if (timestamp > 0 && lastModified <= timestamp) {
+                return false;
+            }
+
+            in = siteBackend.openFile(path);
+        } catch (ScmException e) {
+            fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+
+            throw new TransferFailedException("Error reading from SCM: " + e.getMessage(), e);
+        }
+
+        try {
+            getTransfer(resource, destination, in);
+        } finally {
+            // Stop the reader if the transfer failed before reading to the end.
+            IOUtil.close(in);
+        }
+
+        destination.setLastModified(resource.getLastModified());
+
+        return true;
     }
 
     /**
@@ -642,16 +1363,20 @@ public class GitSiteWagon extends AbstractWagon {
      */
     public void get(String resourceName, File destination) throws TransferFailedException, ResourceDoesNotExistException,
         AuthorizationException {
-        throw new UnsupportedOperationException("Not currently supported: get");
+        getIfNewer(resourceName, destination, 0);
     }
 
     /**
      * Get the file list for the resource.
      *
+     * <p>The list is answered from the index of the site branch tree, listed
+     * once per connection. Files put in this connection are not listed until
+     * they have been pushed and the site branch fetched again.</p>
+     *
      * @param  resourcePath the resource path.
      *
      * @return a List&lt;String&gt; with filenames/directories at the
-     *         resourcepath.
+     *         resourcepath, directories ending with "/".
      *
      * @throws TransferFailedException
      * @throws ResourceDoesNotExistException
@@ -661,65 +1386,85 @@ public class GitSiteWagon extends AbstractWagon {
      */
     public List<String> getFileList(String resourcePath) throws TransferFailedException, ResourceDoesNotExistException,
         AuthorizationException {
-        try {
-            ScmRepository repository = getScmRepository(getRepository().getUrl());
-            ScmProvider   provider   = getScmProvider(repository.getProvider());
-            ListScmResult result     = provider.list(repository,
-                                                     new ScmFileSet(new File("."), new File(resourcePath)), false, (ScmVersion) null);
-
-            if (!result.isSuccess()) {
-                throw new ResourceDoesNotExistException(result.getProviderMessage());
-            }
-
-            List<String> files = new ArrayList<String>();
-
-            for (ScmFile f : getListScmResultFiles(result)) {
-                files.add(f.getPath());
-                System.out.println("LIST FILE: " + f + " (path=" + f.getPath() + ")");
-            }
+        Resource         resource = new Resource(resourcePath);
+        String           path     = getSitePath(resource);
+        GitSiteTreeIndex index    = getTreeIndex(resource, TransferEvent.REQUEST_GET);
+        List<String>     files    = index.list(path);
 
+        if (files != null) {
             return files;
-        } catch (ScmException e) {
-            throw new TransferFailedException("Error getting filelist from SCM", e);
         }
+
+        if (!index.exists(path)) {
+            throw new ResourceDoesNotExistException("The path " + path + " does not exist in " + siteBranch);
+        }
+
+        return Collections.singletonList(path.substring(path.lastIndexOf('/') + 1));
     }
 
     /**
-     * Wrapper around listScmResult.getFiles() to avoid having a larger method
-     * needing the suppressWarnings attribute.
-     *
-     * @param  result the ListScmResult.
-     *
-     * @return the files.
+     * @see org.apache.maven.wagon.AbstractWagon#resourceExists(java.lang.String)
      */
-    @SuppressWarnings("unchecked")
-    private List<ScmFile> getListScmResultFiles(ListScmResult result) {
-        return (List<ScmFile>) result.getFiles();
+    public boolean resourceExists(String resourceName) throws TransferFailedException, AuthorizationException {
+        Resource resource = new Resource(resourceName);
+        String   path     = getSitePath(resource);
+
+        return getTreeIndex(resource, TransferEvent.REQUEST_GET).exists(path);
     }
 
     /**
-     * @see org.apache.maven.wagon.AbstractWagon#resourceExists(java.lang.String)
+     * Fetch the site branch, if not already done in this connection, to read
+     * a resource, and get the path of the resource in the site branch.
+     *
+     * @param  resource the resource.
+     *
+     * @return the path of the resource, relative to the root of the site
+     *         branch.
+     *
+     * @throws TransferFailedException if the site branch cannot be fetched.
      */
-    public boolean resourceExists(String resourceName) throws TransferFailedException, AuthorizationException {
-        try {
-            getFileList(resourceName);
-            return true;
-        } catch (ResourceDoesNotExistException e) {
-            return false;
+    private String getSitePath(Resource resource) throws TransferFailedException {
+        String relPath = checkoutRelPath;
+
+        if (relPath == null) {
+            try {
+                ScmRepository scmRepository = getScmRepository(getRepository().getUrl());
+                ScmProvider   scmProvider   = getScmProvider(scmRepository.getProvider());
+
+                relPath = checkOutSite(scmProvider, resource, false);
+            } catch (ScmException e) {
+                fireTransferError(resource, e, TransferEvent.REQUEST_GET);
+
+                throw new TransferFailedException("Error interacting with SCM: " + e.getMessage(), e);
+            }
         }
+
+        return getRepositoryPath(new File(checkoutDirectory, relPath + resource.getName()));
     }
 
     /**
-     * Get the filename format for a file.
+     * Get the index of the fetched site branch tree, listing it if that has
+     * not been done since the fetch.
      *
-     * @param  filename the file name.
+     * @param  resource    the resource.
+     * @param  requestType the request type of the resource, for errors.
+     *
+     * @return the tree index.
      *
-     * @return the file name.
+     * @throws TransferFailedException if the tree cannot be listed.
      */
-    private String getFilename(String filename) {
-        String fname = StringUtils.replace(filename, "/", File.separator);
+    private GitSiteTreeIndex getTreeIndex(Resource resource, int requestType) throws TransferFailedException {
+        if (treeIndex == null) {
+            try {
+                treeIndex = new GitSiteTreeIndex(siteBackend.listTip());
+            } catch (ScmException e) {
+                fireTransferError(resource, e, requestType);
+
+                throw new TransferFailedException("Error listing the site branch: " + e.getMessage(), e);
+            }
+        }
 
-        return FileUtils.filename(fname);
+        return treeIndex;
     }
 
     /**
@@ -736,22 +1481,136 @@ public class GitSiteWagon extends AbstractWagon {
     }
 
     /**
-     * Wrapper around gitCommand.execute to handle setting the logger.
+     * Walk and hash a source file or directory on another thread, so that it
+     * overlaps the fetch of the site branch.
      *
-     * @param  scmProvider the SCM provider.
-     * @param  command     the command.
-     * @param  repository  the SCM repository.
-     * @param  fileSet     the file set.
-     * @param  parameters  any parameters to the command.
-     *
-     * @return the SCM result.
-     *
-     * @throws ScmException
+     * <p>The scans of every wagon in the JVM share a fixed number of daemon
+     * threads, one per processor. A put started while they are all busy
+     * waits for its scan rather than starting another thread.</p>
      */
-    protected ScmResult executeCommand(GitExeScmProvider scmProvider, GitCommand command, ScmProviderRepository repository,
-            ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
-        command.setLogger(scmProvider.getLogger());
+    private static class SourceScan implements Callable<List<GitSiteTreeScanner.Entry>> {
+
+        /** The threads the scans run on. */
+        private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                                                     new ScanThreadFactory());
+
+        /** The scanner. */
+        private GitSiteTreeScanner scanner;
+
+        /** The source file or directory. */
+        private File source;
 
-        return command.execute(repository, fileSet, parameters);
+        /** The scan phase, measured on the scanning thread. */
+        private GitSitePhaseMetrics phase;
+
+        /** The scan in progress, once started. */
+        private Future<List<GitSiteTreeScanner.Entry>> task;
+
+        /**
+         * Create a new SourceScan object.
+         *
+         * @param scanner the scanner.
+         * @param source  the source file or directory.
+         */
+        public SourceScan(GitSiteTreeScanner scanner, File source) {
+            this.scanner = scanner;
+            this.source  = source;
+        }
+
+        /**
+         * Start the scan.
+         */
+        public void start() {
+            task = EXECUTOR.submit(this);
+        }
+
+        /**
+         * Wait for the scan to finish.
+         *
+         * @return the entries, sorted by path.
+         *
+         * @throws IOException if a file cannot be read.
+         */
+        public List<GitSiteTreeScanner.Entry> getEntries() throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted while scanning");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw new IllegalStateException("Unable to scan " + source + ": " + e.getCause());
+            }
+        }
+
+        /**
+         * Get the scan phase, once the scan has finished.
+         *
+         * @return the phase.
+         */
+        public GitSitePhaseMetrics getPhase() {
+            return phase;
+        }
+
+        /**
+         * Stop the scan if it is still running, as when the fetch fails.
+         */
+        public void cancel() {
+            if (task != null) {
+                task.cancel(true);
+            }
+        }
+
+        /**
+         * @see java.util.concurrent.Callable#call()
+         */
+        public List<GitSiteTreeScanner.Entry> call() throws IOException {
+            GitSitePhaseMetrics scanPhase = GitSitePhaseMetrics.begin(GitSiteDeployMetrics.PHASE_SCAN);
+
+            List<GitSiteTreeScanner.Entry> entries;
+
+            if (source.isDirectory()) {
+                entries = scanner.scan(source);
+            } else {
+                entries = Collections.singletonList(new GitSiteTreeScanner.Entry("", source, new GitBlobHasher().hash(source)));
+            }
+
+            long scannedBytes = 0;
+
+            for (GitSiteTreeScanner.Entry entry : entries) {
+                scannedBytes += entry.getLength();
+            }
+
+            phase = scanPhase.end(entries.size(), scannedBytes);
+
+            return entries;
+        }
+
+        /**
+         * Create the daemon threads of the scans, so that an idle one doesn't
+         * keep the JVM from exiting.
+         */
+        private static class ScanThreadFactory implements ThreadFactory {
+
+            /** The number of threads created. */
+            private AtomicInteger count = new AtomicInteger();
+
+            /**
+             * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+             */
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gitsite-scan-" + count.incrementAndGet());
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        }
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Compute git blob ids of files in-process, as "git hash-object" would
+ * without filters.
+ *
+ * <p>Files are read through a direct buffer reused for every file, so that
+ * the bytes go from the file to the digest without being copied onto the
+ * heap. Files are not memory-mapped, since a mapping cannot be released
+ * before it is garbage collected, and keeps the file locked on Windows until
+ * then. Apart from the returned id and the channel of each file, nothing is
+ * allocated per file.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitBlobHasher {
+
+    /** The size of the read buffer. */
+    public static final int BUFFER_SIZE = 65536;
+
+    /** The hex digits. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The SHA-1 digest. */
+    private MessageDigest digest;
+
+    /** The read buffer. */
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /** The "blob &lt;length&gt;\0" header, long enough for any length. */
+    private byte[] header = new byte[32];
+
+    /** The raw blob id. */
+    private byte[] id = new byte[20];
+
+    /** The hex-encoded blob id. */
+    private char[] hex = new char[40];
+
+    /**
+     * Create a new GitBlobHasher object.
+     */
+    public GitBlobHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available");
+        }
+    }
+
+    /**
+     * Compute the blob id of a file.
+     *
+     * @param  file the file.
+     *
+     * @return the hex-encoded blob id.
+     *
+     * @throws IOException if the file cannot be read, or changes size while
+     *                     it is read.
+     */
+    public String hash(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            FileChannel channel = in.getChannel();
+            long        length  = channel.size();
+
+            digest.reset();
+            updateHeader(length);
+
+            long read = 0;
+
+            buffer.clear();
+
+            for (int n = channel.read(buffer); n >= 0; n = channel.read(buffer)) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+
+                read += n;
+            }
+
+            if (read != length) {
+                throw new IOException("File changed while it was hashed: " + file);
+            }
+        } finally {
+            in.close();
+        }
+
+        try {
+            digest.digest(id, 0, id.length);
+        } catch (DigestException e) {
+            throw new IllegalStateException("SHA-1 is not 20 bytes");
+        }
+
+        for (int i = 0; i < id.length; i++) {
+            hex[i * 2]     = HEX[(id[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[id[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Digest the "blob &lt;length&gt;\0" header of a blob.
+     *
+     * @param length the length of the blob.
+     */
+    private void updateHeader(long length) {
+        int end = header.length;
+
+        header[--end] = 0;
+
+        do {
+            header[--end] = (byte) ('0' + length % 10);
+            length        /= 10;
+        } while (length > 0);
+
+        header[--end] = ' ';
+        header[--end] = 'b';
+        header[--end] = 'o';
+        header[--end] = 'l';
+        header[--end] = 'b';
+
+        digest.update(header, end, header.length - end);
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmBranch;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSitePushBackoff;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker;
+
+/**
+ * Backend running the git executable for every operation.
+ *
+ * <p>The site branch is checked out into the session's working directory,
+ * either with a working tree the files are copied into and added from, or
+ * with only an index the files are hashed into. The commit is pushed to the
+ * site branch of the "origin" remote; if the push is rejected because the
+ * site branch has moved, the commit is replayed onto the new tip with
+ * {@link GitSiteRebaseCommand} and pushed again.</p>
+ *
+ * <p>Files are read from the fetched tip, whatever has been staged since.
+ * Object queries and blob reads go through a {@link GitSiteCatFilePool} of
+ * long-lived "git cat-file" processes, stopped when the backend is closed.</p>
+ *
+ * @plexus.component role="org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend"
+ *                   role-hint="gitexe" instantiation-strategy="per-lookup"
+ * @author           Kathryn Huxtable
+ */
+public class GitExeSiteBackend implements GitSiteBackend {
+
+    /** The maximum number of "git cat-file" processes of each kind. */
+    private static final int CAT_FILE_PROCESSES = 4;
+
+    /** The session, or {@code null} before the fetch. */
+    private GitSiteSession session;
+
+    /** The object query processes, or {@code null} until first used. */
+    private GitSiteCatFilePool catFilePool;
+
+    /** The compressed bytes sent by the last push. */
+    private long pushedBytes;
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#fetchTip(org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession)
+     */
+    public void fetchTip(GitSiteSession session) throws ScmException {
+        this.session = session;
+
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(session.getSiteBranch()));
+
+        parameters.setString(CommandParameter.RECURSIVE, "false");
+
+        GitSiteCheckOutCommand command = new GitSiteCheckOutCommand();
+
+        command.setCacheDirectory(session.getCacheDirectory());
+        command.setShallow(session.isShallow());
+        command.setPartialClone(session.isPartialClone());
+        command.setWorkTree(session.isWorkTree());
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory()), parameters);
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTree(java.lang.String)
+     */
+    public Map<String, String> listTree(String path) throws ScmException {
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setString(CommandParameter.RECURSIVE, "true");
+
+        GitSiteListBlobsCommand command = new GitSiteListBlobsCommand();
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory(), new File(path)), parameters);
+
+        return command.getBlobIds();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTip()
+     */
+    public List<String> listTip() throws ScmException {
+        GitSiteListTreeCommand command = new GitSiteListTreeCommand();
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory()), new CommandParameters());
+
+        return command.getPaths();
+    }
+
+    /**
+     * Check the path with the cat-file pool, and find the last commit
+     * changing it with "git log", which walks the history with one tree diff
+     * per commit. The pool would need a round trip per commit instead, and in
+     * a partial clone each lookup would fetch the historic blob it resolves.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getLastModified(java.lang.String)
+     */
+    public long getLastModified(String path) throws ScmException {
+        GitSiteCatFilePool.ObjectInfo info = getCatFilePool().getInfo(GitSiteCheckOutCommand.TIP + ":" + path);
+
+        if (info == null || !"blob".equals(info.getType())) {
+            return 0;
+        }
+
+        GitSiteLastModifiedCommand command = new GitSiteLastModifiedCommand();
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory(), new File(path)), new CommandParameters());
+
+        return command.getLastModified();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#openFile(java.lang.String)
+     */
+    public InputStream openFile(String path) throws ScmException {
+        InputStream in = getCatFilePool().open(GitSiteCheckOutCommand.TIP + ":" + path);
+
+        if (in == null) {
+            throw new ScmException("The file " + path + " does not exist in " + session.getSiteBranch());
+        }
+
+        return in;
+    }
+
+    /**
+     * Copy the files into the working tree and add them, or hash them straight
+     * into the index if there is no working tree.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#stage(java.util.Map)
+     */
+    public int stage(Map<String, File> files) throws ScmException {
+        if (files.isEmpty()) {
+            return 0;
+        }
+
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setString(CommandParameter.MESSAGE, "");
+
+        parameters.setString(CommandParameter.BINARY, "false");
+
+        if (!session.isWorkTree()) {
+            GitSiteUpdateIndexCommand command = new GitSiteUpdateIndexCommand();
+
+            command.setSourceFiles(files);
+
+            executeCommand(command, new ScmFileSet(session.getWorkingDirectory()), parameters);
+
+            return files.size();
+        }
+
+        Map<File, File> copies = new LinkedHashMap<File, File>();
+        List<File>      paths  = new ArrayList<File>(files.size());
+
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            File target = new File(session.getWorkingDirectory(), entry.getKey());
+
+            if (!target.equals(entry.getValue())) {
+                copies.put(entry.getValue(), target);
+            }
+
+            paths.add(new File(entry.getKey()));
+        }
+
+        try {
+            new GitSiteTreeScanner(session.getParallelism(), null).copy(copies);
+        } catch (IOException e) {
+            throw new ScmException("Unable to copy the files into the working tree: " + e.getMessage(), e);
+        }
+
+        executeCommand(new GitSiteAddCommand(), new ScmFileSet(session.getWorkingDirectory(), paths), parameters);
+
+        return paths.size();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#removeStale(java.lang.String,
+     *      org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker)
+     */
+    public int removeStale(String path, GitSiteTreeWalker source) throws ScmException {
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setString(CommandParameter.MESSAGE, "");
+
+        GitSiteRemoveStaleCommand command = new GitSiteRemoveStaleCommand();
+
+        command.setSource(source);
+        command.setWorkTree(session.isWorkTree());
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory(), new File(path)), parameters);
+
+        return command.getRemovedCount();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#commit(java.lang.String)
+     */
+    public void commit(String message) throws ScmException {
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(session.getSiteBranch()));
+
+        parameters.setString(CommandParameter.MESSAGE, message);
+
+        GitSiteCheckInCommand command = new GitSiteCheckInCommand();
+
+        command.setWorkTree(session.isWorkTree());
+
+        executeCommand(command, new ScmFileSet(session.getWorkingDirectory()), parameters);
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#push()
+     */
+    public void push() throws ScmException {
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch(session.getSiteBranch()));
+
+        ScmFileSet         fileSet = new ScmFileSet(session.getWorkingDirectory());
+        GitSitePushBackoff backoff = new GitSitePushBackoff(session.getLogger(), session.getSiteBranch());
+
+        for (String rejection = tryPush(fileSet, parameters); rejection != null; rejection = tryPush(fileSet, parameters)) {
+            backoff.retry(rejection);
+            executeCommand(new GitSiteRebaseCommand(), fileSet, parameters);
+        }
+    }
+
+    /**
+     * Push the commit to the site branch.
+     *
+     * @param  fileSet    the working directory.
+     * @param  parameters the site branch.
+     *
+     * @return {@code null} if the push succeeded, or the reason the update was
+     *         rejected by the remote repository.
+     *
+     * @throws ScmException if the push fails for any other reason.
+     */
+    private String tryPush(ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+        GitSitePushCommand command = new GitSitePushCommand();
+
+        command.setLogger(session.getLogger());
+
+        ScmResult result = command.execute(session.getRepository(), fileSet, parameters);
+
+        pushedBytes = command.getPushedBytes();
+
+        if (!result.isSuccess() && !command.isRejected()) {
+            throw new ScmException(result.getProviderMessage() + " "
+                                   + (result.getCommandOutput() == null ? "" : result.getCommandOutput()));
+        }
+
+        return result.isSuccess() ? null : command.getRejection();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getPushedBytes()
+     */
+    public long getPushedBytes() {
+        return pushedBytes;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#close()
+     */
+    public void close() {
+        if (catFilePool != null) {
+            catFilePool.close();
+            catFilePool = null;
+        }
+
+        session = null;
+    }
+
+    /**
+     * Get the object query processes, creating the pool on first use.
+     *
+     * @return the pool.
+     */
+    private GitSiteCatFilePool getCatFilePool() {
+        if (catFilePool == null) {
+            catFilePool = new GitSiteCatFilePool(session.getWorkingDirectory(),
+                                                 Math.min(CAT_FILE_PROCESSES, session.getParallelism()), session.getLogger());
+        }
+
+        return catFilePool;
+    }
+
+    /**
+     * Run a command against the session's repository with the session's
+     * logger, and check that it succeeded.
+     *
+     * @param  command    the command.
+     * @param  fileSet    the file set.
+     * @param  parameters any parameters to the command.
+     *
+     * @return the SCM result.
+     *
+     * @throws ScmException if the command fails.
+     */
+    private ScmResult executeCommand(GitCommand command, ScmFileSet fileSet, CommandParameters parameters) throws ScmException {
+        command.setLogger(session.getLogger());
+
+        ScmResult result = command.execute(session.getRepository(), fileSet, parameters);
+
+        if (!result.isSuccess()) {
+            throw new ScmException(result.getProviderMessage() + " "
+                                   + (result.getCommandOutput() == null ? "" : result.getCommandOutput()));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFile;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmFileStatus;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.add.AbstractAddCommand;
+import org.apache.maven.scm.command.add.AddScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Stage files with "git add", handing the paths to git in bounded batches
+ * rather than forking one process per file.
+ *
+ * <p>Based on GitAddCommand by Mark Struberg.</p>
+ *
+ * @author Kathryn Huxtable
+ * @see    org.apache.maven.scm.provider.git.gitexe.command.add.GitAddCommand
+ */
+public class GitSiteAddCommand extends AbstractAddCommand implements GitCommand {
+
+    /** The maximum number of paths passed to a single "git add". */
+    public static final int MAX_BATCH_FILES = 1000;
+
+    /**
+     * The maximum number of path characters passed to a single "git add".
+     * This keeps us well below the command line limits on all platforms.
+     */
+    public static final int MAX_BATCH_LENGTH = 30000;
+
+    /**
+     * @see org.apache.maven.scm.command.add.AbstractAddCommand#executeAddCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet, java.lang.String, boolean)
+     */
+    protected ScmResult executeAddCommand(ScmProviderRepository repo, ScmFileSet fileSet, String message, boolean binary)
+        throws ScmException {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+
+        List<ScmFile> addedFiles = new ArrayList<ScmFile>(fileSet.getFileList().size());
+        List<File>    batch      = new ArrayList<File>();
+        int           length     = 0;
+
+        Commandline cl = null;
+
+        for (Object o : fileSet.getFileList()) {
+            File file = (File) o;
+
+            batch.add(file);
+            length += file.getPath().length() + 3;
+
+            if (batch.size() >= MAX_BATCH_FILES || length >= MAX_BATCH_LENGTH) {
+                cl = createCommandLine(fileSet.getBasedir(), batch);
+                if (GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger()) != 0) {
+                    return new AddScmResult(cl.toString(), "The git-add command failed.", stderr.getOutput(), false);
+                }
+
+                addBatchFiles(addedFiles, batch);
+                length = 0;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            cl = createCommandLine(fileSet.getBasedir(), batch);
+            if (GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger()) != 0) {
+                return new AddScmResult(cl.toString(), "The git-add command failed.", stderr.getOutput(), false);
+            }
+
+            addBatchFiles(addedFiles, batch);
+        }
+
+        return new AddScmResult(cl == null ? "" : cl.toString(), addedFiles);
+    }
+
+    /**
+     * Record the files of a successful batch as added and empty the batch.
+     *
+     * @param addedFiles the list of added files.
+     * @param batch      the batch just staged.
+     */
+    private void addBatchFiles(List<ScmFile> addedFiles, List<File> batch) {
+        for (File file : batch) {
+            addedFiles.add(new ScmFile(file.getPath(), ScmFileStatus.ADDED));
+        }
+
+        batch.clear();
+    }
+
+    /**
+     * Create a "git add -- files" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  files            the files to add, relative to the working
+     *                          directory.
+     *
+     * @return the command line to add the files.
+     */
+    private Commandline createCommandLine(File workingDirectory, List<File> files) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "add");
+
+        cl.createArg().setValue("--");
+
+        GitCommandLineUtils.addTarget(cl, files);
+
+        return cl;
+    }
+}
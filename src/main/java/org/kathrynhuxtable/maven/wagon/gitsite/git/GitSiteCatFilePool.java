@@ -0,0 +1,690 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+/**
+ * A pool of long-lived "git cat-file" processes answering object queries
+ * over their standard input and output, so that a query does not pay for
+ * starting git.
+ *
+ * <p>Metadata queries go to "git cat-file --batch-check" processes and are
+ * pipelined: up to {@link #WINDOW} queries are written ahead of the answers
+ * read. Contents are streamed from "git cat-file --batch" processes, one blob
+ * at a time per process. Objects are named as "git rev-parse" takes them,
+ * e.g. "FETCH_HEAD:path/to/file".</p>
+ *
+ * <p>At most {@code size} processes of each kind are started, on demand.
+ * Callers beyond that wait for a process to be released. The pool is thread
+ * safe, and must be {@link #close() closed} to stop the processes.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteCatFilePool {
+
+    /** The number of queries written ahead of the answers read. */
+    public static final int WINDOW = 256;
+
+    /** Contents left unread beyond this are not skipped; the process is stopped. */
+    private static final long MAX_SKIP = 1024 * 1024;
+
+    /** The repository directory. */
+    private File workingDirectory;
+
+    /** The maximum number of processes of each kind. */
+    private int size;
+
+    /** The logger. */
+    private ScmLogger logger;
+
+    /** The idle "--batch-check" processes. */
+    private LinkedList<CatFile> idleChecks = new LinkedList<CatFile>();
+
+    /** The idle "--batch" processes. */
+    private LinkedList<CatFile> idleBatches = new LinkedList<CatFile>();
+
+    /** Every process started and not yet stopped. */
+    private List<CatFile> processes = new ArrayList<CatFile>();
+
+    /** The number of "--batch-check" processes started and not stopped. */
+    private int checkCount;
+
+    /** The number of "--batch" processes started and not stopped. */
+    private int batchCount;
+
+    /** Whether the pool has been closed. */
+    private boolean closed;
+
+    /**
+     * Create a new GitSiteCatFilePool object.
+     *
+     * @param workingDirectory the repository directory.
+     * @param size             the maximum number of processes of each kind.
+     * @param logger           the logger.
+     */
+    public GitSiteCatFilePool(File workingDirectory, int size, ScmLogger logger) {
+        this.workingDirectory = workingDirectory;
+        this.size             = Math.max(1, size);
+        this.logger           = logger;
+    }
+
+    /**
+     * Get the id, type and size of an object.
+     *
+     * @param  object the object name.
+     *
+     * @return the object info, or {@code null} if there is no such object.
+     *
+     * @throws ScmException if git fails.
+     */
+    public ObjectInfo getInfo(String object) throws ScmException {
+        List<String> objects = new ArrayList<String>(1);
+
+        objects.add(object);
+
+        return getInfo(objects).get(0);
+    }
+
+    /**
+     * Get the ids, types and sizes of objects, pipelining the queries through
+     * one process.
+     *
+     * @param  objects the object names.
+     *
+     * @return the object info of each object in order, {@code null} for each
+     *         one that does not exist.
+     *
+     * @throws ScmException if git fails.
+     */
+    public List<ObjectInfo> getInfo(List<String> objects) throws ScmException {
+        List<ObjectInfo> infos   = new ArrayList<ObjectInfo>(objects.size());
+        CatFile          catFile = acquire(false);
+        boolean          ok      = false;
+
+        try {
+            for (int written = 0; written < objects.size();) {
+                int ahead = Math.min(objects.size(), infos.size() + WINDOW);
+
+                for (; written < ahead; written++) {
+                    catFile.writeQuery(objects.get(written));
+                }
+
+                catFile.flush();
+
+                // Read the answers as far as they were written.
+                while (infos.size() < written) {
+                    infos.add(catFile.readInfo(objects.get(infos.size())));
+                }
+            }
+
+            ok = true;
+        } catch (IOException e) {
+            throw new ScmException("Error querying git objects: " + catFile.getError(e), e);
+        } finally {
+            release(catFile, ok);
+        }
+
+        return infos;
+    }
+
+    /**
+     * Open the contents of a blob. The process streaming it is held until the
+     * stream is closed.
+     *
+     * @param  object the object name.
+     *
+     * @return the contents, to be closed by the caller, or {@code null} if
+     *         there is no such blob.
+     *
+     * @throws ScmException if git fails.
+     */
+    public InputStream open(String object) throws ScmException {
+        CatFile catFile = acquire(true);
+
+        try {
+            catFile.writeQuery(object);
+            catFile.flush();
+
+            ObjectInfo info = catFile.readInfo(object);
+
+            if (info == null || !"blob".equals(info.getType())) {
+                if (info != null) {
+                    catFile.skip(info.getSize() + 1);
+                }
+
+                release(catFile, true);
+
+                return null;
+            }
+
+            return new BlobInputStream(catFile, info.getSize());
+        } catch (IOException e) {
+            release(catFile, false);
+
+            throw new ScmException("Error reading git object " + object + ": " + catFile.getError(e), e);
+        }
+    }
+
+    /**
+     * Stop every process. Processes streaming a blob are stopped too.
+     */
+    public void close() {
+        List<CatFile> stopping;
+
+        synchronized (this) {
+            closed   = true;
+            stopping = new ArrayList<CatFile>(processes);
+
+            processes.clear();
+            idleChecks.clear();
+            idleBatches.clear();
+            checkCount = 0;
+            batchCount = 0;
+
+            notifyAll();
+        }
+
+        for (CatFile catFile : stopping) {
+            catFile.stop();
+        }
+    }
+
+    /**
+     * Take an idle process, starting one if there are fewer than the maximum
+     * and waiting for one otherwise.
+     *
+     * @param  contents {@code true} for a "--batch" process, {@code false}
+     *                  for a "--batch-check" process.
+     *
+     * @return the process.
+     *
+     * @throws ScmException if the process cannot be started or the pool is
+     *                      closed.
+     */
+    private CatFile acquire(boolean contents) throws ScmException {
+        LinkedList<CatFile> idle = contents ? idleBatches : idleChecks;
+
+        synchronized (this) {
+            while (!closed && idle.isEmpty() && (contents ? batchCount : checkCount) >= size) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    throw new ScmException("Interrupted waiting for git cat-file");
+                }
+            }
+
+            if (closed) {
+                throw new ScmException("The git cat-file pool is closed");
+            }
+
+            if (!idle.isEmpty()) {
+                return idle.removeFirst();
+            }
+
+            if (contents) {
+                batchCount++;
+            } else {
+                checkCount++;
+            }
+        }
+
+        CatFile catFile;
+
+        try {
+            catFile = new CatFile(contents);
+        } catch (ScmException e) {
+            synchronized (this) {
+                if (contents) {
+                    batchCount--;
+                } else {
+                    checkCount--;
+                }
+
+                notifyAll();
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            if (!closed) {
+                processes.add(catFile);
+
+                return catFile;
+            }
+        }
+
+        catFile.stop();
+
+        throw new ScmException("The git cat-file pool is closed");
+    }
+
+    /**
+     * Return a process to the pool, or stop it if it is no longer in step with
+     * its queries.
+     *
+     * @param catFile the process.
+     * @param reuse   {@code false} to stop the process.
+     */
+    private void release(CatFile catFile, boolean reuse) {
+        synchronized (this) {
+            if (closed || !processes.contains(catFile)) {
+                return;
+            }
+
+            if (reuse) {
+                (catFile.isContents() ? idleBatches : idleChecks).addLast(catFile);
+            } else {
+                processes.remove(catFile);
+
+                if (catFile.isContents()) {
+                    batchCount--;
+                } else {
+                    checkCount--;
+                }
+            }
+
+            notifyAll();
+        }
+
+        if (!reuse) {
+            catFile.stop();
+        }
+    }
+
+    /**
+     * The id, type and size of an object.
+     */
+    public static class ObjectInfo {
+
+        /** The object id. */
+        private String id;
+
+        /** The object type. */
+        private String type;
+
+        /** The size in bytes. */
+        private long size;
+
+        /**
+         * Create a new ObjectInfo object.
+         *
+         * @param id   the object id.
+         * @param type the object type.
+         * @param size the size in bytes.
+         */
+        public ObjectInfo(String id, String type, long size) {
+            this.id   = id;
+            this.type = type;
+            this.size = size;
+        }
+
+        /**
+         * Get the object id.
+         *
+         * @return the hex-encoded object id.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Get the object type.
+         *
+         * @return "blob", "tree", "commit" or "tag".
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Get the size.
+         *
+         * @return the size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * A running "git cat-file" process.
+     */
+    private class CatFile {
+
+        /** Whether this is a "--batch" process. */
+        private boolean contents;
+
+        /** The process. */
+        private Process process;
+
+        /** The standard input of the process. */
+        private OutputStream in;
+
+        /** The standard output of the process. */
+        private InputStream out;
+
+        /** The standard error of the process. */
+        private CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        /** The thread reading the standard error. */
+        private StreamPumper errorPumper;
+
+        /**
+         * Start a new CatFile process.
+         *
+         * @param  contents {@code true} for "--batch", {@code false} for
+         *                  "--batch-check".
+         *
+         * @throws ScmException if git cannot be started.
+         */
+        public CatFile(boolean contents) throws ScmException {
+            this.contents = contents;
+
+            Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "cat-file");
+
+            cl.createArg().setValue(contents ? "--batch" : "--batch-check");
+
+            process = GitSiteCommandLineUtils.start(cl, logger);
+            in      = new BufferedOutputStream(process.getOutputStream());
+            out     = new BufferedInputStream(process.getInputStream());
+
+            // A pool left open must not keep the JVM from exiting.
+            errorPumper = new StreamPumper(process.getErrorStream(), stderr);
+            errorPumper.setDaemon(true);
+            errorPumper.start();
+        }
+
+        /**
+         * Whether this is a "--batch" process.
+         *
+         * @return {@code true} if the process writes object contents.
+         */
+        public boolean isContents() {
+            return contents;
+        }
+
+        /**
+         * Write a query.
+         *
+         * @param  object the object name.
+         *
+         * @throws IOException if the process has stopped.
+         */
+        public void writeQuery(String object) throws IOException {
+            in.write(object.getBytes("UTF-8"));
+            in.write('\n');
+        }
+
+        /**
+         * Send the queries written.
+         *
+         * @throws IOException if the process has stopped.
+         */
+        public void flush() throws IOException {
+            in.flush();
+        }
+
+        /**
+         * Read the answer to a query, "id type size" or "name missing".
+         *
+         * @param  object the object name queried.
+         *
+         * @return the object info, or {@code null} if there is no such object.
+         *
+         * @throws IOException if the process has stopped or is out of step.
+         */
+        public ObjectInfo readInfo(String object) throws IOException {
+            String   line   = readLine();
+            String[] fields = line.split(" ");
+
+            if (fields.length == 3) {
+                try {
+                    return new ObjectInfo(fields[0], fields[1], Long.parseLong(fields[2]));
+                } catch (NumberFormatException e) {
+                    // Fall through to the error.
+                }
+            }
+
+            if (line.equals(object + " missing")) {
+                return null;
+            }
+
+            throw new IOException("Unexpected answer to " + object + ": " + line);
+        }
+
+        /**
+         * Read from the object contents.
+         *
+         * @param  b   the buffer.
+         * @param  off the offset in the buffer.
+         * @param  len the maximum number of bytes to read.
+         *
+         * @return the number of bytes read.
+         *
+         * @throws IOException if the process has stopped.
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = out.read(b, off, len);
+
+            if (n < 0) {
+                throw new IOException("Unexpected end of git cat-file output");
+            }
+
+            return n;
+        }
+
+        /**
+         * Skip output.
+         *
+         * @param  n the number of bytes to skip.
+         *
+         * @throws IOException if the process has stopped.
+         */
+        public void skip(long n) throws IOException {
+            while (n > 0) {
+                long skipped = out.skip(n);
+
+                if (skipped <= 0) {
+                    if (out.read() < 0) {
+                        throw new IOException("Unexpected end of git cat-file output");
+                    }
+
+                    skipped = 1;
+                }
+
+                n -= skipped;
+            }
+        }
+
+        /**
+         * Get the error output of the process, or the message of an exception
+         * if there is none.
+         *
+         * @param  e the exception.
+         *
+         * @return the error message.
+         */
+        public String getError(IOException e) {
+            String error = stderr.getOutput().trim();
+
+            return error.length() > 0 ? error : e.getMessage();
+        }
+
+        /**
+         * Close the standard input of the process so that it exits, and wait
+         * for it, killing it if it is streaming contents.
+         */
+        public void stop() {
+            IOUtil.close(in);
+
+            try {
+                if (out.available() > 0) {
+                    process.destroy();
+                }
+
+                process.waitFor();
+                errorPumper.join();
+            } catch (IOException e) {
+                process.destroy();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            } finally {
+                errorPumper.close();
+                IOUtil.close(out);
+            }
+        }
+
+        /**
+         * Read a line of output, without the line feed.
+         *
+         * @return the line.
+         *
+         * @throws IOException if the process has stopped.
+         */
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+
+            for (int b; (b = out.read()) != '\n';) {
+                if (b < 0) {
+                    throw new IOException("Unexpected end of git cat-file output");
+                }
+
+                line.write(b);
+            }
+
+            return line.toString("UTF-8");
+        }
+    }
+
+    /**
+     * The contents of a blob streamed by a "--batch" process.
+     */
+    private class BlobInputStream extends InputStream {
+
+        /** The process, or {@code null} once closed. */
+        private CatFile catFile;
+
+        /** The number of bytes of the blob left to read. */
+        private long remaining;
+
+        /**
+         * Create a new BlobInputStream object.
+         *
+         * @param catFile the process.
+         * @param size    the size of the blob.
+         */
+        public BlobInputStream(CatFile catFile, long size) {
+            this.catFile   = catFile;
+            this.remaining = size;
+        }
+
+        /**
+         * @see java.io.InputStream#read()
+         */
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        /**
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (catFile == null) {
+                throw new IOException("Stream closed");
+            }
+
+            if (remaining == 0) {
+                return -1;
+            }
+
+            if (len == 0) {
+                return 0;
+            }
+
+            int n;
+
+            try {
+                n = catFile.read(b, off, (int) Math.min(len, remaining));
+            } catch (IOException e) {
+                CatFile failed = catFile;
+
+                catFile = null;
+                release(failed, false);
+
+                throw e;
+            }
+
+            remaining -= n;
+
+            return n;
+        }
+
+        /**
+         * Release the process, skipping what is left of the blob, or stopping
+         * the process if too much is left.
+         *
+         * @see java.io.InputStream#close()
+         */
+        public void close() {
+            if (catFile == null) {
+                return;
+            }
+
+            CatFile released = catFile;
+            boolean reuse    = false;
+
+            catFile = null;
+
+            if (remaining <= MAX_SKIP) {
+                try {
+                    // The contents are followed by a line feed.
+                    released.skip(remaining + 1);
+                    reuse = true;
+                } catch (IOException e) {
+                    // Stop the process below.
+                }
+            }
+
+            release(released, reuse);
+        }
+    }
+}
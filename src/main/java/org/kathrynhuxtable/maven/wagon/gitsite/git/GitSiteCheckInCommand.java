@@ -15,12 +15,16 @@
  */
 package org.kathrynhuxtable.maven.wagon.gitsite.git;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.maven.scm.ScmException;
 import org.apache.maven.scm.ScmFile;
@@ -32,18 +36,25 @@ import org.apache.maven.scm.command.checkin.CheckInScmResult;
 import org.apache.maven.scm.provider.ScmProviderRepository;
 import org.apache.maven.scm.provider.git.command.GitCommand;
 import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
-import org.apache.maven.scm.provider.git.gitexe.command.add.GitAddCommand;
-import org.apache.maven.scm.provider.git.gitexe.command.status.GitStatusCommand;
-import org.apache.maven.scm.provider.git.gitexe.command.status.GitStatusConsumer;
-import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
 import org.apache.maven.scm.provider.git.util.GitUtil;
 
 import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.IOUtil;
 import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
 
 /**
- * Handle git check-in and push to remote site.
+ * Handle git check-in. The commit is pushed to the site branch by
+ * {@link GitSitePushCommand}.
+ *
+ * <p>The changed files are read from "git status --porcelain -z" a record at
+ * a time, and only the tail of each command's output is kept, so the memory
+ * used does not grow with the size of the change set.</p>
+ *
+ * <p>If a file set is given, its paths are fed to "git update-index --stdin"
+ * rather than put on the command line, so there is no limit on the number of
+ * files, and the index is committed as it is. Pathspecs are not used, since
+ * git matches every index entry against every pathspec.</p>
  *
  * <p>Based on GitCheckInCommand by Mark Struberg.</p>
  *
@@ -52,6 +63,29 @@ import org.codehaus.plexus.util.cli.Commandline;
  */
 public class GitSiteCheckInCommand extends AbstractCheckInCommand implements GitCommand {
 
+    /** Whether the changes are in the working tree rather than the index. */
+    private boolean workTree = true;
+
+    /**
+     * Whether the changes to commit are in the working tree.
+     *
+     * @return {@code true} if the working tree is committed.
+     */
+    public boolean isWorkTree() {
+        return workTree;
+    }
+
+    /**
+     * Set whether the changes to commit are in the working tree. If not, the
+     * index is committed as it is, without scanning the working tree for
+     * changes.
+     *
+     * @param workTree {@code false} to commit only the index.
+     */
+    public void setWorkTree(boolean workTree) {
+        this.workTree = workTree;
+    }
+
     /**
      * @see org.apache.maven.scm.command.checkin.AbstractCheckInCommand#executeCheckInCommand(org.apache.maven.scm.provider.ScmProviderRepository,
      *      org.apache.maven.scm.ScmFileSet, java.lang.String,
@@ -59,14 +93,13 @@ public class GitSiteCheckInCommand extends AbstractCheckInCommand implements Git
      */
     protected CheckInScmResult executeCheckInCommand(ScmProviderRepository repo, ScmFileSet fileSet, String message, ScmVersion version)
         throws ScmException {
-        GitScmProviderRepository repository = (GitScmProviderRepository) repo;
-
-        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
-        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        GitSiteTailConsumer stderr = new GitSiteTailConsumer();
+        GitSiteTailConsumer stdout = new GitSiteTailConsumer();
 
         int exitCode;
 
         File messageFile = FileUtils.createTempFile("maven-scm-", ".commit", null);
+        File pathsFile   = null;
 
         try {
             FileUtils.fileWrite(messageFile.getAbsolutePath(), message);
@@ -79,72 +112,144 @@ public class GitSiteCheckInCommand extends AbstractCheckInCommand implements Git
             Commandline cl = null;
 
             if (!fileSet.getFileList().isEmpty()) {
-                // If specific fileSet is given, we have to git-add them first,
+                pathsFile = FileUtils.createTempFile("maven-scm-", ".paths", null);
+
+                try {
+                    writePathsFile(pathsFile, fileSet.getFileList());
+                } catch (IOException ex) {
+                    return new CheckInScmResult(null, "Error while making a temporary file for the paths: " + ex.getMessage(), null,
+                                                false);
+                }
+
+                // If specific fileSet is given, we have to stage them first,
                 // otherwise we will use 'git-commit -a' later.
-                cl       = GitAddCommand.createCommandLine(fileSet.getBasedir(), fileSet.getFileList());
-                exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+                cl       = createUpdateIndexCommandLine(fileSet);
+                exitCode = GitSiteCommandLineUtils.execute(cl, pathsFile, stdout, stderr, getLogger());
                 if (exitCode != 0) {
-                    return new CheckInScmResult(cl.toString(), "The git-add command failed.", stderr.getOutput(), false);
+                    return new CheckInScmResult(cl.toString(), "The git-update-index command failed.", stderr.getOutput(), false);
                 }
             }
 
             // The git-commit command doesn't show single files, but only summary :/
             // so we must run git-status and consume the output.
-            // Borrow a few things from the git-status command.
-            GitStatusConsumer statusConsumer = new GitStatusConsumer(getLogger(), fileSet.getBasedir());
+            StatusConsumer statusConsumer = new StatusConsumer(getPaths(fileSet));
 
-            cl       = GitStatusCommand.createCommandLine(repository, fileSet);
-            exitCode = GitCommandLineUtils.execute(cl, statusConsumer, stderr, getLogger());
-            if (exitCode != 0) {
-                // git-status returns non-zero if nothing to do.
-                if (getLogger().isInfoEnabled()) {
-                    getLogger().info("nothing added to commit but untracked files present (use \"git add\" to "
-                                     + "track)");
+            if (workTree) {
+                cl       = createStatusCommandLine(fileSet);
+                exitCode = GitSiteCommandLineUtils.executeNulDelimited(cl, statusConsumer, stderr, getLogger());
+                if (exitCode != 0) {
+                    return new CheckInScmResult(cl.toString(), "The git-status command failed.", stderr.getOutput(), false);
                 }
             }
 
             cl       = createCommitCommandLine(fileSet, messageFile);
-            exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
             if (exitCode != 0) {
                 return new CheckInScmResult(cl.toString(), "The git-commit command failed.", stderr.getOutput(), false);
             }
 
-            cl       = createPushCommandLine(fileSet, repository, version);
-            exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
-            if (exitCode != 0) {
-                return new CheckInScmResult(cl.toString(), "The git-push command failed.", stderr.getOutput(), false);
+            return new CheckInScmResult(cl.toString(), statusConsumer.getChangedFiles());
+        } finally {
+            try {
+                FileUtils.forceDelete(messageFile);
+
+                if (pathsFile != null) {
+                    FileUtils.forceDelete(pathsFile);
+                }
+            } catch (IOException ex) {
+                // ignore
             }
+        }
+    }
 
-            List<ScmFile> checkedInFiles = new ArrayList<ScmFile>(statusConsumer.getChangedFiles().size());
+    /**
+     * Get the paths of the file set, to match against the paths git reports.
+     *
+     * @param  fileSet the file set to commit.
+     *
+     * @return the paths, using "/" as separator, or {@code null} if the file
+     *         set has no files and everything changed is committed.
+     */
+    private Set<String> getPaths(ScmFileSet fileSet) {
+        if (fileSet.getFileList().isEmpty()) {
+            return null;
+        }
 
-            // rewrite all detected files to now have status 'checked_in'
-            for (Object foo : statusConsumer.getChangedFiles()) {
-                ScmFile scmfile = new ScmFile(((ScmFile) foo).getPath(), ScmFileStatus.CHECKED_IN);
+        Set<String> paths = new HashSet<String>(fileSet.getFileList().size() * 2);
 
-                if (fileSet.getFileList().isEmpty()) {
-                    checkedInFiles.add(scmfile);
-                } else {
-                    // If a specific fileSet is given, we have to check if the file is really tracked.
-                    for (Iterator<?> itfl = fileSet.getFileList().iterator(); itfl.hasNext();) {
-                        File f = (File) itfl.next();
+        for (Object o : fileSet.getFileList()) {
+            paths.add(((File) o).getPath().replace(File.separatorChar, '/'));
+        }
 
-                        if (f.toString().equals(scmfile.getPath())) {
-                            checkedInFiles.add(scmfile);
-                        }
-                    }
-                }
-            }
+        return paths;
+    }
 
-            return new CheckInScmResult(cl.toString(), checkedInFiles);
-        } finally {
-            try {
-                FileUtils.forceDelete(messageFile);
-            } catch (IOException ex) {
-                // ignore
+    /**
+     * Write the paths of the files to commit, each followed by a NUL. The
+     * paths use "/" as separator, as git expects.
+     *
+     * @param  pathsFile the file to write.
+     * @param  files     the files to commit, relative to the working
+     *                   directory.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void writePathsFile(File pathsFile, List<?> files) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(pathsFile));
+
+        try {
+            for (Object o : files) {
+                out.write(((File) o).getPath().replace(File.separatorChar, '/').getBytes("UTF-8"));
+                out.write(0);
             }
+        } finally {
+            IOUtil.close(out);
         }
     }
 
+    /**
+     * Create the "git update-index --add --remove -z --stdin" command line,
+     * staging the files whose paths are read from standard input. Deleted
+     * files are removed from the index.
+     *
+     * @param  fileSet the file set to commit.
+     *
+     * @return the command line to stage the files.
+     */
+    private Commandline createUpdateIndexCommandLine(ScmFileSet fileSet) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(fileSet.getBasedir(), "update-index");
+
+        cl.createArg().setValue("--add");
+
+        cl.createArg().setValue("--remove");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--stdin");
+
+        return cl;
+    }
+
+    /**
+     * Create the "git status --porcelain -z" command line. Untracked files
+     * are not listed, since they are never committed.
+     *
+     * @param  fileSet the file set to commit.
+     *
+     * @return the command line to list the changed files.
+     */
+    private Commandline createStatusCommandLine(ScmFileSet fileSet) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(fileSet.getBasedir(), "status");
+
+        cl.createArg().setValue("--porcelain");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--untracked-files=no");
+
+        return cl;
+    }
+
     /**
      * Create the "git commit" command line.
      *
@@ -152,26 +257,19 @@ public class GitSiteCheckInCommand extends AbstractCheckInCommand implements Git
      * @param  messageFile the file containing the commit message.
      *
      * @return the command line to commit the changes.
-     *
-     * @throws ScmException if an error occurs.
      */
-    private Commandline createCommitCommandLine(ScmFileSet fileSet, File messageFile) throws ScmException {
+    private Commandline createCommitCommandLine(ScmFileSet fileSet, File messageFile) {
         Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(fileSet.getBasedir(), "commit");
 
-        cl.createArg().setValue("--verbose");
-
         cl.createArg().setValue("--allow-empty");
 
         cl.createArg().setValue("-F");
 
         cl.createArg().setValue(messageFile.getAbsolutePath());
 
-        if (fileSet.getFileList().isEmpty()) {
+        if (fileSet.getFileList().isEmpty() && workTree) {
             // commit all tracked files
             cl.createArg().setValue("-a");
-        } else {
-            // specify exactly which files to commit
-            GitCommandLineUtils.addTarget(cl, fileSet.getFileList());
         }
 
         if (GitUtil.getSettings().isCommitNoVerify()) {
@@ -182,21 +280,70 @@ public class GitSiteCheckInCommand extends AbstractCheckInCommand implements Git
     }
 
     /**
-     * Create the "git push origin" command.
-     *
-     * @param  fileSet    the file set.
-     * @param  repository the SCM repository.
-     * @param  version    the site branch.
-     *
-     * @return the command line to push the changes to the site branch.
+     * Parse the "XY path" records of "git status --porcelain -z" into the
+     * files the commit checks in, with status {@link ScmFileStatus#CHECKED_IN}.
+     * A renamed or copied file is followed by a record holding its original
+     * path, which is skipped. If the file set has files, only those are
+     * checked in.
      */
-    private Commandline createPushCommandLine(ScmFileSet fileSet, GitScmProviderRepository repository, ScmVersion version) {
-        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(fileSet.getBasedir(), "push");
+    private static class StatusConsumer implements StreamConsumer {
+
+        /**
+         * The paths committed, or {@code null} if the changes to tracked
+         * files in the working tree are committed as well as the index, as
+         * with "git commit -a".
+         */
+        private Set<String> paths;
+
+        /** Whether the next record is the original path of a rename or copy. */
+        private boolean skipNext;
+
+        /** The files the commit checks in. */
+        private List<ScmFile> changedFiles = new ArrayList<ScmFile>();
+
+        /**
+         * Create a new StatusConsumer object.
+         *
+         * @param paths the paths committed, or {@code null} if everything
+         *              changed is committed.
+         */
+        public StatusConsumer(Set<String> paths) {
+            this.paths = paths;
+        }
+
+        /**
+         * Get the files the commit checks in.
+         *
+         * @return the files.
+         */
+        public List<ScmFile> getChangedFiles() {
+            return changedFiles;
+        }
 
-        cl.createArg().setValue("origin");
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String record) {
+            if (skipNext) {
+                skipNext = false;
+                return;
+            }
 
-        cl.createArg().setValue("master:" + version.getName());
+            if (record.length() < 4) {
+                return;
+            }
 
-        return cl;
+            char index    = record.charAt(0);
+            char workTree = record.charAt(1);
+
+            skipNext = index == 'R' || index == 'C';
+
+            String path = record.substring(3);
+
+            if (paths == null ? "MADRC".indexOf(index) >= 0 || "MD".indexOf(workTree) >= 0
+                              : "MADRC".indexOf(index) >= 0 && paths.contains(path)) {
+                changedFiles.add(new ScmFile(path, ScmFileStatus.CHECKED_IN));
+            }
+        }
     }
 }
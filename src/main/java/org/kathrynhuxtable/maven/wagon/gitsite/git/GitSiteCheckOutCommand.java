@@ -18,7 +18,10 @@ package org.kathrynhuxtable.maven.wagon.gitsite.git;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.ArrayList;
+
 import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFile;
 import org.apache.maven.scm.ScmFileSet;
 import org.apache.maven.scm.ScmFileStatus;
 import org.apache.maven.scm.ScmVersion;
@@ -45,6 +48,106 @@ import org.codehaus.plexus.util.cli.Commandline;
  */
 public class GitSiteCheckOutCommand extends AbstractCheckOutCommand implements GitCommand {
 
+    /** The ref of the fetched site branch tip, which files are read from. */
+    public static final String TIP = "FETCH_HEAD";
+
+    /** The directory holding the site branch mirrors, or {@code null}. */
+    private File cacheDirectory;
+
+    /** Whether to fetch only the tip of the site branch. */
+    private boolean shallow;
+
+    /** Whether to fetch blobs on demand. */
+    private boolean partialClone;
+
+    /** Whether to check the site branch out into the working tree. */
+    private boolean workTree = true;
+
+    /**
+     * Get the directory holding the site branch mirrors.
+     *
+     * @return the cache directory, or {@code null} if the cache is not used.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Set the directory holding the site branch mirrors. If set, the site
+     * branch is fetched incrementally into a mirror in this directory, and
+     * the working directory borrows the mirror's objects instead of pulling
+     * the whole branch from the remote repository.
+     *
+     * @param cacheDirectory the cache directory, or {@code null} to not use
+     *                       the cache.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Whether only the tip of the site branch is fetched.
+     *
+     * @return {@code true} if the fetch is shallow.
+     */
+    public boolean isShallow() {
+        return shallow;
+    }
+
+    /**
+     * Set whether only the tip of the site branch is fetched, with a depth of
+     * one. The commit and push work from the shallow base, since the remote
+     * repository already has the history. The mirror in the cache directory
+     * keeps the whole history, so that its incremental fetches stay small;
+     * only the fetch into the working directory is shallow.
+     *
+     * @param shallow {@code true} to fetch only the tip of the site branch.
+     */
+    public void setShallow(boolean shallow) {
+        this.shallow = shallow;
+    }
+
+    /**
+     * Whether blobs are fetched on demand rather than with the commits and
+     * trees.
+     *
+     * @return {@code true} if the fetch is a partial clone.
+     */
+    public boolean isPartialClone() {
+        return partialClone;
+    }
+
+    /**
+     * Set whether blobs are fetched on demand rather than with the commits
+     * and trees. This only applies when fetching from the remote repository
+     * directly; a mirror always holds the blobs of its tip.
+     *
+     * @param partialClone {@code true} to fetch blobs on demand.
+     */
+    public void setPartialClone(boolean partialClone) {
+        this.partialClone = partialClone;
+    }
+
+    /**
+     * Whether the site branch is checked out into the working tree.
+     *
+     * @return {@code true} if the working tree is populated.
+     */
+    public boolean isWorkTree() {
+        return workTree;
+    }
+
+    /**
+     * Set whether the site branch is checked out into the working tree. If
+     * not, master is set to the site branch tip and only the index is loaded
+     * from its tree, so files can be staged straight into the index.
+     *
+     * @param workTree {@code false} to leave the working tree empty.
+     */
+    public void setWorkTree(boolean workTree) {
+        this.workTree = workTree;
+    }
+
     /**
      * @see org.apache.maven.scm.command.checkout.AbstractCheckOutCommand#executeCheckOutCommand(org.apache.maven.scm.provider.ScmProviderRepository,
      *      org.apache.maven.scm.ScmFileSet, org.apache.maven.scm.ScmVersion,
@@ -59,11 +162,6 @@ public class GitSiteCheckOutCommand extends AbstractCheckOutCommand implements G
             throw new ScmException("remote repository must not be the working directory");
         }
 
-        int exitCode;
-
-        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
-        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
-
         // Create or empty the working directory.
         if (!fileSet.getBasedir().exists()) {
             if (!fileSet.getBasedir().mkdir()) {
@@ -77,39 +175,212 @@ public class GitSiteCheckOutCommand extends AbstractCheckOutCommand implements G
             }
         }
 
+        GitSiteMirrorCache mirror = null;
+
+        if (cacheDirectory != null) {
+            mirror = new GitSiteMirrorCache(cacheDirectory, repository.getFetchUrl(), version.getName());
+            mirror.lock();
+        }
+
+        try {
+            CheckOutScmResult result = checkOutWorkingDirectory(repository, fileSet.getBasedir(), version, mirror);
+
+            if (result != null) {
+                return result;
+            }
+        } finally {
+            if (mirror != null) {
+                mirror.unlock();
+            }
+        }
+
+        if (!workTree) {
+            return new CheckOutScmResult("", new ArrayList<ScmFile>());
+        }
+
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        // And now search for the files.
+        GitListConsumer listConsumer = new GitListConsumer(getLogger(), fileSet.getBasedir(), ScmFileStatus.CHECKED_IN);
+
+        Commandline cl       = GitListCommand.createCommandLine(repository, fileSet.getBasedir());
+        int         exitCode = GitSiteCommandLineUtils.execute(cl, listConsumer, stderr, getLogger());
+        if (exitCode != 0) {
+            return new CheckOutScmResult(cl.toString(), "The git-ls-files command failed.", stderr.getOutput(), false);
+        }
+
+        return new CheckOutScmResult(cl.toString(), listConsumer.getListedFiles());
+    }
+
+    /**
+     * Initialize the working directory and check the site branch out into it,
+     * either from the remote repository or, if a mirror is given, from the
+     * refreshed mirror.
+     *
+     * @param  repository       the SCM repository.
+     * @param  workingDirectory the working directory.
+     * @param  version          the remote site branch to check out.
+     * @param  mirror           the locked site branch mirror, or {@code null}.
+     *
+     * @return a failed result, or {@code null} if the check-out succeeded.
+     *
+     * @throws ScmException if an error occurs.
+     */
+    private CheckOutScmResult checkOutWorkingDirectory(GitScmProviderRepository repository, File workingDirectory,
+            ScmVersion version, GitSiteMirrorCache mirror) throws ScmException {
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        int exitCode;
+
         Commandline cl = null;
 
+        if (mirror != null) {
+            // Create the mirror if this is the first deploy using it.
+            if (!mirror.exists()) {
+                cl       = createInitBareCommand(mirror.getMirrorDirectory());
+                exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+                if (exitCode != 0) {
+                    return new CheckOutScmResult(cl.toString(), "The git-init command failed.", stderr.getOutput(), false);
+                }
+
+                // Working directories borrow the mirror's objects, so they must never be pruned.
+                cl       = createDisableGcCommand(mirror.getMirrorDirectory());
+                exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+                if (exitCode != 0) {
+                    return new CheckOutScmResult(cl.toString(), "The git-config command failed.", stderr.getOutput(), false);
+                }
+            }
+
+            // Incrementally fetch the site branch into the mirror.
+            cl       = createFetchMirrorCommand(mirror.getMirrorDirectory(), repository, version);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new CheckOutScmResult(cl.toString(), "The git-fetch command failed.", stderr.getOutput(), false);
+            }
+        }
+
         // Initialize a new git repo.
-        cl       = createInitCommand(fileSet.getBasedir());
-        exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
-        if (exitCode != 0 || !new File(fileSet.getBasedir(), ".git").exists()) {
+        cl       = createInitCommand(workingDirectory);
+        exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+        if (exitCode != 0 || !new File(workingDirectory, ".git").exists()) {
             return new CheckOutScmResult(cl.toString(), "The git-init command failed.", stderr.getOutput(), false);
         }
 
         // Add the remote origin to the git repo.
-        cl       = createRemoteAddOriginCommand(fileSet.getBasedir(), repository);
-        exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+        cl       = createRemoteAddOriginCommand(workingDirectory, repository);
+        exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
         if (exitCode != 0) {
             return new CheckOutScmResult(cl.toString(), "The git-remote command failed.", stderr.getOutput(), false);
         }
 
-        // Pull the site branch into master, which checks it out.
-        cl       = createPullCommand(fileSet.getBasedir(), version);
-        exitCode = GitCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+        String source = "origin";
+
+        if (mirror != null) {
+            // Use the mirror's objects rather than copying them.
+            try {
+                FileUtils.fileWrite(new File(workingDirectory, ".git/objects/info/alternates").getAbsolutePath(),
+                                    mirror.getObjectsDirectory().getAbsolutePath() + "\n");
+            } catch (IOException e) {
+                return new CheckOutScmResult("write alternates", "Unable to use the site mirror.", e.getMessage(), false);
+            }
+
+            source = mirror.getMirrorDirectory().getAbsolutePath();
+        }
+
+        // Fetch the site branch.
+        cl       = createFetchCommand(workingDirectory, source, version, partialClone && mirror == null);
+        exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
         if (exitCode != 0) {
-            return new CheckOutScmResult(cl.toString(), "The git-pull command failed.", stderr.getOutput(), false);
+            return new CheckOutScmResult(cl.toString(), "The git-fetch command failed.", stderr.getOutput(), false);
         }
 
-        // And now search for the files.
-        GitListConsumer listConsumer = new GitListConsumer(getLogger(), fileSet.getBasedir(), ScmFileStatus.CHECKED_IN);
+        if (workTree) {
+            // Check the fetched site branch out as master.
+            cl       = createCheckoutFetchHeadCommand(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new CheckOutScmResult(cl.toString(), "The git-checkout command failed.", stderr.getOutput(), false);
+            }
+        } else {
+            // Point master at the fetched site branch and load only the index.
+            cl       = createUpdateMasterCommand(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new CheckOutScmResult(cl.toString(), "The git-update-ref command failed.", stderr.getOutput(), false);
+            }
 
-        cl       = GitListCommand.createCommandLine(repository, fileSet.getBasedir());
-        exitCode = GitCommandLineUtils.execute(cl, listConsumer, stderr, getLogger());
-        if (exitCode != 0) {
-            return new CheckOutScmResult(cl.toString(), "The git-ls-files command failed.", stderr.getOutput(), false);
+            cl       = createSymbolicRefMasterCommand(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new CheckOutScmResult(cl.toString(), "The git-symbolic-ref command failed.", stderr.getOutput(), false);
+            }
+
+            cl       = createReadTreeCommand(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new CheckOutScmResult(cl.toString(), "The git-read-tree command failed.", stderr.getOutput(), false);
+            }
         }
 
-        return new CheckOutScmResult(cl.toString(), listConsumer.getListedFiles());
+        return null;
+    }
+
+    /**
+     * Create a "git init --bare" command.
+     *
+     * @param  mirrorDirectory the mirror directory.
+     *
+     * @return the command line to init the mirror repository.
+     */
+    private Commandline createInitBareCommand(File mirrorDirectory) {
+        mirrorDirectory.getParentFile().mkdirs();
+
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(mirrorDirectory.getParentFile(), "init");
+
+        cl.createArg().setValue("--bare");
+
+        cl.createArg().setValue(mirrorDirectory.getName());
+
+        return cl;
+    }
+
+    /**
+     * Create a "git config gc.auto 0" command.
+     *
+     * @param  mirrorDirectory the mirror directory.
+     *
+     * @return the command line to disable automatic garbage collection.
+     */
+    private Commandline createDisableGcCommand(File mirrorDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(mirrorDirectory, "config");
+
+        cl.createArg().setValue("gc.auto");
+
+        cl.createArg().setValue("0");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git fetch url +refs/heads/branch:refs/heads/branch" command.
+     *
+     * @param  mirrorDirectory the mirror directory.
+     * @param  repository      the SCM repository.
+     * @param  version         the remote site branch to fetch.
+     *
+     * @return the command line to fetch the site branch into the mirror.
+     */
+    private Commandline createFetchMirrorCommand(File mirrorDirectory, GitScmProviderRepository repository, ScmVersion version) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(mirrorDirectory, "fetch");
+
+        cl.createArg().setValue("--quiet");
+
+        cl.createArg().setValue(repository.getFetchUrl());
+
+        cl.createArg().setValue("+refs/heads/" + version.getName() + ":refs/heads/" + version.getName());
+
+        return cl;
     }
 
     /**
@@ -145,21 +416,100 @@ public class GitSiteCheckOutCommand extends AbstractCheckOutCommand implements G
     }
 
     /**
-     * Create a "git pull origin refs/heads/branch" command.
+     * Create a "git fetch source refs/heads/branch" command.
      *
      * @param  workingDirectory the working directory.
-     * @param  version          the remote site branch to check out.
+     * @param  source           the remote or repository to fetch from.
+     * @param  version          the remote site branch to fetch.
+     * @param  filterBlobs      whether to fetch blobs on demand.
      *
-     * @return the command line to pull the site branch into the working
-     *         directory.
+     * @return the command line to fetch the site branch into FETCH_HEAD.
      */
-    private Commandline createPullCommand(File workingDirectory, ScmVersion version) {
-        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "pull");
+    private Commandline createFetchCommand(File workingDirectory, String source, ScmVersion version, boolean filterBlobs) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "fetch");
 
-        cl.createArg().setValue("origin");
+        if (shallow) {
+            cl.createArg().setValue("--depth");
+            cl.createArg().setValue("1");
+        }
+
+        if (filterBlobs) {
+            cl.createArg().setValue("--filter=blob:none");
+        }
+
+        cl.createArg().setValue(source);
 
         cl.createArg().setValue("refs/heads/" + version.getName());
 
         return cl;
     }
+
+    /**
+     * Create a "git checkout -B master FETCH_HEAD" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to check the fetched site branch out as master.
+     */
+    private Commandline createCheckoutFetchHeadCommand(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "checkout");
+
+        cl.createArg().setValue("-B");
+
+        cl.createArg().setValue("master");
+
+        cl.createArg().setValue("FETCH_HEAD");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git update-ref refs/heads/master FETCH_HEAD" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to point master at the fetched site branch.
+     */
+    private Commandline createUpdateMasterCommand(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "update-ref");
+
+        cl.createArg().setValue("refs/heads/master");
+
+        cl.createArg().setValue("FETCH_HEAD");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git symbolic-ref HEAD refs/heads/master" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to make master the current branch.
+     */
+    private Commandline createSymbolicRefMasterCommand(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "symbolic-ref");
+
+        cl.createArg().setValue("HEAD");
+
+        cl.createArg().setValue("refs/heads/master");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git read-tree HEAD" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to load the index without touching the working
+     *         tree.
+     */
+    private Commandline createReadTreeCommand(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "read-tree");
+
+        cl.createArg().setValue("HEAD");
+
+        return cl;
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+/**
+ * Command line utilities the gitexe provider doesn't have, for git commands
+ * that read their input from stdin or are talked to over their standard
+ * input and output or write NUL-delimited records, and for counting the git
+ * processes run.
+ *
+ * @author Kathryn Huxtable
+ * @see    org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils
+ */
+public class GitSiteCommandLineUtils {
+
+    /**
+     * The number of git processes started in the JVM, by any thread. Phases
+     * snapshot it at their start and end.
+     */
+    private static final AtomicLong PROCESS_COUNT = new AtomicLong();
+
+    /**
+     * Get the number of git processes started in the JVM so far.
+     *
+     * @return the number of processes.
+     */
+    public static long getProcessCount() {
+        return PROCESS_COUNT.get();
+    }
+
+    /**
+     * Execute a git command line, counting the process.
+     *
+     * @param  cl     the command line.
+     * @param  stdout the consumer for standard output.
+     * @param  stderr the consumer for standard error.
+     * @param  logger the logger.
+     *
+     * @return the exit code of the command.
+     *
+     * @throws ScmException if the command cannot be executed.
+     *
+     * @see    GitCommandLineUtils#execute(Commandline, StreamConsumer,
+     *         CommandLineUtils.StringStreamConsumer, ScmLogger)
+     */
+    public static int execute(Commandline cl, StreamConsumer stdout, CommandLineUtils.StringStreamConsumer stderr, ScmLogger logger)
+        throws ScmException {
+        PROCESS_COUNT.incrementAndGet();
+
+        return GitCommandLineUtils.execute(cl, stdout, stderr, logger);
+    }
+
+    /**
+     * Execute a git command line, feeding a file to its standard input.
+     *
+     * @param  cl     the command line.
+     * @param  input  the file to feed to standard input.
+     * @param  stdout the consumer for standard output.
+     * @param  stderr the consumer for standard error.
+     * @param  logger the logger.
+     *
+     * @return the exit code of the command.
+     *
+     * @throws ScmException if the command cannot be executed.
+     */
+    public static int execute(Commandline cl, File input, StreamConsumer stdout, CommandLineUtils.StringStreamConsumer stderr,
+            ScmLogger logger) throws ScmException {
+        if (logger.isInfoEnabled()) {
+            logger.info("Executing: " + cl + " < " + input);
+            logger.info("Working directory: " + cl.getWorkingDirectory().getAbsolutePath());
+        }
+
+        InputStream in = null;
+
+        PROCESS_COUNT.incrementAndGet();
+
+        try {
+            in = new FileInputStream(input);
+
+            return CommandLineUtils.executeCommandLine(cl, in, stdout, stderr);
+        } catch (IOException e) {
+            throw new ScmException("Error while executing command.", e);
+        } catch (CommandLineException e) {
+            throw new ScmException("Error while executing command.", e);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Start a git command line, counting the process, for callers talking to
+     * it over its standard input and output.
+     *
+     * @param  cl     the command line.
+     * @param  logger the logger.
+     *
+     * @return the process.
+     *
+     * @throws ScmException if the command cannot be executed.
+     */
+    public static Process start(Commandline cl, ScmLogger logger) throws ScmException {
+        if (logger.isInfoEnabled()) {
+            logger.info("Executing: " + cl);
+            logger.info("Working directory: " + cl.getWorkingDirectory().getAbsolutePath());
+        }
+
+        PROCESS_COUNT.incrementAndGet();
+
+        try {
+            return cl.execute();
+        } catch (CommandLineException e) {
+            throw new ScmException("Error while executing command.", e);
+        }
+    }
+
+    /**
+     * Execute a git command line whose standard output is NUL-delimited, as
+     * with "-z", passing each record to a consumer as it is read.
+     *
+     * @param  cl      the command line.
+     * @param  records the consumer for the records of standard output.
+     * @param  stderr  the consumer for standard error.
+     * @param  logger  the logger.
+     *
+     * @return the exit code of the command.
+     *
+     * @throws ScmException if the command cannot be executed.
+     */
+    public static int executeNulDelimited(Commandline cl, StreamConsumer records, StreamConsumer stderr, ScmLogger logger)
+        throws ScmException {
+        Process process = start(cl, logger);
+
+        IOUtil.close(process.getOutputStream());
+
+        StreamPumper          errorPumper = new StreamPumper(process.getErrorStream(), stderr);
+        InputStream           in          = new BufferedInputStream(process.getInputStream());
+        ByteArrayOutputStream record      = new ByteArrayOutputStream(256);
+
+        errorPumper.setDaemon(true);
+        errorPumper.start();
+
+        try {
+            for (int b = in.read(); b >= 0; b = in.read()) {
+                if (b == 0) {
+                    records.consumeLine(record.toString("UTF-8"));
+                    record.reset();
+                } else {
+                    record.write(b);
+                }
+            }
+
+            if (record.size() > 0) {
+                records.consumeLine(record.toString("UTF-8"));
+            }
+
+            int exitCode = process.waitFor();
+
+            errorPumper.join();
+
+            return exitCode;
+        } catch (IOException e) {
+            process.destroy();
+            throw new ScmException("Error while executing command.", e);
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw new ScmException("Error while executing command.", e);
+        } finally {
+            errorPumper.close();
+            IOUtil.close(in);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import java.lang.reflect.Method;
+
+/**
+ * The git mode of a deployed file: 100755 if it is executable, otherwise
+ * 100644, as "git add" stages it with core.fileMode set.
+ *
+ * <p>The executable bit is read and written with the Java 6 File methods,
+ * looked up reflectively. On Java 5 no file is executable.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+final class GitSiteFileMode {
+
+    /** The index mode of a regular file. */
+    public static final String REGULAR = "100644";
+
+    /** The index mode of an executable file. */
+    public static final String EXECUTABLE = "100755";
+
+    /** The File.canExecute method, or {@code null}. */
+    private static final Method CAN_EXECUTE = getMethod("canExecute");
+
+    /** The File.setExecutable(boolean) method, or {@code null}. */
+    private static final Method SET_EXECUTABLE = getMethod("setExecutable", Boolean.TYPE);
+
+    /**
+     * Not instantiated.
+     */
+    private GitSiteFileMode() {
+    }
+
+    /**
+     * Get the index mode of a file.
+     *
+     * @param  file the file.
+     *
+     * @return {@link #EXECUTABLE} if the file is executable, otherwise
+     *         {@link #REGULAR}.
+     */
+    public static String getMode(File file) {
+        return isExecutable(file) ? EXECUTABLE : REGULAR;
+    }
+
+    /**
+     * Make a copy executable if its source is.
+     *
+     * @param source the source file.
+     * @param target the copy.
+     */
+    public static void copyMode(File source, File target) {
+        if (SET_EXECUTABLE != null && isExecutable(source)) {
+            try {
+                SET_EXECUTABLE.invoke(target, Boolean.TRUE);
+            } catch (Exception e) {
+                // The copy stays a regular file.
+            }
+        }
+    }
+
+    /**
+     * Whether a file is executable.
+     *
+     * @param  file the file.
+     *
+     * @return {@code true} if the file is executable.
+     */
+    private static boolean isExecutable(File file) {
+        if (CAN_EXECUTE == null) {
+            return false;
+        }
+
+        try {
+            return Boolean.TRUE.equals(CAN_EXECUTE.invoke(file));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Look up a File method.
+     *
+     * @param  name           the method name.
+     * @param  parameterTypes the parameter types.
+     *
+     * @return the method, or {@code null} if this Java lacks it.
+     */
+    private static Method getMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return File.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.AbstractCommand;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Get the time of the last commit of the fetched site branch that changed a
+ * file.
+ *
+ * <p>The file set's base directory is the working directory, and its one
+ * file is the path in the site branch, which the caller has checked is a file
+ * of the fetched tip. The time is available from {@link #getLastModified()}
+ * after the command has run, and is zero if the path was never changed.</p>
+ *
+ * <p>After a shallow fetch the history stops at the tip, so every file was
+ * last modified by the tip commit.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteLastModifiedCommand extends AbstractCommand implements GitCommand {
+
+    /** The commit time in milliseconds, or zero if there is no such file. */
+    private long lastModified;
+
+    /**
+     * Get the time of the last commit that changed the file.
+     *
+     * @return the commit time in milliseconds, or zero if the path was never
+     *         changed.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.AbstractCommand#executeCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet,
+     *      org.apache.maven.scm.CommandParameters)
+     */
+    protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters)
+        throws ScmException {
+        File   workingDirectory = fileSet.getBasedir();
+        String path             = ((File) fileSet.getFileList().get(0)).getPath().replace(File.separatorChar, '/');
+
+        lastModified = 0;
+
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+
+        Commandline cl       = createLogCommandLine(workingDirectory, path);
+        int         exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+
+        if (exitCode != 0) {
+            return new ScmResult(cl.toString(), "The git-log command failed.", stderr.getOutput(), false);
+        }
+
+        String time = stdout.getOutput().trim();
+
+        if (time.length() == 0) {
+            return new ScmResult(cl.toString(), null, null, true);
+        }
+
+        try {
+            lastModified = Long.parseLong(time) * 1000;
+        } catch (NumberFormatException e) {
+            return new ScmResult(cl.toString(), "Unexpected git-log output: " + time, stderr.getOutput(), false);
+        }
+
+        return new ScmResult(cl.toString(), null, null, true);
+    }
+
+    /**
+     * Create a "git log -1 --format=%ct FETCH_HEAD -- path" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  path             the path in the site branch.
+     *
+     * @return the command line to get the commit time of the last change.
+     */
+    private Commandline createLogCommandLine(File workingDirectory, String path) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "log");
+
+        cl.createArg().setValue("-1");
+
+        cl.createArg().setValue("--format=%ct");
+
+        cl.createArg().setValue(GitSiteCheckOutCommand.TIP);
+
+        cl.createArg().setValue("--");
+
+        cl.createArg().setValue(path);
+
+        return cl;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFile;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmFileStatus;
+import org.apache.maven.scm.ScmVersion;
+import org.apache.maven.scm.command.list.AbstractListCommand;
+import org.apache.maven.scm.command.list.ListScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * List the blob ids recorded in the index of the working copy, so that
+ * unchanged files can be skipped when deploying.
+ *
+ * <p>The file set's base directory is the working directory, and its files
+ * are the paths to list. The blob ids are available from
+ * {@link #getBlobIds()} after the command has run.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteListBlobsCommand extends AbstractListCommand implements GitCommand {
+
+    /** The blob ids, keyed by path relative to the working directory. */
+    private Map<String, String> blobIds = new HashMap<String, String>();
+
+    /**
+     * Get the blob ids listed.
+     *
+     * @return the blob ids, keyed by path relative to the working directory,
+     *         using "/" as separator.
+     */
+    public Map<String, String> getBlobIds() {
+        return blobIds;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.list.AbstractListCommand#executeListCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet, boolean,
+     *      org.apache.maven.scm.ScmVersion)
+     */
+    protected ListScmResult executeListCommand(ScmProviderRepository repo, ScmFileSet fileSet, boolean recursive, ScmVersion version)
+        throws ScmException {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        Commandline cl       = createCommandLine(fileSet);
+        int         exitCode = GitSiteCommandLineUtils.execute(cl, new BlobIdConsumer(), stderr, getLogger());
+
+        if (exitCode != 0) {
+            return new ListScmResult(cl.toString(), "The git-ls-files command failed.", stderr.getOutput(), false);
+        }
+
+        List<ScmFile> files = new ArrayList<ScmFile>(blobIds.size());
+
+        for (String path : blobIds.keySet()) {
+            files.add(new ScmFile(path, ScmFileStatus.CHECKED_IN));
+        }
+
+        return new ListScmResult(cl.toString(), files);
+    }
+
+    /**
+     * Create a "git -c core.quotepath=off ls-files --stage -- paths" command.
+     *
+     * @param  fileSet the working directory and paths to list.
+     *
+     * @return the command line to list the staged blobs.
+     */
+    private Commandline createCommandLine(ScmFileSet fileSet) {
+        Commandline cl = new Commandline();
+
+        cl.setExecutable("git");
+
+        cl.setWorkingDirectory(fileSet.getBasedir().getAbsolutePath());
+
+        cl.createArg().setValue("-c");
+
+        cl.createArg().setValue("core.quotepath=off");
+
+        cl.createArg().setValue("ls-files");
+
+        cl.createArg().setValue("--stage");
+
+        cl.createArg().setValue("--");
+
+        for (Object o : fileSet.getFileList()) {
+            File file = (File) o;
+
+            cl.createArg().setValue(file.getPath().length() == 0 ? "." : file.getPath());
+        }
+
+        return cl;
+    }
+
+    /**
+     * Parse "mode id stage&lt;TAB&gt;path" lines into the blob id map.
+     */
+    private class BlobIdConsumer implements StreamConsumer {
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            int tab = line.indexOf('\t');
+
+            if (tab < 0) {
+                return;
+            }
+
+            String[] fields = line.substring(0, tab).split(" ");
+
+            if (fields.length == 3 && "0".equals(fields[2])) {
+                blobIds.put(line.substring(tab + 1), fields[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.AbstractCommand;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * List the paths of the files of the fetched site branch tip.
+ *
+ * <p>The file set's base directory is the working directory. The paths are
+ * available from {@link #getPaths()} after the command has run, in git tree
+ * order.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteListTreeCommand extends AbstractCommand implements GitCommand {
+
+    /** The paths, relative to the root of the site branch. */
+    private List<String> paths = new ArrayList<String>();
+
+    /**
+     * Get the paths listed.
+     *
+     * @return the paths of the files, using "/" as separator.
+     */
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.AbstractCommand#executeCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet,
+     *      org.apache.maven.scm.CommandParameters)
+     */
+    protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters)
+        throws ScmException {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        Commandline cl       = createCommandLine(fileSet.getBasedir());
+        int         exitCode = GitSiteCommandLineUtils.execute(cl, new PathConsumer(), stderr, getLogger());
+
+        if (exitCode != 0) {
+            return new ScmResult(cl.toString(), "The git-ls-tree command failed.", stderr.getOutput(), false);
+        }
+
+        return new ScmResult(cl.toString(), null, null, true);
+    }
+
+    /**
+     * Create a "git -c core.quotepath=off ls-tree -r --name-only FETCH_HEAD"
+     * command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to list the files of the fetched tip.
+     */
+    private Commandline createCommandLine(File workingDirectory) {
+        Commandline cl = new Commandline();
+
+        cl.setExecutable("git");
+
+        cl.setWorkingDirectory(workingDirectory.getAbsolutePath());
+
+        cl.createArg().setValue("-c");
+
+        cl.createArg().setValue("core.quotepath=off");
+
+        cl.createArg().setValue("ls-tree");
+
+        cl.createArg().setValue("-r");
+
+        cl.createArg().setValue("--name-only");
+
+        cl.createArg().setValue(GitSiteCheckOutCommand.TIP);
+
+        return cl;
+    }
+
+    /**
+     * Collect the listed paths.
+     */
+    private class PathConsumer implements StreamConsumer {
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            if (line.length() > 0) {
+                paths.add(line);
+            }
+        }
+    }
+}
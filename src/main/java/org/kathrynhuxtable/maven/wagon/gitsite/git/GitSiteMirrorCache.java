@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.maven.scm.ScmException;
+
+/**
+ * A bare mirror of a site branch kept in a local cache directory between
+ * builds.
+ *
+ * <p>Each mirror is keyed by the fetch URL and the site branch. Access is
+ * serialized with a lock file next to the mirror, so that concurrent builds
+ * on the same machine don't corrupt it, and with an in-process lock, since
+ * file locks are held per JVM.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteMirrorCache {
+
+    /** The in-process locks, keyed by lock file path. */
+    private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock>();
+
+    /** The mirror repository directory. */
+    private File mirrorDirectory;
+
+    /** The lock file guarding the mirror repository. */
+    private File lockFile;
+
+    /** The in-process lock, while held. */
+    private ReentrantLock threadLock;
+
+    /** The lock file, while held. */
+    private RandomAccessFile lockRandomAccessFile;
+
+    /** The file lock, while held. */
+    private FileLock fileLock;
+
+    /**
+     * Create a new GitSiteMirrorCache object.
+     *
+     * @param cacheDirectory the cache directory holding all mirrors.
+     * @param fetchUrl       the fetch URL of the remote repository.
+     * @param branch         the site branch.
+     */
+    public GitSiteMirrorCache(File cacheDirectory, String fetchUrl, String branch) {
+        String key = getKey(fetchUrl, branch);
+
+        this.mirrorDirectory = new File(cacheDirectory, key + ".git");
+        this.lockFile        = new File(cacheDirectory, key + ".lock");
+    }
+
+    /**
+     * Get the mirror repository directory.
+     *
+     * @return the mirror repository directory.
+     */
+    public File getMirrorDirectory() {
+        return mirrorDirectory;
+    }
+
+    /**
+     * Get the objects directory of the mirror repository.
+     *
+     * @return the objects directory.
+     */
+    public File getObjectsDirectory() {
+        return new File(mirrorDirectory, "objects");
+    }
+
+    /**
+     * Whether the mirror repository has been created.
+     *
+     * @return {@code true} if the mirror repository exists.
+     */
+    public boolean exists() {
+        return new File(mirrorDirectory, "HEAD").exists();
+    }
+
+    /**
+     * Lock the mirror, waiting for other threads and processes to release it.
+     *
+     * @throws ScmException if the lock file cannot be locked.
+     */
+    public void lock() throws ScmException {
+        synchronized (LOCKS) {
+            threadLock = LOCKS.get(lockFile.getAbsolutePath());
+            if (threadLock == null) {
+                threadLock = new ReentrantLock();
+                LOCKS.put(lockFile.getAbsolutePath(), threadLock);
+            }
+        }
+
+        threadLock.lock();
+
+        try {
+            lockFile.getParentFile().mkdirs();
+            lockRandomAccessFile = new RandomAccessFile(lockFile, "rw");
+            fileLock             = lockRandomAccessFile.getChannel().lock();
+        } catch (IOException e) {
+            unlock();
+
+            throw new ScmException("Unable to lock the site mirror " + lockFile, e);
+        }
+    }
+
+    /**
+     * Release the lock on the mirror. Does nothing if the mirror isn't locked.
+     */
+    public void unlock() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+
+            if (lockRandomAccessFile != null) {
+                lockRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            fileLock             = null;
+            lockRandomAccessFile = null;
+
+            if (threadLock != null && threadLock.isHeldByCurrentThread()) {
+                threadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the cache key for a fetch URL and site branch.
+     *
+     * @param  fetchUrl the fetch URL.
+     * @param  branch   the site branch.
+     *
+     * @return a hex-encoded SHA-1 of the URL and branch.
+     */
+    public static String getKey(String fetchUrl, String branch) {
+        try {
+            byte[]        digest = MessageDigest.getInstance("SHA-1").digest((fetchUrl + "\n" + branch).getBytes("UTF-8"));
+            StringBuilder key    = new StringBuilder(digest.length * 2);
+
+            for (int i = 0; i < digest.length; i++) {
+                key.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                key.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available");
+        } catch (IOException e) {
+            throw new IllegalStateException("UTF-8 is not available");
+        }
+    }
+}
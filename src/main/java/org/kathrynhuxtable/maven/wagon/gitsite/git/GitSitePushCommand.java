@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.ScmVersion;
+import org.apache.maven.scm.command.AbstractCommand;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Push the local master branch to the site branch of the remote site.
+ *
+ * <p>The site branch is given as the {@link CommandParameter#SCM_VERSION}
+ * parameter. If the push fails because the remote repository rejected the
+ * update, typically because the site branch moved since it was fetched,
+ * {@link #isRejected()} is set, so that the commit can be replayed onto the
+ * new tip with {@link GitSiteRebaseCommand} and pushed again.</p>
+ *
+ * <p>The push sends a thin pack, whose changed blobs are deltas against the
+ * blobs of the fetched tip, which the remote repository already has. The
+ * size of the pack is read from git's progress output, so it is only as
+ * exact as git's rounding to two decimal places of its unit. That output is
+ * localized, so git is run in the C locale.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSitePushCommand extends AbstractCommand implements GitCommand {
+
+    /** The final progress line of the pack written, with its size. */
+    private static final Pattern WRITING_OBJECTS = Pattern.compile("Writing objects: 100% \\(\\d+/\\d+\\), ([\\d.]+) (bytes?|KiB|MiB|GiB)");
+
+    /**
+     * The reasons for which a rejected update is worth replaying and retrying:
+     * the site branch moved, or another push held its lock while the remote
+     * repository updated it.
+     */
+    private static final Pattern RETRYABLE = Pattern.compile("\\[rejected\\] \\((non-fast-forward|fetch first|stale info)\\)"
+                                                             + "|\\[remote rejected\\] \\((failed to update ref|cannot lock ref)");
+
+    /** The reason the update of the site branch was rejected, or {@code null}. */
+    private String rejection;
+
+    /** The summary of an update refused for any other reason, or {@code null}. */
+    private String refusal;
+
+    /** The compressed bytes sent. */
+    private long pushedBytes;
+
+    /**
+     * Whether the update of the site branch was rejected by the remote
+     * repository because the site branch moved, rather than the push failing
+     * to run or being refused, e.g. by a hook or for lack of permission.
+     *
+     * @return {@code true} if the update was rejected and can be retried.
+     */
+    public boolean isRejected() {
+        return rejection != null;
+    }
+
+    /**
+     * Get the reason the update of the site branch was rejected.
+     *
+     * @return the summary of the rejected ref, e.g. "[rejected] (fetch
+     *         first)", or {@code null} if it was not rejected.
+     */
+    public String getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Get the size of the pack sent.
+     *
+     * @return the compressed bytes sent, zero if nothing was sent.
+     */
+    public long getPushedBytes() {
+        return pushedBytes;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.AbstractCommand#executeCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet,
+     *      org.apache.maven.scm.CommandParameters)
+     */
+    protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters)
+        throws ScmException {
+        ScmVersion version = parameters.getScmVersion(CommandParameter.SCM_VERSION, null);
+
+        GitSiteTailConsumer stderr = new ProgressConsumer();
+
+        Commandline cl = createPushCommandLine(fileSet.getBasedir(), version);
+
+        rejection   = null;
+        refusal     = null;
+        pushedBytes = 0;
+
+        int exitCode = GitSiteCommandLineUtils.execute(cl, new StatusConsumer(), stderr, getLogger());
+
+        if (exitCode != 0) {
+            String message = refusal == null ? "The git-push command failed." : "The git-push command was refused: " + refusal;
+
+            return new ScmResult(cl.toString(), message, stderr.getOutput(), false);
+        }
+
+        return new ScmResult(cl.toString(), null, null, true);
+    }
+
+    /**
+     * Create the "git push --porcelain --thin --progress origin" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  version          the site branch.
+     *
+     * @return the command line to push the changes to the site branch.
+     */
+    private Commandline createPushCommandLine(File workingDirectory, ScmVersion version) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "push");
+
+        // The progress carrying the pack size is translated in other locales.
+        cl.addEnvironment("LC_ALL", "C");
+
+        cl.createArg().setValue("--porcelain");
+
+        cl.createArg().setValue("--thin");
+
+        // Progress is only written to a terminal unless asked for, and it carries the pack size.
+        cl.createArg().setValue("--progress");
+
+        cl.createArg().setValue("origin");
+
+        cl.createArg().setValue("master:" + version.getName());
+
+        return cl;
+    }
+
+    /**
+     * Parse the "flag&lt;TAB&gt;from:to&lt;TAB&gt;summary" lines of the
+     * porcelain output, noting a rejected ref, flagged "!". Only a rejection
+     * because the site branch moved is retryable; a "[remote rejected]" or any
+     * other reason is a refusal.
+     */
+    private class StatusConsumer implements StreamConsumer {
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            if (line.startsWith("!\t")) {
+                String summary = line.substring(line.indexOf('\t', 2) + 1);
+
+                if (RETRYABLE.matcher(summary).lookingAt()) {
+                    rejection = summary;
+                } else {
+                    refusal = summary;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the size of the pack from the progress lines, keeping the last
+     * update of each line as diagnostics.
+     */
+    private class ProgressConsumer extends GitSiteTailConsumer {
+
+        /**
+         * @see org.kathrynhuxtable.maven.wagon.gitsite.git.GitSiteTailConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            // Progress is updated in place, with carriage returns.
+            line = line.substring(line.lastIndexOf('\r') + 1);
+
+            Matcher matcher = WRITING_OBJECTS.matcher(line);
+
+            if (matcher.lookingAt()) {
+                pushedBytes = parseSize(matcher.group(1), matcher.group(2));
+            }
+
+            super.consumeLine(line);
+        }
+
+        /**
+         * Parse a size as git writes it for humans.
+         *
+         * @param  value the number, with at most two decimal places.
+         * @param  unit  "byte", "bytes", "KiB", "MiB" or "GiB".
+         *
+         * @return the size in bytes.
+         */
+        private long parseSize(String value, String unit) {
+            double size = Double.parseDouble(value);
+
+            if ("KiB".equals(unit)) {
+                size *= 1L << 10;
+            } else if ("MiB".equals(unit)) {
+                size *= 1L << 20;
+            } else if ("GiB".equals(unit)) {
+                size *= 1L << 30;
+            }
+
+            return Math.round(size);
+        }
+    }
+}
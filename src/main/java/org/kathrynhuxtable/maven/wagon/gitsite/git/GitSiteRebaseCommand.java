@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.ScmVersion;
+import org.apache.maven.scm.command.AbstractCommand;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Replay the deploy commit on master onto the new tip of the site branch,
+ * after a push was rejected because the site branch moved since it was
+ * fetched.
+ *
+ * <p>The new tip is fetched, and the changes the deploy commit made to its
+ * parent are applied to the new tip's tree in the index, the deploy winning
+ * at every path it changed. The result is committed on top of the new tip
+ * with the deploy commit's message, and master is moved to it. The working
+ * tree is not touched, so this works with or without one.</p>
+ *
+ * <p>The site branch is given as the {@link CommandParameter#SCM_VERSION}
+ * parameter. Nothing is replayed if the site branch has not moved.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteRebaseCommand extends AbstractCommand implements GitCommand {
+
+    /**
+     * @see org.apache.maven.scm.command.AbstractCommand#executeCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet,
+     *      org.apache.maven.scm.CommandParameters)
+     */
+    protected ScmResult executeCommand(ScmProviderRepository repository, ScmFileSet fileSet, CommandParameters parameters)
+        throws ScmException {
+        ScmVersion version          = parameters.getScmVersion(CommandParameter.SCM_VERSION, null);
+        File       workingDirectory = fileSet.getBasedir();
+
+        GitSiteTailConsumer stderr = new GitSiteTailConsumer();
+        GitSiteTailConsumer stdout = new GitSiteTailConsumer();
+
+        int exitCode;
+
+        // The tip the deploy commit was made on.
+        Commandline cl = createRevParseCommandLine(workingDirectory, "master^");
+
+        exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+        if (exitCode != 0) {
+            return new ScmResult(cl.toString(), "The git-rev-parse command failed.", stderr.getOutput(), false);
+        }
+
+        String base = stdout.getOutput().trim();
+
+        cl       = createFetchCommandLine(workingDirectory, version);
+        exitCode = GitSiteCommandLineUtils.execute(cl, new GitSiteTailConsumer(), stderr, getLogger());
+        if (exitCode != 0) {
+            return new ScmResult(cl.toString(), "The git-fetch command failed.", stderr.getOutput(), false);
+        }
+
+        stdout   = new GitSiteTailConsumer();
+        cl       = createRevParseCommandLine(workingDirectory, GitSiteCheckOutCommand.TIP);
+        exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+        if (exitCode != 0) {
+            return new ScmResult(cl.toString(), "The git-rev-parse command failed.", stderr.getOutput(), false);
+        }
+
+        if (base.equals(stdout.getOutput().trim())) {
+            return new ScmResult(cl.toString(), null, null, true);
+        }
+
+        File indexInfoFile = FileUtils.createTempFile("maven-scm-", ".index", null);
+        File messageFile   = FileUtils.createTempFile("maven-scm-", ".commit", null);
+
+        Writer          indexInfo = null;
+        IndexInfoWriter consumer  = null;
+
+        try {
+            indexInfo = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexInfoFile), "UTF-8"));
+            consumer  = new IndexInfoWriter(indexInfo);
+
+            // Turn each change of the deploy commit into an index entry as it arrives.
+            cl       = createDiffTreeCommandLine(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.executeNulDelimited(cl, consumer, stderr, getLogger());
+            indexInfo.close();
+            if (exitCode != 0 || consumer.getError() != null) {
+                return new ScmResult(cl.toString(), "The git-diff-tree command failed.", stderr.getOutput(), false);
+            }
+
+            cl       = createReadTreeCommandLine(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, new GitSiteTailConsumer(), stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-read-tree command failed.", stderr.getOutput(), false);
+            }
+
+            cl       = createUpdateIndexCommandLine(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, indexInfoFile, new GitSiteTailConsumer(), stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-update-index command failed.", stderr.getOutput(), false);
+            }
+
+            stdout   = new GitSiteTailConsumer();
+            cl       = createWriteTreeCommandLine(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-write-tree command failed.", stderr.getOutput(), false);
+            }
+
+            String tree = stdout.getOutput().trim();
+
+            CommandLineUtils.StringStreamConsumer message = new CommandLineUtils.StringStreamConsumer();
+
+            cl       = createShowMessageCommandLine(workingDirectory);
+            exitCode = GitSiteCommandLineUtils.execute(cl, message, stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-show command failed.", stderr.getOutput(), false);
+            }
+
+            FileUtils.fileWrite(messageFile.getAbsolutePath(), "UTF-8", message.getOutput());
+
+            stdout   = new GitSiteTailConsumer();
+            cl       = createCommitTreeCommandLine(workingDirectory, tree, messageFile);
+            exitCode = GitSiteCommandLineUtils.execute(cl, stdout, stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-commit-tree command failed.", stderr.getOutput(), false);
+            }
+
+            cl       = createUpdateMasterCommandLine(workingDirectory, stdout.getOutput().trim());
+            exitCode = GitSiteCommandLineUtils.execute(cl, new GitSiteTailConsumer(), stderr, getLogger());
+            if (exitCode != 0) {
+                return new ScmResult(cl.toString(), "The git-update-ref command failed.", stderr.getOutput(), false);
+            }
+
+            return new ScmResult(cl.toString(), null, null, true);
+        } catch (IOException e) {
+            return new ScmResult("write index info", "Unable to replay the commit.", e.getMessage(), false);
+        } finally {
+            IOUtil.close(indexInfo);
+            FileUtils.fileDelete(indexInfoFile.getAbsolutePath());
+            FileUtils.fileDelete(messageFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Create a "git rev-parse --verify rev" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  revision         the revision.
+     *
+     * @return the command line to print the object id of the revision.
+     */
+    private Commandline createRevParseCommandLine(File workingDirectory, String revision) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "rev-parse");
+
+        cl.createArg().setValue("--verify");
+
+        cl.createArg().setValue(revision);
+
+        return cl;
+    }
+
+    /**
+     * Create a "git fetch origin refs/heads/branch" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  version          the site branch.
+     *
+     * @return the command line to fetch the new tip of the site branch.
+     */
+    private Commandline createFetchCommandLine(File workingDirectory, ScmVersion version) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "fetch");
+
+        cl.createArg().setValue("--quiet");
+
+        cl.createArg().setValue("origin");
+
+        cl.createArg().setValue("refs/heads/" + version.getName());
+
+        return cl;
+    }
+
+    /**
+     * Create a "git diff-tree -r -z --no-renames master^ master" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to list the changes of the deploy commit.
+     */
+    private Commandline createDiffTreeCommandLine(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "diff-tree");
+
+        cl.createArg().setValue("-r");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--no-renames");
+
+        cl.createArg().setValue("master^");
+
+        cl.createArg().setValue("master");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git read-tree FETCH_HEAD" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to load the new tip's tree into the index.
+     */
+    private Commandline createReadTreeCommandLine(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "read-tree");
+
+        cl.createArg().setValue(GitSiteCheckOutCommand.TIP);
+
+        return cl;
+    }
+
+    /**
+     * Create a "git update-index -z --index-info" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to apply the changes to the index.
+     */
+    private Commandline createUpdateIndexCommandLine(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "update-index");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--index-info");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git write-tree --missing-ok" command. The blobs of the new tip
+     * need not be local, as with a partial clone.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to write the index as a tree.
+     */
+    private Commandline createWriteTreeCommandLine(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "write-tree");
+
+        cl.createArg().setValue("--missing-ok");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git show -s --format=%B master" command.
+     *
+     * @param  workingDirectory the working directory.
+     *
+     * @return the command line to print the deploy commit's message.
+     */
+    private Commandline createShowMessageCommandLine(File workingDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "show");
+
+        cl.createArg().setValue("-s");
+
+        cl.createArg().setValue("--format=%B");
+
+        cl.createArg().setValue("master");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git commit-tree tree -p FETCH_HEAD -F file" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  tree             the replayed tree.
+     * @param  messageFile      the file containing the commit message.
+     *
+     * @return the command line to commit the tree on top of the new tip.
+     */
+    private Commandline createCommitTreeCommandLine(File workingDirectory, String tree, File messageFile) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "commit-tree");
+
+        cl.createArg().setValue(tree);
+
+        cl.createArg().setValue("-p");
+
+        cl.createArg().setValue(GitSiteCheckOutCommand.TIP);
+
+        cl.createArg().setValue("-F");
+
+        cl.createArg().setValue(messageFile.getAbsolutePath());
+
+        return cl;
+    }
+
+    /**
+     * Create a "git update-ref refs/heads/master commit" command.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  commit           the replayed commit.
+     *
+     * @return the command line to move master to the replayed commit.
+     */
+    private Commandline createUpdateMasterCommandLine(File workingDirectory, String commit) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(workingDirectory, "update-ref");
+
+        cl.createArg().setValue("refs/heads/master");
+
+        cl.createArg().setValue(commit);
+
+        return cl;
+    }
+
+    /**
+     * Consume the ":oldmode newmode oldid newid status" and path records of
+     * "git diff-tree -z", writing an index entry for each changed path, or a
+     * removal for each deleted one.
+     */
+    private static class IndexInfoWriter implements StreamConsumer {
+
+        /** The index info output. */
+        private Writer out;
+
+        /** The header of the change whose path is expected next. */
+        private String[] header;
+
+        /** The first write error, if any. */
+        private IOException error;
+
+        /**
+         * Create a new IndexInfoWriter object.
+         *
+         * @param out the index info output.
+         */
+        public IndexInfoWriter(Writer out) {
+            this.out = out;
+        }
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String record) {
+            if (header == null) {
+                if (record.startsWith(":")) {
+                    header = record.substring(1).split(" ");
+                }
+
+                return;
+            }
+
+            String[] change = header;
+
+            header = null;
+
+            if (error != null || change.length != 5) {
+                return;
+            }
+
+            try {
+                if (change[4].startsWith("D")) {
+                    out.write("0 " + change[2].replaceAll(".", "0") + "\t" + record + "\0");
+                } else {
+                    out.write(change[1] + " " + change[3] + "\t" + record + "\0");
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Get the first write error.
+         *
+         * @return the error, or {@code null} if there was none.
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+import java.util.Collections;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.remove.AbstractRemoveCommand;
+import org.apache.maven.scm.command.remove.RemoveScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker;
+
+/**
+ * Remove the files of a subtree of the index that are not in a source
+ * directory, so that the subtree mirrors the source.
+ *
+ * <p>The stale files are found with a single merge-join of the sorted output
+ * of "git ls-files" against a sorted walk of the source directory, neither of
+ * which is held in memory. The removals are written to a temporary file as
+ * they are found and entered in the index with a single "git update-index".
+ * </p>
+ *
+ * <p>The file set's base directory is the repository directory, and its only
+ * file is the subtree to mirror into, relative to the base directory. The
+ * source directory is given with {@link #setSource(GitSiteTreeWalker)}.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteRemoveStaleCommand extends AbstractRemoveCommand implements GitCommand {
+
+    /** The object id of an index entry being removed. */
+    private static final String NULL_ID = "0000000000000000000000000000000000000000";
+
+    /** The sorted paths of the source directory. */
+    private GitSiteTreeWalker source;
+
+    /** Whether to delete the stale files from the working tree too. */
+    private boolean workTree = true;
+
+    /** The number of files removed. */
+    private int removedCount;
+
+    /**
+     * Set the source directory to mirror.
+     *
+     * @param source the sorted paths of the source directory, relative to it.
+     */
+    public void setSource(GitSiteTreeWalker source) {
+        this.source = source;
+    }
+
+    /**
+     * Set whether to delete the stale files from the working tree too.
+     *
+     * @param workTree {@code false} if the repository has no working tree.
+     */
+    public void setWorkTree(boolean workTree) {
+        this.workTree = workTree;
+    }
+
+    /**
+     * Get the number of files removed.
+     *
+     * @return the number of files removed.
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.remove.AbstractRemoveCommand#executeRemoveCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet, java.lang.String)
+     */
+    protected ScmResult executeRemoveCommand(ScmProviderRepository repo, ScmFileSet fileSet, String message) throws ScmException {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        File   basedir    = fileSet.getBasedir();
+        String targetPath = ((File) fileSet.getFileList().get(0)).getPath().replace(File.separatorChar, '/');
+
+        int exitCode;
+
+        File indexInfoFile = FileUtils.createTempFile("maven-scm-", ".index", null);
+
+        Writer           indexInfo = null;
+        StaleEntryWriter consumer  = null;
+
+        try {
+            indexInfo = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexInfoFile), "UTF-8"));
+            consumer  = new StaleEntryWriter(workTree ? basedir : null, targetPath, source, indexInfo);
+
+            Commandline cl = createListCommandLine(basedir, targetPath);
+
+            exitCode = GitSiteCommandLineUtils.execute(cl, consumer, stderr, getLogger());
+            indexInfo.close();
+            if (exitCode != 0 || consumer.getError() != null) {
+                return new RemoveScmResult(cl.toString(), "The git-ls-files command failed.", stderr.getOutput(), false);
+            }
+
+            removedCount = consumer.getCount();
+
+            if (removedCount == 0) {
+                return new RemoveScmResult(cl.toString(), Collections.EMPTY_LIST);
+            }
+
+            cl       = createUpdateIndexCommandLine(basedir);
+            exitCode = GitSiteCommandLineUtils.execute(cl, indexInfoFile, new CommandLineUtils.StringStreamConsumer(), stderr,
+                                                       getLogger());
+            if (exitCode != 0) {
+                return new RemoveScmResult(cl.toString(), "The git-update-index command failed.", stderr.getOutput(), false);
+            }
+
+            return new RemoveScmResult(cl.toString(), Collections.EMPTY_LIST);
+        } catch (IOException e) {
+            return new RemoveScmResult("write index info", "Unable to remove the stale files.", e.getMessage(), false);
+        } finally {
+            IOUtil.close(indexInfo);
+            FileUtils.fileDelete(indexInfoFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Create a "git -c core.quotepath=off ls-files -- path" command.
+     *
+     * @param  repositoryDirectory the repository directory.
+     * @param  targetPath          the subtree to list, or the empty string for
+     *                             everything.
+     *
+     * @return the command line to list the subtree.
+     */
+    private Commandline createListCommandLine(File repositoryDirectory, String targetPath) {
+        Commandline cl = new Commandline();
+
+        cl.setExecutable("git");
+
+        cl.setWorkingDirectory(repositoryDirectory.getAbsolutePath());
+
+        cl.createArg().setValue("-c");
+
+        cl.createArg().setValue("core.quotepath=off");
+
+        cl.createArg().setValue("ls-files");
+
+        cl.createArg().setValue("--");
+
+        cl.createArg().setValue(targetPath.length() == 0 ? "." : targetPath);
+
+        return cl;
+    }
+
+    /**
+     * Create a "git update-index -z --index-info" command.
+     *
+     * @param  repositoryDirectory the repository directory.
+     *
+     * @return the command line to remove the entries from the index.
+     */
+    private Commandline createUpdateIndexCommandLine(File repositoryDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(repositoryDirectory, "update-index");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--index-info");
+
+        return cl;
+    }
+
+    /**
+     * Undo the C-style quoting git applies to paths with unusual characters.
+     *
+     * @param  line the path as listed by git.
+     *
+     * @return the path.
+     *
+     * @throws UnsupportedEncodingException
+     */
+    static String unquotePath(String line) throws UnsupportedEncodingException {
+        if (line.length() < 2 || line.charAt(0) != '"' || line.charAt(line.length() - 1) != '"') {
+            return line;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(line.length());
+
+        for (int i = 1; i < line.length() - 1; i++) {
+            char c = line.charAt(i);
+
+            if (c != '\\' || i + 1 == line.length() - 1) {
+                byte[] b = String.valueOf(c).getBytes("UTF-8");
+
+                bytes.write(b, 0, b.length);
+                continue;
+            }
+
+            c = line.charAt(++i);
+
+            switch (c) {
+
+            case 'a':
+                bytes.write(7);
+                break;
+
+            case 'b':
+                bytes.write('\b');
+                break;
+
+            case 't':
+                bytes.write('\t');
+                break;
+
+            case 'n':
+                bytes.write('\n');
+                break;
+
+            case 'v':
+                bytes.write(11);
+                break;
+
+            case 'f':
+                bytes.write('\f');
+                break;
+
+            case 'r':
+                bytes.write('\r');
+                break;
+
+            default:
+                if (c >= '0' && c <= '3' && i + 2 < line.length() - 1) {
+                    bytes.write(Integer.parseInt(line.substring(i, i + 3), 8));
+                    i += 2;
+                } else {
+                    bytes.write(c);
+                }
+            }
+        }
+
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Merge the listed index paths against the source walk, writing a removal
+     * entry for every index path the source does not have.
+     */
+    private static class StaleEntryWriter implements StreamConsumer {
+
+        /** The repository directory. */
+        private File basedir;
+
+        /** The prefix of the listed paths, "" or the subtree followed by "/". */
+        private String prefix;
+
+        /** The sorted source paths, relative to the source directory. */
+        private GitSiteTreeWalker source;
+
+        /** The current source path, or {@code null} at the end. */
+        private String current;
+
+        /** The index info output. */
+        private Writer out;
+
+        /** The number of entries written. */
+        private int count;
+
+        /** The first error, if any. */
+        private IOException error;
+
+        /**
+         * Create a new StaleEntryWriter object.
+         *
+         * @param basedir    the repository directory, or {@code null} not to
+         *                   delete the files from the working tree.
+         * @param targetPath the subtree being listed.
+         * @param source     the sorted source paths.
+         * @param out        the index info output.
+         */
+        public StaleEntryWriter(File basedir, String targetPath, GitSiteTreeWalker source, Writer out) {
+            this.basedir = basedir;
+            this.prefix  = targetPath.length() == 0 ? "" : targetPath + "/";
+            this.source  = source;
+            this.current = source.hasNext() ? source.next() : null;
+            this.out     = out;
+        }
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            if (error != null || line.length() == 0) {
+                return;
+            }
+
+            try {
+                String path = unquotePath(line);
+
+                if (!path.startsWith(prefix)) {
+                    return;
+                }
+
+                String relativePath = path.substring(prefix.length());
+
+                while (current != null && GitSiteTreeWalker.comparePaths(current, relativePath) < 0) {
+                    current = source.hasNext() ? source.next() : null;
+                }
+
+                if (current != null && current.equals(relativePath)) {
+                    return;
+                }
+
+                out.write("0 " + NULL_ID + "\t" + path + "\0");
+                count++;
+
+                if (basedir != null) {
+                    new File(basedir, path).delete();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Get the number of entries written.
+         *
+         * @return the number of entries written.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Get the first write error.
+         *
+         * @return the error, or {@code null} if there was none.
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+}
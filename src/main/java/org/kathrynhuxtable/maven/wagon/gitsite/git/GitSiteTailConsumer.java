@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+
+/**
+ * A stream consumer keeping only the last lines of the output, so that the
+ * diagnostics of a git command take bounded memory however much it writes.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTailConsumer extends CommandLineUtils.StringStreamConsumer {
+
+    /** The default number of lines kept. */
+    public static final int DEFAULT_LINES = 100;
+
+    /** The maximum length of a line kept. Longer lines are truncated. */
+    public static final int MAX_LINE_LENGTH = 1000;
+
+    /** The last lines, as a ring. */
+    private String[] lines;
+
+    /** The number of lines consumed. */
+    private long count;
+
+    /**
+     * Create a new GitSiteTailConsumer object keeping the default number of
+     * lines.
+     */
+    public GitSiteTailConsumer() {
+        this(DEFAULT_LINES);
+    }
+
+    /**
+     * Create a new GitSiteTailConsumer object.
+     *
+     * @param maxLines the number of lines kept.
+     */
+    public GitSiteTailConsumer(int maxLines) {
+        this.lines = new String[maxLines];
+    }
+
+    /**
+     * @see org.codehaus.plexus.util.cli.CommandLineUtils.StringStreamConsumer#consumeLine(java.lang.String)
+     */
+    public synchronized void consumeLine(String line) {
+        if (line.length() > MAX_LINE_LENGTH) {
+            line = line.substring(0, MAX_LINE_LENGTH) + "...";
+        }
+
+        lines[(int) (count++ % lines.length)] = line;
+    }
+
+    /**
+     * Get the number of lines consumed, including those no longer kept.
+     *
+     * @return the number of lines.
+     */
+    public synchronized long getLineCount() {
+        return count;
+    }
+
+    /**
+     * Get the last lines consumed, preceded by a count of the lines dropped.
+     *
+     * @see org.codehaus.plexus.util.cli.CommandLineUtils.StringStreamConsumer#getOutput()
+     */
+    public synchronized String getOutput() {
+        StringBuilder output = new StringBuilder();
+        long          first  = Math.max(0, count - lines.length);
+
+        if (first > 0) {
+            output.append("[").append(first).append(" lines omitted]\n");
+        }
+
+        for (long i = first; i < count; i++) {
+            output.append(lines[(int) (i % lines.length)]).append('\n');
+        }
+
+        return output.toString();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index of the paths of a tree, to answer directory listings and existence
+ * checks in memory.
+ *
+ * <p>The index is a prefix tree of path segments: each directory holds the
+ * sorted names of its entries and the nodes of its subdirectories, so a path
+ * is never stored whole and a lookup is a binary search per segment. A
+ * single lookup also {@link #resolve(String) resolves} a path into its
+ * deepest existing directory and the segments missing below it.</p>
+ *
+ * <p>Paths use "/" as separator and are added in git tree order, as listed by
+ * "git ls-tree -r", so that the entries of a directory are added together.
+ * The index is read only once built.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTreeIndex {
+
+    /** The no names of an empty directory. */
+    private static final String[] NO_NAMES = new String[0];
+
+    /** The no nodes of an empty directory. */
+    private static final Node[] NO_NODES = new Node[0];
+
+    /** The root directory. */
+    private Node root = new Node();
+
+    /** The number of files. */
+    private int size;
+
+    /**
+     * Create a new GitSiteTreeIndex object.
+     *
+     * @param paths the paths of the files, in git tree order.
+     */
+    public GitSiteTreeIndex(Iterable<String> paths) {
+        for (String path : paths) {
+            add(path);
+        }
+
+        root.seal();
+    }
+
+    /**
+     * Get the number of files.
+     *
+     * @return the number of files in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Whether a path is a file or directory of the tree.
+     *
+     * @param  path the path, or the empty string for the root directory.
+     *
+     * @return {@code true} if the path exists.
+     */
+    public boolean exists(String path) {
+        return find(path) != null;
+    }
+
+    /**
+     * Whether a path is a directory of the tree.
+     *
+     * @param  path the path, or the empty string for the root directory.
+     *
+     * @return {@code true} if the path is a directory.
+     */
+    public boolean isDirectory(String path) {
+        Node node = find(path);
+
+        return node != null && node != Node.FILE;
+    }
+
+    /**
+     * List a directory.
+     *
+     * @param  path the directory, or the empty string for the root directory.
+     *
+     * @return the sorted names of the entries of the directory, directories
+     *         ending with "/", or {@code null} if the path is not a directory.
+     */
+    public List<String> list(String path) {
+        Node node = find(path);
+
+        if (node == null || node == Node.FILE) {
+            return null;
+        }
+
+        List<String> names = new ArrayList<String>(node.names.length);
+
+        for (int i = 0; i < node.names.length; i++) {
+            names.add(node.children[i] == null ? node.names[i] : node.names[i] + "/");
+        }
+
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Split a path into its deepest directory in the tree and the segments
+     * below that are not directories of the tree.
+     *
+     * @param  path the path.
+     *
+     * @return the resolution of the path.
+     */
+    public Resolution resolve(String path) {
+        Node node  = root;
+        int  start = 0;
+        int  found = 0;
+
+        while (start < path.length()) {
+            int slash = path.indexOf('/', start);
+            int end   = slash < 0 ? path.length() : slash;
+
+            if (end > start) {
+                int i = Arrays.binarySearch(node.names, path.substring(start, end));
+
+                if (i < 0 || node.children[i] == null) {
+                    break;
+                }
+
+                node  = node.children[i];
+                found = end;
+            }
+
+            start = end + 1;
+        }
+
+        List<String> missing = new ArrayList<String>();
+
+        for (String segment : path.substring(found).split("/")) {
+            if (segment.length() > 0) {
+                missing.add(segment);
+            }
+        }
+
+        return new Resolution(path.substring(0, found), missing);
+    }
+
+    /**
+     * Add the path of a file.
+     *
+     * @param path the path.
+     */
+    private void add(String path) {
+        Node node  = root;
+        int  start = 0;
+
+        for (int slash; (slash = path.indexOf('/', start)) >= 0; start = slash + 1) {
+            if (slash > start) {
+                node = node.getDirectory(path.substring(start, slash));
+            }
+        }
+
+        node.addFile(path.substring(start));
+        size++;
+    }
+
+    /**
+     * Find the node of a path.
+     *
+     * @param  path the path.
+     *
+     * @return the directory node, {@link Node#FILE} for a file, or
+     *         {@code null} if there is no such path.
+     */
+    private Node find(String path) {
+        Node node  = root;
+        int  start = 0;
+
+        while (start < path.length()) {
+            int slash = path.indexOf('/', start);
+            int end   = slash < 0 ? path.length() : slash;
+
+            if (end > start) {
+                if (node == Node.FILE) {
+                    return null;
+                }
+
+                int i = Arrays.binarySearch(node.names, path.substring(start, end));
+
+                if (i < 0) {
+                    return null;
+                }
+
+                node = node.children[i] == null ? Node.FILE : node.children[i];
+            }
+
+            start = end + 1;
+        }
+
+        return node;
+    }
+
+    /**
+     * A directory of the tree.
+     */
+    private static class Node {
+
+        /** The node standing for every file in lookups. */
+        private static final Node FILE = new Node();
+
+        /** The names of the entries, sorted once sealed. */
+        private String[] names = NO_NAMES;
+
+        /** The nodes of the entries, {@code null} for files. */
+        private Node[] children = NO_NODES;
+
+        /** The number of entries while adding. */
+        private int count;
+
+        /**
+         * Get a subdirectory, adding it if it is not the last entry added.
+         *
+         * @param  name the name of the subdirectory.
+         *
+         * @return the node of the subdirectory.
+         */
+        public Node getDirectory(String name) {
+            if (count > 0 && children[count - 1] != null && names[count - 1].equals(name)) {
+                return children[count - 1];
+            }
+
+            Node directory = new Node();
+
+            append(name, directory);
+
+            return directory;
+        }
+
+        /**
+         * Add a file.
+         *
+         * @param name the name of the file.
+         */
+        public void addFile(String name) {
+            append(name, null);
+        }
+
+        /**
+         * Trim the entries of this directory and its subdirectories and sort
+         * them by name.
+         */
+        public void seal() {
+            names    = count == 0 ? NO_NAMES : copy(names, new String[count]);
+            children = count == 0 ? NO_NODES : copy(children, new Node[count]);
+
+            // Entries come in git order, which differs from name order only
+            // around names sharing a prefix, so they are nearly sorted.
+            for (int i = 1; i < count; i++) {
+                String name  = names[i];
+                Node   child = children[i];
+                int    j     = i;
+
+                for (; j > 0 && names[j - 1].compareTo(name) > 0; j--) {
+                    names[j]    = names[j - 1];
+                    children[j] = children[j - 1];
+                }
+
+                names[j]    = name;
+                children[j] = child;
+            }
+
+            for (Node child : children) {
+                if (child != null) {
+                    child.seal();
+                }
+            }
+        }
+
+        /**
+         * Append an entry.
+         *
+         * @param name  the name of the entry.
+         * @param child the node of the entry, {@code null} for a file.
+         */
+        private void append(String name, Node child) {
+            if (count == names.length) {
+                int capacity = Math.max(4, count * 2);
+
+                names    = copy(names, new String[capacity]);
+                children = copy(children, new Node[capacity]);
+            }
+
+            names[count]    = name;
+            children[count] = child;
+            count++;
+        }
+
+        /**
+         * Copy an array into another as far as it goes.
+         *
+         * @param  <T>  the element type.
+         * @param  from the array to copy.
+         * @param  to   the array to copy it into.
+         *
+         * @return the array copied into.
+         */
+        private static <T> T[] copy(T[] from, T[] to) {
+            System.arraycopy(from, 0, to, 0, Math.min(from.length, to.length));
+
+            return to;
+        }
+    }
+
+    /**
+     * A path split into its deepest directory in the tree and the segments
+     * missing below it.
+     */
+    public static class Resolution {
+
+        /** The deepest directory. */
+        private String directory;
+
+        /** The missing segments. */
+        private List<String> missing;
+
+        /**
+         * Create a new Resolution object.
+         *
+         * @param directory the deepest directory.
+         * @param missing   the missing segments.
+         */
+        public Resolution(String directory, List<String> missing) {
+            this.directory = directory;
+            this.missing   = missing;
+        }
+
+        /**
+         * Get the deepest directory of the path in the tree.
+         *
+         * @return the directory, or the empty string for the root directory.
+         */
+        public String getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Get the segments of the path below the deepest directory.
+         *
+         * @return the segments, outermost first, empty if the whole path is a
+         *         directory of the tree.
+         */
+        public List<String> getMissing() {
+            return missing;
+        }
+    }
+}
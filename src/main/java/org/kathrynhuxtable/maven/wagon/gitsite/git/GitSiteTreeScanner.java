@@ -0,0 +1,447 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Walk, hash and copy site trees on a pool of threads.
+ *
+ * <p>Every directory is a task, and the files of a directory are split into
+ * tasks of at most {@link #CHUNK_SIZE} files, all submitted to one shared
+ * queue, so idle threads pick up whatever subtree is left. The entries are
+ * sorted by path before they are returned, so the result is identical to the
+ * single-threaded walk.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTreeScanner {
+
+    /** The maximum number of files hashed by one task. */
+    public static final int CHUNK_SIZE = 64;
+
+    /** The number of threads. */
+    private int parallelism;
+
+    /** The SCM specific file name to skip, e.g. ".git", or {@code null}. */
+    private String reservedName;
+
+    /**
+     * Create a new GitSiteTreeScanner object.
+     *
+     * @param parallelism  the number of threads. One walks the tree on the
+     *                     calling thread.
+     * @param reservedName the SCM specific file name to skip, or
+     *                     {@code null}.
+     */
+    public GitSiteTreeScanner(int parallelism, String reservedName) {
+        this.parallelism  = Math.max(1, parallelism);
+        this.reservedName = reservedName;
+    }
+
+    /**
+     * Walk a directory and compute the blob id of every file in it.
+     *
+     * @param  directory the directory.
+     *
+     * @return the entries, sorted by path.
+     *
+     * @throws IOException if a file cannot be read.
+     */
+    public List<Entry> scan(File directory) throws IOException {
+        Scan scan = new Scan();
+
+        scan.run(new DirectoryTask(scan, directory, ""));
+
+        List<Entry> entries = new ArrayList<Entry>(scan.entries);
+
+        Collections.sort(entries);
+
+        return entries;
+    }
+
+    /**
+     * Copy files, keeping their executable bit.
+     *
+     * @param  files the target files, keyed by source file.
+     *
+     * @throws IOException if a file cannot be copied.
+     */
+    public void copy(Map<File, File> files) throws IOException {
+        Scan               scan  = new Scan();
+        final List<File[]> pairs = new ArrayList<File[]>(files.size());
+
+        for (Map.Entry<File, File> entry : files.entrySet()) {
+            pairs.add(new File[] { entry.getKey(), entry.getValue() });
+        }
+
+        scan.run(new CopyTask(scan, pairs, 0, pairs.size()));
+    }
+
+    /**
+     * A file found in the walk.
+     */
+    public static class Entry implements Comparable<Entry> {
+
+        /** The path relative to the walked directory, using "/". */
+        private String path;
+
+        /** The file. */
+        private File file;
+
+        /** The blob id. */
+        private String blobId;
+
+        /** The file length. */
+        private long length;
+
+        /**
+         * Create a new Entry object.
+         *
+         * @param path   the path relative to the walked directory.
+         * @param file   the file.
+         * @param blobId the blob id.
+         */
+        public Entry(String path, File file, String blobId) {
+            this.path   = path;
+            this.file   = file;
+            this.blobId = blobId;
+            this.length = file.length();
+        }
+
+        /**
+         * Get the path relative to the walked directory.
+         *
+         * @return the path, using "/" as separator.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Get the file.
+         *
+         * @return the file.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the blob id.
+         *
+         * @return the hex-encoded blob id.
+         */
+        public String getBlobId() {
+            return blobId;
+        }
+
+        /**
+         * Get the file length.
+         *
+         * @return the length when the file was hashed, in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @see java.lang.Comparable#compareTo(java.lang.Object)
+         */
+        public int compareTo(Entry other) {
+            return path.compareTo(other.path);
+        }
+    }
+
+    /**
+     * The state of one scan or copy: the executor, the outstanding task
+     * count and the results.
+     */
+    private class Scan {
+
+        /** The entries found. */
+        private ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+
+        /** The number of tasks submitted but not finished. */
+        private AtomicInteger pending = new AtomicInteger();
+
+        /** Released when the last task finishes. */
+        private CountDownLatch done = new CountDownLatch(1);
+
+        /** The first error, if any. */
+        private volatile IOException error;
+
+        /** The executor, or {@code null} for the calling thread. */
+        private ExecutorService executor;
+
+        /** The hashers, one per thread. */
+        private ThreadLocal<GitBlobHasher> hashers = new ThreadLocal<GitBlobHasher>() {
+            protected GitBlobHasher initialValue() {
+                return new GitBlobHasher();
+            }
+        };
+
+        /**
+         * Run a task and everything it submits, and wait for them.
+         *
+         * @param  task the first task.
+         *
+         * @throws IOException if a task failed.
+         */
+        public void run(Runnable task) throws IOException {
+            if (parallelism > 1) {
+                executor = Executors.newFixedThreadPool(parallelism);
+            }
+
+            try {
+                submit(task);
+
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted while scanning");
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        /**
+         * Submit a task.
+         *
+         * @param task the task.
+         */
+        public void submit(final Runnable task) {
+            pending.incrementAndGet();
+
+            Executor target = executor;
+
+            Runnable wrapper = new Runnable() {
+                public void run() {
+                    try {
+                        if (error == null) {
+                            task.run();
+                        }
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            };
+
+            if (target == null) {
+                wrapper.run();
+            } else {
+                target.execute(wrapper);
+            }
+        }
+
+        /**
+         * Record an error, keeping the first one.
+         *
+         * @param e the error.
+         */
+        public void fail(IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * List a directory, submitting its subdirectories and chunks of its files.
+     */
+    private class DirectoryTask implements Runnable {
+
+        /** The scan. */
+        private Scan scan;
+
+        /** The directory. */
+        private File directory;
+
+        /** The path prefix of the directory's children. */
+        private String prefix;
+
+        /**
+         * Create a new DirectoryTask object.
+         *
+         * @param scan      the scan.
+         * @param directory the directory.
+         * @param prefix    the path prefix of the directory's children.
+         */
+        public DirectoryTask(Scan scan, File directory, String prefix) {
+            this.scan      = scan;
+            this.directory = directory;
+            this.prefix    = prefix;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            File[] children = directory.listFiles();
+
+            if (children == null) {
+                scan.fail(new IOException("Unable to list directory " + directory));
+                return;
+            }
+
+            List<File> files = new ArrayList<File>();
+
+            for (int i = 0; i < children.length; i++) {
+                if (reservedName != null && reservedName.equals(children[i].getName())) {
+                    continue;
+                }
+
+                if (children[i].isDirectory()) {
+                    scan.submit(new DirectoryTask(scan, children[i], prefix + children[i].getName() + "/"));
+                } else {
+                    files.add(children[i]);
+                }
+
+                if (files.size() == CHUNK_SIZE) {
+                    scan.submit(new HashTask(scan, files, prefix));
+                    files = new ArrayList<File>();
+                }
+            }
+
+            if (!files.isEmpty()) {
+                scan.submit(new HashTask(scan, files, prefix));
+            }
+        }
+    }
+
+    /**
+     * Hash a chunk of files from one directory.
+     */
+    private class HashTask implements Runnable {
+
+        /** The scan. */
+        private Scan scan;
+
+        /** The files. */
+        private List<File> files;
+
+        /** The path prefix of the files. */
+        private String prefix;
+
+        /**
+         * Create a new HashTask object.
+         *
+         * @param scan   the scan.
+         * @param files  the files.
+         * @param prefix the path prefix of the files.
+         */
+        public HashTask(Scan scan, List<File> files, String prefix) {
+            this.scan   = scan;
+            this.files  = files;
+            this.prefix = prefix;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            GitBlobHasher hasher = scan.hashers.get();
+
+            try {
+                for (File file : files) {
+                    scan.entries.add(new Entry(prefix + file.getName(), file, hasher.hash(file)));
+                }
+            } catch (IOException e) {
+                scan.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Copy a range of files, splitting large ranges into subtasks.
+     */
+    private class CopyTask implements Runnable {
+
+        /** The scan. */
+        private Scan scan;
+
+        /** The source and target file pairs. */
+        private List<File[]> pairs;
+
+        /** The first pair to copy. */
+        private int from;
+
+        /** One past the last pair to copy. */
+        private int to;
+
+        /**
+         * Create a new CopyTask object.
+         *
+         * @param scan  the scan.
+         * @param pairs the source and target file pairs.
+         * @param from  the first pair to copy.
+         * @param to    one past the last pair to copy.
+         */
+        public CopyTask(Scan scan, List<File[]> pairs, int from, int to) {
+            this.scan  = scan;
+            this.pairs = pairs;
+            this.from  = from;
+            this.to    = to;
+        }
+
+        /**
+         * @see java.lang.Runnable#run()
+         */
+        public void run() {
+            if (to - from > CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+
+                scan.submit(new CopyTask(scan, pairs, from, middle));
+                scan.submit(new CopyTask(scan, pairs, middle, to));
+                return;
+            }
+
+            try {
+                for (int i = from; i < to; i++) {
+                    File[] pair = pairs.get(i);
+
+                    FileUtils.copyFile(pair[0], pair[1]);
+                    GitSiteFileMode.copyMode(pair[0], pair[1]);
+                }
+            } catch (IOException e) {
+                scan.fail(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.ScmFile;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmFileStatus;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.add.AbstractAddCommand;
+import org.apache.maven.scm.command.add.AddScmResult;
+import org.apache.maven.scm.provider.ScmProviderRepository;
+import org.apache.maven.scm.provider.git.command.GitCommand;
+import org.apache.maven.scm.provider.git.gitexe.command.GitCommandLineUtils;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+
+/**
+ * Stage files straight into the index of a repository without a working
+ * tree. The source files are written to the object database with a single
+ * "git hash-object" and entered in the index with a single "git
+ * update-index".
+ *
+ * <p>The file set's base directory is the repository directory. The files to
+ * stage are given with {@link #setSourceFiles(Map)}. Executable source files
+ * are staged with mode 100755, the others with mode 100644, as "git add"
+ * would with core.fileMode set.</p>
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteUpdateIndexCommand extends AbstractAddCommand implements GitCommand {
+
+    /** The source files, keyed by their path in the repository. */
+    private Map<String, File> sourceFiles = new LinkedHashMap<String, File>();
+
+    /**
+     * Get the source files to stage.
+     *
+     * @return the source files, keyed by their path in the repository.
+     */
+    public Map<String, File> getSourceFiles() {
+        return sourceFiles;
+    }
+
+    /**
+     * Set the source files to stage.
+     *
+     * @param sourceFiles the source files, keyed by their path in the
+     *                    repository, using "/" as separator.
+     */
+    public void setSourceFiles(Map<String, File> sourceFiles) {
+        this.sourceFiles = sourceFiles;
+    }
+
+    /**
+     * @see org.apache.maven.scm.command.add.AbstractAddCommand#executeAddCommand(org.apache.maven.scm.provider.ScmProviderRepository,
+     *      org.apache.maven.scm.ScmFileSet, java.lang.String, boolean)
+     */
+    protected ScmResult executeAddCommand(ScmProviderRepository repo, ScmFileSet fileSet, String message, boolean binary)
+        throws ScmException {
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        int exitCode;
+
+        File pathsFile     = FileUtils.createTempFile("maven-scm-", ".paths", null);
+        File indexInfoFile = FileUtils.createTempFile("maven-scm-", ".index", null);
+
+        Writer          indexInfo = null;
+        IndexInfoWriter consumer  = null;
+
+        try {
+            writeSourcePaths(pathsFile);
+
+            indexInfo = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexInfoFile), "UTF-8"));
+            consumer  = new IndexInfoWriter(sourceFiles.entrySet().iterator(), indexInfo);
+
+            // Write the blobs, turning each object id into an index entry as it arrives.
+            Commandline cl = createHashObjectCommandLine(fileSet.getBasedir());
+
+            exitCode = GitSiteCommandLineUtils.execute(cl, pathsFile, consumer, stderr, getLogger());
+            indexInfo.close();
+            if (exitCode != 0 || consumer.getError() != null || consumer.getCount() != sourceFiles.size()) {
+                return new AddScmResult(cl.toString(), "The git-hash-object command failed.", stderr.getOutput(), false);
+            }
+
+            cl       = createUpdateIndexCommandLine(fileSet.getBasedir());
+            exitCode = GitSiteCommandLineUtils.execute(cl, indexInfoFile, new CommandLineUtils.StringStreamConsumer(), stderr,
+                                                       getLogger());
+            if (exitCode != 0) {
+                return new AddScmResult(cl.toString(), "The git-update-index command failed.", stderr.getOutput(), false);
+            }
+
+            List<ScmFile> addedFiles = new ArrayList<ScmFile>(sourceFiles.size());
+
+            for (String path : sourceFiles.keySet()) {
+                addedFiles.add(new ScmFile(path, ScmFileStatus.ADDED));
+            }
+
+            return new AddScmResult(cl.toString(), addedFiles);
+        } catch (IOException e) {
+            return new AddScmResult("write index info", "Unable to stage the files.", e.getMessage(), false);
+        } finally {
+            IOUtil.close(indexInfo);
+            FileUtils.fileDelete(pathsFile.getAbsolutePath());
+            FileUtils.fileDelete(indexInfoFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Write the absolute paths of the source files, one per line.
+     *
+     * @param  pathsFile the file to write.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeSourcePaths(File pathsFile) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pathsFile), "UTF-8"));
+
+        try {
+            for (File source : sourceFiles.values()) {
+                out.write(source.getAbsolutePath());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Create a "git hash-object -w --no-filters --stdin-paths" command.
+     *
+     * @param  repositoryDirectory the repository directory.
+     *
+     * @return the command line to write the source files as blobs.
+     */
+    private Commandline createHashObjectCommandLine(File repositoryDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(repositoryDirectory, "hash-object");
+
+        cl.createArg().setValue("-w");
+
+        cl.createArg().setValue("--no-filters");
+
+        cl.createArg().setValue("--stdin-paths");
+
+        return cl;
+    }
+
+    /**
+     * Create a "git update-index -z --index-info" command.
+     *
+     * @param  repositoryDirectory the repository directory.
+     *
+     * @return the command line to enter the blobs in the index.
+     */
+    private Commandline createUpdateIndexCommandLine(File repositoryDirectory) {
+        Commandline cl = GitCommandLineUtils.getBaseGitCommandLine(repositoryDirectory, "update-index");
+
+        cl.createArg().setValue("-z");
+
+        cl.createArg().setValue("--index-info");
+
+        return cl;
+    }
+
+    /**
+     * Consume the object ids written by "git hash-object", writing an index
+     * entry for each one.
+     */
+    private static class IndexInfoWriter implements StreamConsumer {
+
+        /** The source files, keyed by repository path, in the order they were hashed. */
+        private Iterator<Map.Entry<String, File>> files;
+
+        /** The index info output. */
+        private Writer out;
+
+        /** The number of entries written. */
+        private int count;
+
+        /** The first write error, if any. */
+        private IOException error;
+
+        /**
+         * Create a new IndexInfoWriter object.
+         *
+         * @param files the source files, keyed by repository path.
+         * @param out   the index info output.
+         */
+        public IndexInfoWriter(Iterator<Map.Entry<String, File>> files, Writer out) {
+            this.files = files;
+            this.out   = out;
+        }
+
+        /**
+         * @see org.codehaus.plexus.util.cli.StreamConsumer#consumeLine(java.lang.String)
+         */
+        public void consumeLine(String line) {
+            if (error != null || !files.hasNext()) {
+                return;
+            }
+
+            Map.Entry<String, File> file = files.next();
+
+            try {
+                out.write(GitSiteFileMode.getMode(file.getValue()) + " " + line.trim() + "\t" + file.getKey() + "\0");
+                count++;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        /**
+         * Get the number of entries written.
+         *
+         * @return the number of entries written.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Get the first write error.
+         *
+         * @return the error, or {@code null} if there was none.
+         */
+        public IOException getError() {
+            return error;
+        }
+    }
+}
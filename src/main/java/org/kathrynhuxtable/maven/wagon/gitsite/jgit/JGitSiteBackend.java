@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.jgit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URISyntaxException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FS;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSitePushBackoff;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker;
+
+/**
+ * Backend deploying to the site branch in-process with JGit, instead of
+ * running git commands.
+ *
+ * <p>The site branch tip is fetched into a bare repository, and its tree is
+ * read into an in-core index. Deployed files are written straight into the
+ * object database and the index, and the index is committed on top of the
+ * tip; if the site branch has moved when pushing, the commit is replayed
+ * onto the new tip. The push sends a thin pack, with deltas against the
+ * tip's objects. Files are read back from the tip's tree. No working tree
+ * is ever written, whatever the deploy mode; the mirror cache and the shallow
+ * and partial clone settings do not apply.</p>
+ *
+ * @plexus.component role="org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend"
+ *                   role-hint="jgit" instantiation-strategy="per-lookup"
+ * @author           Kathryn Huxtable
+ */
+public class JGitSiteBackend implements GitSiteBackend {
+
+    /** The local branch the deploy is committed to. */
+    private static final String MASTER = Constants.R_HEADS + Constants.MASTER;
+
+    /** The ref a moved site branch tip is fetched into before replaying. */
+    private static final String TRACKING = Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/site";
+
+    /** The bare repository. */
+    private FileRepository repository;
+
+    /** The logger. */
+    private ScmLogger logger;
+
+    /** The URLs of the remote repository. */
+    private GitScmProviderRepository remote;
+
+    /** The site branch. */
+    private String siteBranch;
+
+    /** The site branch tip fetched, or {@code null} before the fetch. */
+    private ObjectId tip;
+
+    /** The index of the site branch. */
+    private DirCache index;
+
+    /** The inserter writing the deployed objects. */
+    private ObjectInserter inserter;
+
+    /**
+     * Create a bare repository in the session's working directory, fetch the
+     * tip of the site branch and read its tree into the index.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#fetchTip(org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession)
+     */
+    public void fetchTip(GitSiteSession session) throws ScmException {
+        logger     = session.getLogger();
+        remote     = session.getRepository();
+        siteBranch = session.getSiteBranch();
+
+        File gitDirectory = new File(session.getWorkingDirectory(), ".git");
+
+        try {
+            repository = new FileRepository(gitDirectory);
+            repository.create(true);
+        } catch (IOException e) {
+            throw new ScmException("Unable to create repository " + gitDirectory + ": " + e.getMessage(), e);
+        }
+
+        inserter = repository.newObjectInserter();
+
+        tip   = fetch(MASTER);
+        index = readTree(tip);
+    }
+
+    /**
+     * Fetch the tip of the site branch.
+     *
+     * @param  localRef the ref to fetch the tip into.
+     *
+     * @return the tip.
+     *
+     * @throws ScmException if the site branch cannot be fetched.
+     */
+    private ObjectId fetch(String localRef) throws ScmException {
+        String url = remote.getFetchUrl();
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Fetching " + siteBranch + " from " + url);
+        }
+
+        String remoteRef = Constants.R_HEADS + siteBranch;
+
+        try {
+            Transport   transport = Transport.open(repository, url);
+            FetchResult result;
+
+            try {
+                result = transport.fetch(NullProgressMonitor.INSTANCE,
+                                         Collections.singletonList(new RefSpec("+" + remoteRef + ":" + localRef)));
+            } finally {
+                transport.close();
+            }
+
+            Ref ref = result.getAdvertisedRef(remoteRef);
+
+            if (ref == null) {
+                throw new ScmException("The branch " + siteBranch + " does not exist in " + url);
+            }
+
+            return ref.getObjectId();
+        } catch (URISyntaxException e) {
+            throw new ScmException("Invalid repository URL " + url + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ScmException("Unable to fetch " + siteBranch + " from " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the tree of a commit into a new in-core index.
+     *
+     * @param  commitId the commit.
+     *
+     * @return the index.
+     *
+     * @throws ScmException if the tree cannot be read.
+     */
+    private DirCache readTree(ObjectId commitId) throws ScmException {
+        DirCache     treeIndex = DirCache.newInCore();
+        ObjectReader reader    = repository.newObjectReader();
+
+        try {
+            DirCacheBuilder builder = treeIndex.builder();
+
+            builder.addTree(new byte[0], 0, reader, new RevWalk(reader).parseCommit(commitId).getTree());
+            builder.finish();
+        } catch (IOException e) {
+            throw new ScmException("Unable to read the tree of " + commitId.name() + ": " + e.getMessage(), e);
+        } finally {
+            reader.release();
+        }
+
+        return treeIndex;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTree(java.lang.String)
+     */
+    public Map<String, String> listTree(String path) {
+        Map<String, String> blobIds = new HashMap<String, String>();
+
+        DirCacheEntry file = path.length() == 0 ? null : index.getEntry(path);
+
+        if (file != null) {
+            blobIds.put(path, file.getObjectId().name());
+
+            return blobIds;
+        }
+
+        String prefix = path.length() == 0 ? "" : path + "/";
+        int    i      = index.findEntry(prefix);
+
+        for (i = i < 0 ? -(i + 1) : i; i < index.getEntryCount(); i++) {
+            DirCacheEntry entry = index.getEntry(i);
+
+            if (!entry.getPathString().startsWith(prefix)) {
+                break;
+            }
+
+            blobIds.put(entry.getPathString(), entry.getObjectId().name());
+        }
+
+        return blobIds;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTip()
+     */
+    public List<String> listTip() throws ScmException {
+        List<String> paths  = new ArrayList<String>();
+        ObjectReader reader = repository.newObjectReader();
+
+        try {
+            TreeWalk walk = new TreeWalk(reader);
+
+            walk.addTree(new RevWalk(reader).parseCommit(tip).getTree());
+            walk.setRecursive(true);
+
+            while (walk.next()) {
+                paths.add(walk.getPathString());
+            }
+        } catch (IOException e) {
+            throw new ScmException("Unable to list " + siteBranch + ": " + e.getMessage(), e);
+        } finally {
+            reader.release();
+        }
+
+        return paths;
+    }
+
+    /**
+     * Walk the history of the tip for the last commit changing the file.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getLastModified(java.lang.String)
+     */
+    public long getLastModified(String path) throws ScmException {
+        ObjectReader reader = repository.newObjectReader();
+
+        try {
+            RevWalk   walk   = new RevWalk(reader);
+            RevCommit commit = walk.parseCommit(tip);
+            TreeWalk  file   = TreeWalk.forPath(reader, path, commit.getTree());
+
+            if (file == null || (file.getRawMode(0) & FileMode.TYPE_MASK) != FileMode.TYPE_FILE) {
+                return 0;
+            }
+
+            walk.setTreeFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(Collections.singleton(path)),
+                                                    TreeFilter.ANY_DIFF));
+            walk.markStart(commit);
+
+            RevCommit last = walk.next();
+
+            return (last == null ? commit : last).getCommitTime() * 1000L;
+        } catch (IOException e) {
+            throw new ScmException("Unable to read the history of " + path + ": " + e.getMessage(), e);
+        } finally {
+            reader.release();
+        }
+    }
+
+    /**
+     * Open the blob as a stream, which large blobs are inflated through
+     * rather than loaded into memory.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#openFile(java.lang.String)
+     */
+    public InputStream openFile(String path) throws ScmException {
+        try {
+            TreeWalk file = TreeWalk.forPath(repository, path, new RevWalk(repository).parseCommit(tip).getTree());
+
+            if (file == null) {
+                throw new ScmException("The file " + path + " does not exist in " + siteBranch);
+            }
+
+            return repository.open(file.getObjectId(0), Constants.OBJ_BLOB).openStream();
+        } catch (IOException e) {
+            throw new ScmException("Unable to read " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the files into the object database and the index.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#stage(java.util.Map)
+     */
+    public int stage(Map<String, File> files) throws ScmException {
+        DirCacheEditor editor = index.editor();
+
+        try {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                final long     length = file.getValue().length();
+                final FileMode mode   = FS.DETECTED.canExecute(file.getValue()) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+                final ObjectId id;
+
+                InputStream in = new FileInputStream(file.getValue());
+
+                try {
+                    id = inserter.insert(Constants.OBJ_BLOB, length, in);
+                } finally {
+                    in.close();
+                }
+
+                editor.add(new DirCacheEditor.PathEdit(file.getKey()) {
+                        public void apply(DirCacheEntry ent) {
+                            ent.setFileMode(mode);
+                            ent.setLength(length);
+                            ent.setObjectId(id);
+                        }
+                    });
+            }
+        } catch (IOException e) {
+            throw new ScmException("Unable to write objects: " + e.getMessage(), e);
+        }
+
+        editor.finish();
+
+        return files.size();
+    }
+
+    /**
+     * Remove the stale files with a merge-join of the sorted index against
+     * the sorted walk of the source.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#removeStale(java.lang.String,
+     *      org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker)
+     */
+    public int removeStale(String path, GitSiteTreeWalker source) {
+        String prefix = path.length() == 0 ? "" : path + "/";
+
+        DirCacheEditor editor = index.editor();
+
+        int    removed = 0;
+        String current = source.hasNext() ? source.next() : null;
+        int    i       = index.findEntry(prefix);
+
+        for (i = i < 0 ? -(i + 1) : i; i < index.getEntryCount(); i++) {
+            String entryPath = index.getEntry(i).getPathString();
+
+            if (!entryPath.startsWith(prefix)) {
+                break;
+            }
+
+            String relativePath = entryPath.substring(prefix.length());
+
+            while (current != null && GitSiteTreeWalker.comparePaths(current, relativePath) < 0) {
+                current = source.hasNext() ? source.next() : null;
+            }
+
+            if (current == null || !current.equals(relativePath)) {
+                editor.add(new DirCacheEditor.DeletePath(entryPath));
+                removed++;
+            }
+        }
+
+        editor.finish();
+
+        return removed;
+    }
+
+    /**
+     * Commit the index on top of the fetched tip, on the local master branch.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#commit(java.lang.String)
+     */
+    public void commit(String message) throws ScmException {
+        try {
+            PersonIdent   ident  = new PersonIdent(repository);
+            CommitBuilder commit = new CommitBuilder();
+
+            commit.setTreeId(index.writeTree(inserter));
+            commit.setParentId(tip);
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(message);
+
+            ObjectId commitId = inserter.insert(commit);
+
+            inserter.flush();
+
+            RefUpdate update = repository.updateRef(MASTER);
+
+            update.setNewObjectId(commitId);
+            update.setExpectedOldObjectId(tip);
+
+            RefUpdate.Result updateResult = update.update();
+
+            if (updateResult != RefUpdate.Result.FAST_FORWARD && updateResult != RefUpdate.Result.NEW) {
+                throw new ScmException("Unable to update " + MASTER + ": " + updateResult);
+            }
+        } catch (IOException e) {
+            throw new ScmException("Unable to commit to " + siteBranch + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Push the local master branch to the site branch, expecting the site
+     * branch to still be at the fetched tip. If the push is rejected, the
+     * commit is replayed onto the new tip, if the site branch has moved, and
+     * the push retried.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#push()
+     */
+    public void push() throws ScmException {
+        GitSitePushBackoff backoff = new GitSitePushBackoff(logger, siteBranch);
+
+        for (String rejection = tryPush(); rejection != null; rejection = tryPush()) {
+            backoff.retry(rejection);
+            rebase();
+        }
+    }
+
+    /**
+     * Whether a rejection message tells that the remote repository could not
+     * lock the site branch, because another push was updating it.
+     *
+     * @param  message the message of the rejected update, or {@code null}.
+     *
+     * @return {@code true} if the ref lock was lost.
+     */
+    private static boolean isLockFailure(String message) {
+        return message != null && (message.startsWith("failed to lock") || message.startsWith("lock error")
+                                   || message.startsWith("cannot lock ref") || message.startsWith("failed to update ref"));
+    }
+
+    /**
+     * JGit does not tell the size of the pack it sent.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getPushedBytes()
+     */
+    public long getPushedBytes() {
+        return -1;
+    }
+
+    /**
+     * Push the local master branch to the site branch, expecting the site
+     * branch to still be at the fetched tip.
+     *
+     * @return {@code null} if the push succeeded, or the reason it was
+     *         rejected by the remote repository.
+     *
+     * @throws ScmException if the push fails for any other reason.
+     */
+    private String tryPush() throws ScmException {
+        String url = remote.getPushUrl();
+
+        try {
+            if (logger.isInfoEnabled()) {
+                logger.info("Pushing " + repository.resolve(MASTER).name() + " to " + siteBranch + " in " + url);
+            }
+
+            Transport transport = Transport.open(repository, url);
+
+            // Send the changed blobs as deltas against the tip's, which the remote repository has.
+            transport.setPushThin(true);
+
+            PushResult pushResult;
+
+            try {
+                RemoteRefUpdate refUpdate = new RemoteRefUpdate(repository, MASTER, Constants.R_HEADS + siteBranch, false, null, tip);
+
+                pushResult = transport.push(NullProgressMonitor.INSTANCE, Collections.singletonList(refUpdate));
+            } finally {
+                transport.close();
+            }
+
+            RemoteRefUpdate        update = pushResult.getRemoteUpdate(Constants.R_HEADS + siteBranch);
+            RemoteRefUpdate.Status status = update.getStatus();
+
+            // Hooks and permission checks refuse with another reason, which no retry can fix; only a lost ref lock is a race.
+            if (status == RemoteRefUpdate.Status.REJECTED_NONFASTFORWARD || status == RemoteRefUpdate.Status.REJECTED_REMOTE_CHANGED
+                    || (status == RemoteRefUpdate.Status.REJECTED_OTHER_REASON && isLockFailure(update.getMessage()))) {
+                return update.getMessage() == null ? status.toString() : status + " " + update.getMessage();
+            } else if (status != RemoteRefUpdate.Status.OK && status != RemoteRefUpdate.Status.UP_TO_DATE) {
+                throw new ScmException("Unable to push to " + siteBranch + " in " + url + ": " + status
+                                       + (update.getMessage() == null ? "" : " " + update.getMessage()));
+            }
+
+            return null;
+        } catch (URISyntaxException e) {
+            throw new ScmException("Invalid repository URL " + url + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ScmException("Unable to push to " + siteBranch + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fetch the new tip of the site branch and replay the commit onto it. The
+     * commit wins at every path it changed; the other paths are the new
+     * tip's. Nothing is replayed if the site branch has not moved.
+     *
+     * @throws ScmException if the commit cannot be replayed.
+     */
+    private void rebase() throws ScmException {
+        ObjectId newTip = fetch(TRACKING);
+
+        if (newTip.equals(tip)) {
+            return;
+        }
+
+        DirCache     replayed = readTree(newTip);
+        ObjectReader reader   = repository.newObjectReader();
+
+        try {
+            RevWalk   revWalk  = new RevWalk(reader);
+            RevCommit ours     = revWalk.parseCommit(repository.resolve(MASTER));
+            TreeWalk  treeWalk = new TreeWalk(reader);
+
+            treeWalk.addTree(revWalk.parseCommit(tip).getTree());
+            treeWalk.addTree(ours.getTree());
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+            DirCacheEditor editor = replayed.editor();
+
+            while (treeWalk.next()) {
+                final FileMode mode = treeWalk.getFileMode(1);
+                final ObjectId id   = treeWalk.getObjectId(1);
+
+                if (mode == FileMode.MISSING) {
+                    editor.add(new DirCacheEditor.DeletePath(treeWalk.getPathString()));
+                } else {
+                    editor.add(new DirCacheEditor.PathEdit(treeWalk.getPathString()) {
+                            public void apply(DirCacheEntry ent) {
+                                ent.setFileMode(mode);
+                                ent.setObjectId(id);
+                            }
+                        });
+                }
+            }
+
+            editor.finish();
+
+            CommitBuilder commit = new CommitBuilder();
+
+            commit.setTreeId(replayed.writeTree(inserter));
+            commit.setParentId(newTip);
+            commit.setAuthor(ours.getAuthorIdent());
+            commit.setCommitter(new PersonIdent(repository));
+            commit.setMessage(ours.getFullMessage());
+
+            ObjectId commitId = inserter.insert(commit);
+
+            inserter.flush();
+
+            RefUpdate update = repository.updateRef(MASTER);
+
+            update.setNewObjectId(commitId);
+            update.setExpectedOldObjectId(ours);
+            update.setForceUpdate(true);
+
+            RefUpdate.Result updateResult = update.update();
+
+            if (updateResult != RefUpdate.Result.FORCED) {
+                throw new ScmException("Unable to update " + MASTER + ": " + updateResult);
+            }
+        } catch (IOException e) {
+            throw new ScmException("Unable to replay the commit onto " + siteBranch + ": " + e.getMessage(), e);
+        } finally {
+            reader.release();
+        }
+
+        tip   = newTip;
+        index = replayed;
+    }
+
+    /**
+     * Release the repository.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#close()
+     */
+    public void close() {
+        if (inserter != null) {
+            inserter.release();
+            inserter = null;
+        }
+
+        if (repository != null) {
+            repository.close();
+            repository = null;
+        }
+    }
+}
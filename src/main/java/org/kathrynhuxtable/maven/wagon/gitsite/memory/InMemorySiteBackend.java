@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.ScmLogger;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSitePushBackoff;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession;
+import org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker;
+import org.kathrynhuxtable.maven.wagon.gitsite.git.GitBlobHasher;
+
+/**
+ * Backend keeping the site branches in memory, for tests and benchmarks of
+ * the wagon without git or a remote repository.
+ *
+ * <p>A site branch is a sorted map of blob ids keyed by path, held in a
+ * registry shared by every instance in the JVM and keyed by the fetch URL of
+ * the repository and the branch name. Branches are created with
+ * {@link #setBranch(String, String, Map)} and read back with
+ * {@link #getBranch(String, String)}. File contents are hashed but not kept,
+ * so files cannot be read back, and every file was last modified when its
+ * branch was last replaced.</p>
+ *
+ * <p>Pushing replaces the branch. If it was replaced since the fetch, like a
+ * non fast-forward push, the committed changes are replayed onto the new
+ * branch and the push is retried with a {@link GitSitePushBackoff}.</p>
+ *
+ * @plexus.component role="org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend"
+ *                   role-hint="memory" instantiation-strategy="per-lookup"
+ * @author           Kathryn Huxtable
+ */
+public class InMemorySiteBackend implements GitSiteBackend {
+
+    /** Orders paths like a git tree. */
+    private static final Comparator<String> PATH_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return GitSiteTreeWalker.comparePaths(a, b);
+        }
+    };
+
+    /** The site branches, keyed by URL and branch name. */
+    private static final Map<String, SortedMap<String, String>> BRANCHES = new HashMap<String, SortedMap<String, String>>();
+
+    /** The times the site branches were last replaced, keyed like them. */
+    private static final Map<String, Long> TIMES = new HashMap<String, Long>();
+
+    /** The logger. */
+    private ScmLogger logger;
+
+    /** The registry key of the site branch. */
+    private String key;
+
+    /** The branch as fetched, or {@code null} before the fetch. */
+    private SortedMap<String, String> tip;
+
+    /** The time the fetched branch was last replaced. */
+    private long tipTime;
+
+    /** The staged tree. */
+    private SortedMap<String, String> index;
+
+    /** The committed tree, or {@code null} before the commit. */
+    private SortedMap<String, String> committed;
+
+    /** The hasher for staged files. */
+    private GitBlobHasher hasher = new GitBlobHasher();
+
+    /**
+     * Create or replace a site branch.
+     *
+     * @param url    the fetch URL of the repository.
+     * @param branch the branch name.
+     * @param tree   the blob ids, keyed by path.
+     */
+    public static void setBranch(String url, String branch, Map<String, String> tree) {
+        SortedMap<String, String> copy = new TreeMap<String, String>(PATH_ORDER);
+
+        copy.putAll(tree);
+
+        synchronized (BRANCHES) {
+            BRANCHES.put(getKey(url, branch), Collections.unmodifiableSortedMap(copy));
+            TIMES.put(getKey(url, branch), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Get a site branch.
+     *
+     * @param  url    the fetch URL of the repository.
+     * @param  branch the branch name.
+     *
+     * @return the blob ids, keyed by path, or {@code null} if there is no such
+     *         branch.
+     */
+    public static SortedMap<String, String> getBranch(String url, String branch) {
+        synchronized (BRANCHES) {
+            return BRANCHES.get(getKey(url, branch));
+        }
+    }
+
+    /**
+     * Delete every site branch.
+     */
+    public static void clear() {
+        synchronized (BRANCHES) {
+            BRANCHES.clear();
+            TIMES.clear();
+        }
+    }
+
+    /**
+     * Get the registry key of a branch.
+     *
+     * @param  url    the fetch URL of the repository.
+     * @param  branch the branch name.
+     *
+     * @return the key.
+     */
+    private static String getKey(String url, String branch) {
+        return url + " " + branch;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#fetchTip(org.kathrynhuxtable.maven.wagon.gitsite.GitSiteSession)
+     */
+    public void fetchTip(GitSiteSession session) throws ScmException {
+        String url = session.getRepository().getFetchUrl();
+
+        logger = session.getLogger();
+        key    = getKey(url, session.getSiteBranch());
+
+        synchronized (BRANCHES) {
+            tip = BRANCHES.get(key);
+
+            if (tip == null) {
+                throw new ScmException("The branch " + session.getSiteBranch() + " does not exist in " + url);
+            }
+
+            tipTime = TIMES.get(key);
+        }
+
+        index = new TreeMap<String, String>(tip);
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTree(java.lang.String)
+     */
+    public Map<String, String> listTree(String path) {
+        Map<String, String> blobIds = new HashMap<String, String>();
+
+        if (path.length() > 0 && index.containsKey(path)) {
+            blobIds.put(path, index.get(path));
+
+            return blobIds;
+        }
+
+        blobIds.putAll(getSubtree(path));
+
+        return blobIds;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#listTip()
+     */
+    public List<String> listTip() {
+        return new ArrayList<String>(tip.keySet());
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getLastModified(java.lang.String)
+     */
+    public long getLastModified(String path) {
+        return tip.containsKey(path) ? tipTime : 0;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#openFile(java.lang.String)
+     */
+    public InputStream openFile(String path) throws ScmException {
+        throw new ScmException("Unable to read " + path + ": the in-memory backend does not keep file contents");
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#stage(java.util.Map)
+     */
+    public int stage(Map<String, File> files) throws ScmException {
+        try {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                index.put(file.getKey(), hasher.hash(file.getValue()));
+            }
+        } catch (IOException e) {
+            throw new ScmException("Unable to hash the files: " + e.getMessage(), e);
+        }
+
+        return files.size();
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#removeStale(java.lang.String,
+     *      org.kathrynhuxtable.maven.wagon.gitsite.GitSiteTreeWalker)
+     */
+    public int removeStale(String path, GitSiteTreeWalker source) {
+        String prefix = path.length() == 0 ? "" : path + "/";
+
+        int    removed = 0;
+        String current = source.hasNext() ? source.next() : null;
+
+        for (Iterator<String> i = getSubtree(path).keySet().iterator(); i.hasNext();) {
+            String relativePath = i.next().substring(prefix.length());
+
+            while (current != null && GitSiteTreeWalker.comparePaths(current, relativePath) < 0) {
+                current = source.hasNext() ? source.next() : null;
+            }
+
+            if (current == null || !current.equals(relativePath)) {
+                i.remove();
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#commit(java.lang.String)
+     */
+    public void commit(String message) {
+        committed = Collections.unmodifiableSortedMap(new TreeMap<String, String>(index));
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#push()
+     */
+    public void push() throws ScmException {
+        if (committed == null) {
+            throw new ScmException("Nothing committed to push");
+        }
+
+        GitSitePushBackoff backoff = new GitSitePushBackoff(logger, key);
+
+        while (!tryPush()) {
+            backoff.retry("the branch has changed since it was fetched");
+            rebase();
+        }
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Pushed " + committed.size() + " files to " + key);
+        }
+
+        tip = committed;
+    }
+
+    /**
+     * Nothing is packed or sent, so there is no size to tell.
+     *
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#getPushedBytes()
+     */
+    public long getPushedBytes() {
+        return -1;
+    }
+
+    /**
+     * Replace the branch with the committed tree, unless it was replaced since
+     * the fetch.
+     *
+     * @return {@code true} if the branch was replaced.
+     */
+    private boolean tryPush() {
+        synchronized (BRANCHES) {
+            if (BRANCHES.get(key) != tip) {
+                return false;
+            }
+
+            BRANCHES.put(key, committed);
+            TIMES.put(key, System.currentTimeMillis());
+        }
+
+        return true;
+    }
+
+    /**
+     * Fetch the branch again and replay the committed changes onto it. The
+     * committed tree wins at every path it changed.
+     *
+     * @throws ScmException if the branch no longer exists.
+     */
+    private void rebase() throws ScmException {
+        SortedMap<String, String> newTip;
+
+        synchronized (BRANCHES) {
+            newTip = BRANCHES.get(key);
+
+            if (newTip == null) {
+                throw new ScmException("Unable to push to " + key + ": the branch has been deleted");
+            }
+
+            tipTime = TIMES.get(key);
+        }
+
+        SortedMap<String, String> replayed = new TreeMap<String, String>(newTip);
+
+        for (String path : tip.keySet()) {
+            if (!committed.containsKey(path)) {
+                replayed.remove(path);
+            }
+        }
+
+        for (Map.Entry<String, String> file : committed.entrySet()) {
+            if (!file.getValue().equals(tip.get(file.getKey()))) {
+                replayed.put(file.getKey(), file.getValue());
+            }
+        }
+
+        tip       = newTip;
+        index     = new TreeMap<String, String>(replayed);
+        committed = Collections.unmodifiableSortedMap(replayed);
+    }
+
+    /**
+     * @see org.kathrynhuxtable.maven.wagon.gitsite.GitSiteBackend#close()
+     */
+    public void close() {
+        tip       = null;
+        index     = null;
+        committed = null;
+    }
+
+    /**
+     * Get the view of the staged files under a directory.
+     *
+     * @param  path the directory, or the empty string for everything.
+     *
+     * @return the blob ids under the directory, keyed by path.
+     */
+    private SortedMap<String, String> getSubtree(String path) {
+        if (path.length() == 0) {
+            return index;
+        }
+
+        // Every path under "path/" sorts between "path/" and "path0".
+        return index.subMap(path + "/", path + "0");
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.scm.ScmException;
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.manager.AbstractScmManager;
+import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+import org.apache.maven.wagon.repository.Repository;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+import org.kathrynhuxtable.maven.wagon.gitsite.memory.InMemorySiteBackend;
+
+/**
+ * Checks that concurrent deploys to the same site branch are coalesced into
+ * one commit, and that a deploy waiting for the others gives up.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteDeployCoordinatorTest extends TestCase {
+
+    /** The number of concurrent deploys. */
+    private static final int DEPLOYS = 2;
+
+    /** How long a deploy waits for the others, in milliseconds. */
+    private static final long TIMEOUT = 60000;
+
+    /** The directory holding the repositories and sites. */
+    private File directory;
+
+    /** The bare repository. */
+    private File bare;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/coordinator-test").getAbsoluteFile();
+        bare      = new File(directory, "site.git");
+
+        File work = new File(directory, "work");
+
+        FileUtils.deleteDirectory(directory);
+
+        bare.mkdirs();
+        work.mkdirs();
+
+        git(bare, "init", "--bare", "-q");
+        git(work, "init", "-q");
+        git(work, "config", "user.name", "Test");
+        git(work, "config", "user.email", "test@example.com");
+        FileUtils.fileWrite(new File(work, "index.html").getPath(), "<p>index</p>\n");
+        git(work, "add", "index.html");
+        git(work, "commit", "-q", "-m", "First pages commit");
+        git(work, "push", "-q", bare.getPath(), "HEAD:refs/heads/gh-pages");
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        InMemorySiteBackend.clear();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Two wagons deploying modules to the same site branch at the same time
+     * push one commit holding both modules.
+     *
+     * @throws Exception if a deploy fails or git fails.
+     */
+    public void testConcurrentDeploysMakeOneCommit() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(DEPLOYS);
+        final Exception[]   errors  = new Exception[DEPLOYS];
+        Thread[]            threads = new Thread[DEPLOYS];
+
+        for (int i = 0; i < DEPLOYS; i++) {
+            final int  module = i;
+            final File site   = new File(directory, "m" + module);
+
+            new File(site, "css").mkdirs();
+            FileUtils.fileWrite(new File(site, "index.html").getPath(), "<p>m" + module + "</p>\n");
+            FileUtils.fileWrite(new File(site, "css/site.css").getPath(), "p { margin: " + module + "px; }\n");
+
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        deploy(site, "m" + module, barrier);
+                    } catch (Exception e) {
+                        errors[module] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < DEPLOYS; i++) {
+            threads[i].join(TIMEOUT);
+
+            assertFalse("deploy of m" + i + " still running", threads[i].isAlive());
+
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+        }
+
+        assertEquals("2", git(bare, "rev-list", "--count", "gh-pages").trim());
+        assertEquals("index.html\nm0/css/site.css\nm0/index.html\nm1/css/site.css\nm1/index.html\n",
+                     git(bare, "ls-tree", "-r", "--name-only", "gh-pages"));
+        assertTrue(git(bare, "log", "-1", "--format=%s", "gh-pages").startsWith("Wagon: Deploying " + DEPLOYS + " sites"));
+    }
+
+    /**
+     * A member waiting for another that never leaves gives up after its
+     * timeout and aborts the round, so nothing is pushed. The next round
+     * works.
+     *
+     * @throws Exception if the coordinator fails unexpectedly.
+     */
+    public void testWaitTimesOutAndAbortsRound() throws Exception {
+        String url = "file://" + bare.getPath();
+
+        InMemorySiteBackend.setBranch(url, "gh-pages", new HashMap<String, String>());
+
+        GitSiteDeployCoordinator coordinator = GitSiteDeployCoordinator.getInstance(new File(directory, "cache"), url,
+                                                                                    "gh-pages");
+        File                     file        = new File(directory, "file.txt");
+
+        FileUtils.fileWrite(file.getPath(), "file\n");
+
+        GitSiteBackend first  = join(coordinator, url, 500);
+        GitSiteBackend second = join(coordinator, url, 500);
+
+        first.stage(Collections.singletonMap("first.txt", file));
+        first.commit("first");
+
+        try {
+            first.push();
+            fail("The push did not time out");
+        } catch (ScmException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out"));
+        }
+
+        second.stage(Collections.singletonMap("second.txt", file));
+        second.commit("second");
+
+        try {
+            second.push();
+            fail("The aborted round was pushed");
+        } catch (ScmException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("aborted") >= 0);
+        }
+
+        assertTrue(InMemorySiteBackend.getBranch(url, "gh-pages").isEmpty());
+
+        GitSiteBackend third = join(coordinator, url, 500);
+
+        third.stage(Collections.singletonMap("third.txt", file));
+        third.commit("third");
+        third.push();
+
+        assertEquals(Collections.singleton("third.txt"), InMemorySiteBackend.getBranch(url, "gh-pages").keySet());
+    }
+
+    /**
+     * Deploy a site into a directory of the site branch with a coalescing
+     * wagon, disconnecting once every deploy has put its site.
+     *
+     * @param  site    the site.
+     * @param  module  the directory in the site branch.
+     * @param  barrier the barrier the deploys meet at before disconnecting.
+     *
+     * @throws Exception if the deploy fails.
+     */
+    private void deploy(File site, String module, CyclicBarrier barrier) throws Exception {
+        AbstractScmManager scmManager = new AbstractScmManager() {
+            protected ScmLogger getScmLogger() {
+                return new DefaultLog();
+            }
+        };
+
+        scmManager.setScmProvider("git", new GitExeScmProvider());
+
+        GitSiteWagon wagon = new GitSiteWagon();
+
+        wagon.setScmManager(scmManager);
+        wagon.setSiteBranch("gh-pages");
+        wagon.setCacheDirectory(new File(directory, "cache"));
+        wagon.setCoalesce(true);
+        wagon.setCoalesceTimeout(TIMEOUT);
+
+        wagon.connect(new Repository("site", "scm:git:file://" + bare.getPath() + "/" + module));
+
+        try {
+            wagon.putDirectory(site, ".");
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            wagon.disconnect();
+        }
+    }
+
+    /**
+     * Join a round of the in-memory backend.
+     *
+     * @param  coordinator the coordinator.
+     * @param  url         the URL of the site branch.
+     * @param  timeout     the member's timeout.
+     *
+     * @return the member.
+     *
+     * @throws ScmException if the round cannot be joined.
+     */
+    private GitSiteBackend join(GitSiteDeployCoordinator coordinator, String url, long timeout) throws ScmException {
+        GitSiteSession session = new GitSiteSession(new GitScmProviderRepository(url), "gh-pages",
+                                                    coordinator.getCheckoutDirectory(), new DefaultLog());
+
+        return coordinator.join(new InMemorySiteBackend(), session, timeout);
+    }
+
+    /**
+     * Run git and return its output.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  args             the arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws CommandLineException if git cannot be run.
+     * @throws IOException          if git fails.
+     */
+    private String git(File workingDirectory, String... args) throws CommandLineException, IOException {
+        Commandline cl = new Commandline("git");
+
+        cl.setWorkingDirectory(workingDirectory.getPath());
+        cl.addArguments(args);
+
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        if (CommandLineUtils.executeCommandLine(cl, stdout, stderr) != 0) {
+            throw new IOException("git " + args[0] + " failed: " + stderr.getOutput());
+        }
+
+        return stdout.getOutput();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Checks that removed directories are renamed into the trash and deleted in
+ * the background, and that the leftovers of earlier runs are reaped.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTrashTest extends TestCase {
+
+    /** How long to wait for the background deletion, in milliseconds. */
+    private static final long TIMEOUT = 10000;
+
+    /** The directory holding the directories removed and the trash. */
+    private File directory;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/trash-test").getAbsoluteFile();
+
+        FileUtils.deleteDirectory(directory);
+
+        directory.mkdirs();
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * A removed directory is gone at once, is renamed into the given trash
+     * rather than next to it, and is deleted from the trash in the
+     * background.
+     *
+     * @throws Exception if the files cannot be written or removed.
+     */
+    public void testRemoveRenamesIntoTrash() throws Exception {
+        File user     = new File(directory, "user");
+        File checkout = new File(user, "checkout");
+        File trash    = new File(directory, "cache/" + GitSiteTrash.TRASH_DIRECTORY);
+
+        writeFiles(checkout, 50);
+
+        GitSiteTrash.remove(checkout, trash);
+
+        assertFalse(checkout.exists());
+        assertTrue(trash.isDirectory());
+        assertEquals(0, user.list().length);
+
+        assertEmptied(trash);
+    }
+
+    /**
+     * Cleaning a directory leaves it empty.
+     *
+     * @throws Exception if the files cannot be written or removed.
+     */
+    public void testCleanEmptiesDirectory() throws Exception {
+        File checkout = new File(directory, "checkout");
+
+        writeFiles(checkout, 10);
+
+        GitSiteTrash.clean(checkout);
+
+        assertTrue(checkout.isDirectory());
+        assertEquals(0, checkout.list().length);
+    }
+
+    /**
+     * The entries an earlier run left in a trash directory are deleted once
+     * it is reaped.
+     *
+     * @throws Exception if the files cannot be written.
+     */
+    public void testReapDeletesLeftovers() throws Exception {
+        File trash = new File(directory, "leftovers/" + GitSiteTrash.TRASH_DIRECTORY);
+
+        writeFiles(new File(trash, "1-1.trash"), 20);
+        writeFiles(new File(trash, "2-2.trash"), 20);
+        FileUtils.fileWrite(new File(trash, "3-3.trash").getPath(), "file\n");
+
+        GitSiteTrash.reap(trash);
+
+        assertEmptied(trash);
+    }
+
+    /**
+     * Write files into a new directory and one of its subdirectories.
+     *
+     * @param  parent the directory.
+     * @param  count  the number of files in each directory.
+     *
+     * @throws IOException if the files cannot be written.
+     */
+    private void writeFiles(File parent, int count) throws IOException {
+        File child = new File(parent, "child");
+
+        child.mkdirs();
+
+        for (int i = 0; i < count; i++) {
+            FileUtils.fileWrite(new File(parent, "file-" + i + ".html").getPath(), "<p>" + i + "</p>\n");
+            FileUtils.fileWrite(new File(child, "file-" + i + ".html").getPath(), "<p>" + i + "</p>\n");
+        }
+    }
+
+    /**
+     * Wait for the background deletion to empty a trash directory.
+     *
+     * @param  trash the trash directory.
+     *
+     * @throws InterruptedException if the wait is interrupted.
+     */
+    private void assertEmptied(File trash) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (trash.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals("entries left in " + trash, 0, trash.list().length);
+    }
+}
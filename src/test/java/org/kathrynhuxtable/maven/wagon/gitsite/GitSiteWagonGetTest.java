@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.manager.AbstractScmManager;
+import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.wagon.ResourceDoesNotExistException;
+import org.apache.maven.wagon.repository.Repository;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Checks that a site deployed to a local bare repository is read back and
+ * listed by a later connection, with the git executable and with JGit.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteWagonGetTest extends TestCase {
+
+    /** The backends checked. */
+    private static final String[] BACKENDS = { GitSiteWagon.BACKEND_GITEXE, GitSiteWagon.BACKEND_JGIT };
+
+    /** The directory holding the repositories and sites. */
+    private File directory;
+
+    /** The bare repository. */
+    private File bare;
+
+    /**
+     * Create a bare repository and deploy a site into the "a" directory of its
+     * site branch.
+     *
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/get-test").getAbsoluteFile();
+        bare      = new File(directory, "site.git");
+
+        File work = new File(directory, "work");
+        File site = new File(directory, "site");
+
+        FileUtils.deleteDirectory(directory);
+
+        bare.mkdirs();
+        work.mkdirs();
+        new File(site, "css").mkdirs();
+
+        git(bare, "init", "--bare", "-q");
+        git(work, "init", "-q");
+        git(work, "config", "user.name", "Test");
+        git(work, "config", "user.email", "test@example.com");
+        FileUtils.fileWrite(new File(work, "index.html").getPath(), "<p>index</p>\n");
+        git(work, "add", "index.html");
+        git(work, "commit", "-q", "-m", "First pages commit");
+        git(work, "push", "-q", bare.getPath(), "HEAD:refs/heads/gh-pages");
+
+        FileUtils.fileWrite(new File(site, "index.html").getPath(), "<p>a</p>\n");
+        FileUtils.fileWrite(new File(site, "css/site.css").getPath(), "p { margin: 0; }\n");
+
+        GitSiteWagon wagon = createWagon(GitSiteWagon.BACKEND_GITEXE);
+
+        wagon.putDirectory(site, ".");
+        wagon.disconnect();
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * A deployed file is read back with its content and the time of the
+     * commit that deployed it, and a missing one does not exist.
+     *
+     * @throws Exception if the site cannot be read or git fails.
+     */
+    public void testGetReadsDeployedFile() throws Exception {
+        long committed = Long.parseLong(git(bare, "log", "-1", "--format=%ct", "gh-pages").trim()) * 1000;
+
+        for (String backend : BACKENDS) {
+            GitSiteWagon wagon       = createWagon(backend);
+            File         destination = new File(directory, backend + "/site.css");
+
+            try {
+                wagon.get("css/site.css", destination);
+
+                assertEquals(backend, "p { margin: 0; }\n", FileUtils.fileRead(destination));
+                assertEquals(backend, committed, destination.lastModified());
+
+                try {
+                    wagon.get("missing.html", new File(directory, backend + "/missing.html"));
+                    fail(backend + ": got a missing file");
+                } catch (ResourceDoesNotExistException e) {
+                    // expected
+                }
+            } finally {
+                wagon.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A file is got if it was committed after the timestamp, and not if it
+     * was committed at or before it.
+     *
+     * @throws Exception if the site cannot be read or git fails.
+     */
+    public void testGetIfNewer() throws Exception {
+        long committed = Long.parseLong(git(bare, "log", "-1", "--format=%ct", "gh-pages").trim()) * 1000;
+
+        for (String backend : BACKENDS) {
+            GitSiteWagon wagon       = createWagon(backend);
+            File         destination = new File(directory, backend + "/index.html");
+
+            try {
+                assertFalse(backend, wagon.getIfNewer("index.html", destination, committed));
+                assertFalse(backend, destination.exists());
+
+                assertTrue(backend, wagon.getIfNewer("index.html", destination, committed - 1000));
+                assertEquals(backend, "<p>a</p>\n", FileUtils.fileRead(destination));
+            } finally {
+                wagon.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Files and directories of the site branch exist, and a missing path
+     * does not.
+     *
+     * @throws Exception if the site cannot be read.
+     */
+    public void testResourceExists() throws Exception {
+        for (String backend : BACKENDS) {
+            GitSiteWagon wagon = createWagon(backend);
+
+            try {
+                assertTrue(backend, wagon.resourceExists("index.html"));
+                assertTrue(backend, wagon.resourceExists("css"));
+                assertTrue(backend, wagon.resourceExists("css/site.css"));
+                assertFalse(backend, wagon.resourceExists("missing"));
+                assertFalse(backend, wagon.resourceExists("css/missing.css"));
+            } finally {
+                wagon.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A directory lists its files and subdirectories, and a missing path
+     * does not exist.
+     *
+     * @throws Exception if the site cannot be read.
+     */
+    public void testGetFileList() throws Exception {
+        for (String backend : BACKENDS) {
+            GitSiteWagon wagon = createWagon(backend);
+
+            try {
+                List<String> files = new ArrayList<String>(wagon.getFileList(""));
+
+                Collections.sort(files);
+
+                assertEquals(backend, Arrays.asList(new String[] { "css/", "index.html" }), files);
+                assertEquals(backend, Collections.singletonList("site.css"), wagon.getFileList("css"));
+
+                try {
+                    wagon.getFileList("missing");
+                    fail(backend + ": listed a missing directory");
+                } catch (ResourceDoesNotExistException e) {
+                    // expected
+                }
+            } finally {
+                wagon.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Create a wagon connected to the "a" directory of the site branch.
+     *
+     * @param  backend the backend.
+     *
+     * @return the wagon.
+     *
+     * @throws Exception if the wagon cannot connect.
+     */
+    private GitSiteWagon createWagon(String backend) throws Exception {
+        AbstractScmManager scmManager = new AbstractScmManager() {
+            protected ScmLogger getScmLogger() {
+                return new DefaultLog();
+            }
+        };
+
+        scmManager.setScmProvider("git", new GitExeScmProvider());
+
+        GitSiteWagon wagon = new GitSiteWagon();
+
+        wagon.setScmManager(scmManager);
+        wagon.setSiteBranch("gh-pages");
+        wagon.setBackend(backend);
+
+        wagon.connect(new Repository("site", "scm:git:file://" + bare.getPath() + "/a"));
+
+        return wagon;
+    }
+
+    /**
+     * Run git and return its output.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  args             the arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws CommandLineException if git cannot be run.
+     * @throws IOException          if git fails.
+     */
+    private String git(File workingDirectory, String... args) throws CommandLineException, IOException {
+        Commandline cl = new Commandline("git");
+
+        cl.setWorkingDirectory(workingDirectory.getPath());
+        cl.addArguments(args);
+
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        if (CommandLineUtils.executeCommandLine(cl, stdout, stderr) != 0) {
+            throw new IOException("git " + args[0] + " failed: " + stderr.getOutput());
+        }
+
+        return stdout.getOutput();
+    }
+}
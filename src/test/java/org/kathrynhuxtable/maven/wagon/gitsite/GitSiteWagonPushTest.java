@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.log.ScmLogger;
+import org.apache.maven.scm.manager.AbstractScmManager;
+import org.apache.maven.scm.provider.git.gitexe.GitExeScmProvider;
+import org.apache.maven.wagon.ConnectionException;
+import org.apache.maven.wagon.TransferFailedException;
+import org.apache.maven.wagon.repository.Repository;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Checks that a push rejected because the site branch moved after it was
+ * fetched is replayed onto the new tip, that a push rejected by a hook is not
+ * retried, and that nothing is pushed once a put has failed.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteWagonPushTest extends TestCase {
+
+    /** The directory holding the repositories and sites. */
+    private File directory;
+
+    /** The bare repository. */
+    private File bare;
+
+    /** The working directory of the other deploy. */
+    private File work;
+
+    /** The site. */
+    private File site;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/push-test").getAbsoluteFile();
+        bare      = new File(directory, "site.git");
+        work      = new File(directory, "work");
+        site      = new File(directory, "site");
+
+        FileUtils.deleteDirectory(directory);
+
+        bare.mkdirs();
+        work.mkdirs();
+        site.mkdirs();
+
+        git(bare, "init", "--bare", "-q");
+        git(work, "init", "-q");
+        git(work, "config", "user.name", "Test");
+        git(work, "config", "user.email", "test@example.com");
+        FileUtils.fileWrite(new File(work, "index.html").getPath(), "<p>index</p>\n");
+        git(work, "add", "index.html");
+        git(work, "commit", "-q", "-m", "First pages commit");
+        git(work, "push", "-q", bare.getPath(), "HEAD:refs/heads/gh-pages");
+
+        FileUtils.fileWrite(new File(site, "index.html").getPath(), "<p>a</p>\n");
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * The git executable replays the deploy onto a site branch that moved
+     * after it was fetched, keeping both deploys' files.
+     *
+     * @throws Exception if the deploy or git fails.
+     */
+    public void testGitExeRebasesOntoMovedBranch() throws Exception {
+        assertRebasesOntoMovedBranch(GitSiteWagon.BACKEND_GITEXE);
+    }
+
+    /**
+     * JGit replays the deploy onto a site branch that moved after it was
+     * fetched, keeping both deploys' files.
+     *
+     * @throws Exception if the deploy or git fails.
+     */
+    public void testJGitRebasesOntoMovedBranch() throws Exception {
+        assertRebasesOntoMovedBranch(GitSiteWagon.BACKEND_JGIT);
+    }
+
+    /**
+     * A push declined by a hook of the remote repository fails at once,
+     * without being retried.
+     *
+     * @throws Exception if the hook cannot be written or git fails.
+     */
+    public void testHookRejectionIsNotRetried() throws Exception {
+        File attempts = new File(directory, "attempts");
+        File hook     = new File(bare, "hooks/pre-receive");
+
+        FileUtils.fileWrite(hook.getPath(), "#!/bin/sh\necho attempt >> '" + attempts.getPath() + "'\necho denied >&2\nexit 1\n");
+        run(bare, "chmod", "+x", "hooks/pre-receive");
+
+        GitSiteWagon wagon = createWagon(GitSiteWagon.BACKEND_GITEXE);
+
+        wagon.putDirectory(site, ".");
+
+        try {
+            wagon.disconnect();
+            fail("The push was not declined");
+        } catch (ConnectionException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("pre-receive hook declined") >= 0);
+        }
+
+        assertEquals("attempt\n", FileUtils.fileRead(attempts));
+        assertEquals("1", git(bare, "rev-list", "--count", "gh-pages").trim());
+    }
+
+    /**
+     * A file of the source that cannot be read fails the scan, and so the
+     * put, and the connection's earlier puts are not pushed either.
+     *
+     * @throws Exception if the site cannot be written or git fails.
+     */
+    public void testScanFailureFailsPut() throws Exception {
+        File broken = new File(directory, "broken");
+
+        broken.mkdirs();
+        FileUtils.fileWrite(new File(broken, "index.html").getPath(), "<p>broken</p>\n");
+        run(broken, "ln", "-s", "missing.html", "dangling.html");
+
+        GitSiteWagon wagon = createWagon(GitSiteWagon.BACKEND_GITEXE);
+
+        try {
+            wagon.putDirectory(site, ".");
+
+            try {
+                wagon.putDirectory(broken, "broken");
+                fail("The scan did not fail");
+            } catch (TransferFailedException e) {
+                assertTrue(e.getMessage(), e.getMessage().indexOf("dangling.html") >= 0);
+            }
+        } finally {
+            wagon.disconnect();
+        }
+
+        assertEquals("1", git(bare, "rev-list", "--count", "gh-pages").trim());
+        assertEquals("index.html\n", git(bare, "ls-tree", "-r", "--name-only", "gh-pages"));
+    }
+
+    /**
+     * Deploy a site into a directory of the site branch, moving the site
+     * branch between the fetch and the push, and check that both deploys'
+     * files are on the site branch.
+     *
+     * @param  backend the backend.
+     *
+     * @throws Exception if the deploy or git fails.
+     */
+    private void assertRebasesOntoMovedBranch(String backend) throws Exception {
+        GitSiteWagon wagon = createWagon(backend);
+
+        wagon.putDirectory(site, ".");
+
+        git(work, "pull", "-q", bare.getPath(), "gh-pages");
+        new File(work, "b").mkdirs();
+        FileUtils.fileWrite(new File(work, "b/index.html").getPath(), "<p>b</p>\n");
+        git(work, "add", "b/index.html");
+        git(work, "commit", "-q", "-m", "Deploy b");
+        git(work, "push", "-q", bare.getPath(), "HEAD:refs/heads/gh-pages");
+
+        wagon.disconnect();
+
+        assertEquals("3", git(bare, "rev-list", "--count", "gh-pages").trim());
+        assertEquals("a/index.html\nb/index.html\nindex.html\n", git(bare, "ls-tree", "-r", "--name-only", "gh-pages"));
+        assertEquals("Deploy b\n", git(bare, "log", "-1", "--skip=1", "--format=%s", "gh-pages"));
+    }
+
+    /**
+     * Create a wagon connected to the "a" directory of the site branch.
+     *
+     * @param  backend the backend.
+     *
+     * @return the wagon.
+     *
+     * @throws Exception if the wagon cannot connect.
+     */
+    private GitSiteWagon createWagon(String backend) throws Exception {
+        AbstractScmManager scmManager = new AbstractScmManager() {
+            protected ScmLogger getScmLogger() {
+                return new DefaultLog();
+            }
+        };
+
+        scmManager.setScmProvider("git", new GitExeScmProvider());
+
+        GitSiteWagon wagon = new GitSiteWagon();
+
+        wagon.setScmManager(scmManager);
+        wagon.setSiteBranch("gh-pages");
+        wagon.setBackend(backend);
+        wagon.setCheckoutDirectory(new File(directory, "checkout"));
+
+        wagon.connect(new Repository("site", "scm:git:file://" + bare.getPath() + "/a"));
+
+        return wagon;
+    }
+
+    /**
+     * Run git and return its output.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  args             the arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws CommandLineException if git cannot be run.
+     * @throws IOException          if git fails.
+     */
+    private String git(File workingDirectory, String... args) throws CommandLineException, IOException {
+        return run(workingDirectory, "git", args);
+    }
+
+    /**
+     * Run a command and return its output.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  executable       the command.
+     * @param  args             the arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws CommandLineException if the command cannot be run.
+     * @throws IOException          if the command fails.
+     */
+    private String run(File workingDirectory, String executable, String... args) throws CommandLineException, IOException {
+        Commandline cl = new Commandline(executable);
+
+        cl.setWorkingDirectory(workingDirectory.getPath());
+        cl.addArguments(args);
+
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        if (CommandLineUtils.executeCommandLine(cl, stdout, stderr) != 0) {
+            throw new IOException(executable + " " + args[0] + " failed: " + stderr.getOutput());
+        }
+
+        return stdout.getOutput();
+    }
+}
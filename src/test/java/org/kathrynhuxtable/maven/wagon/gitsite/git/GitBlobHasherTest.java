@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Checks the blob ids computed in-process against "git hash-object".
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitBlobHasherTest extends TestCase {
+
+    /** The file lengths checked: empty, small, around the buffer size and large. */
+    private static final long[] LENGTHS = {
+        0, 1, 100, GitBlobHasher.BUFFER_SIZE - 1, GitBlobHasher.BUFFER_SIZE, GitBlobHasher.BUFFER_SIZE + 1,
+        1024 * 1024, 1024 * 1024 + 1, 5 * 1024 * 1024 + 17,
+    };
+
+    /** The directory holding the files. */
+    private File directory;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/hasher-test").getAbsoluteFile();
+
+        FileUtils.deleteDirectory(directory);
+
+        directory.mkdirs();
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * One hasher computes the same ids as git for files of every length.
+     *
+     * @throws Exception if a file cannot be written or git fails.
+     */
+    public void testMatchesGitHashObject() throws Exception {
+        GitBlobHasher hasher = new GitBlobHasher();
+        Random        random = new Random(42);
+
+        for (int i = 0; i < LENGTHS.length; i++) {
+            File file = new File(directory, "file-" + LENGTHS[i]);
+
+            writeFile(file, random, LENGTHS[i]);
+
+            assertEquals("blob id of " + LENGTHS[i] + " bytes", gitHashObject(file), hasher.hash(file));
+        }
+    }
+
+    /**
+     * Hashing a large file leaves it free to be deleted and replaced.
+     *
+     * @throws Exception if a file cannot be written or git fails.
+     */
+    public void testLargeFileIsReleased() throws Exception {
+        GitBlobHasher hasher = new GitBlobHasher();
+        Random        random = new Random(7);
+        File          file   = new File(directory, "large");
+
+        writeFile(file, random, 2 * 1024 * 1024);
+        hasher.hash(file);
+
+        assertTrue("Unable to delete " + file, file.delete());
+
+        writeFile(file, random, 2 * 1024 * 1024);
+
+        assertEquals(gitHashObject(file), hasher.hash(file));
+    }
+
+    /**
+     * Write a file of random bytes.
+     *
+     * @param  file   the file.
+     * @param  random the source of the bytes.
+     * @param  length the length of the file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeFile(File file, Random random, long length) throws IOException {
+        byte[]           block = new byte[8192];
+        FileOutputStream out   = new FileOutputStream(file);
+
+        try {
+            for (long written = 0; written < length; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, length - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Compute the blob id of a file with "git hash-object".
+     *
+     * @param  file the file.
+     *
+     * @return the blob id.
+     *
+     * @throws CommandLineException if git cannot be run.
+     * @throws IOException          if git fails.
+     */
+    private String gitHashObject(File file) throws CommandLineException, IOException {
+        Commandline cl = new Commandline("git");
+
+        cl.setWorkingDirectory(directory.getPath());
+        cl.createArg().setValue("hash-object");
+        cl.createArg().setValue("--no-filters");
+        cl.createArg().setValue(file.getName());
+
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        if (CommandLineUtils.executeCommandLine(cl, stdout, stderr) != 0) {
+            throw new IOException("git hash-object failed: " + stderr.getOutput());
+        }
+
+        return stdout.getOutput().trim();
+    }
+}
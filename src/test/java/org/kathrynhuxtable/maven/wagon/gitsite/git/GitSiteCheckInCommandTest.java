@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.maven.scm.CommandParameter;
+import org.apache.maven.scm.CommandParameters;
+import org.apache.maven.scm.ScmBranch;
+import org.apache.maven.scm.ScmFile;
+import org.apache.maven.scm.ScmFileSet;
+import org.apache.maven.scm.ScmResult;
+import org.apache.maven.scm.command.checkin.CheckInScmResult;
+import org.apache.maven.scm.log.DefaultLog;
+import org.apache.maven.scm.provider.git.repository.GitScmProviderRepository;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.CommandLineUtils;
+import org.codehaus.plexus.util.cli.Commandline;
+
+/**
+ * Checks that the files of a file set are committed and reported. The time
+ * taken to commit and push a large site is measured by the CheckInBenchmark
+ * of the benchmarks module.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteCheckInCommandTest extends TestCase {
+
+    /** The directory holding the repositories. */
+    private File directory;
+
+    /** The bare repository. */
+    private File bare;
+
+    /** The working directory. */
+    private File work;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        directory = new File(System.getProperty("basedir", "."), "target/checkin-test").getAbsoluteFile();
+        bare      = new File(directory, "site.git");
+        work      = new File(directory, "work");
+
+        FileUtils.deleteDirectory(directory);
+
+        bare.mkdirs();
+        work.mkdirs();
+
+        git(bare, "init", "--bare", "-q");
+        git(work, "init", "-q");
+        git(work, "config", "user.name", "Test");
+        git(work, "config", "user.email", "test@example.com");
+        git(work, "remote", "add", "origin", bare.getPath());
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Commit the files of a file set, among them a new file whose path has a
+     * space, and report them as checked in, leaving other changes
+     * uncommitted.
+     *
+     * @throws Exception if the files cannot be written or git fails.
+     */
+    public void testCommitReportsCheckedInFiles() throws Exception {
+        FileUtils.fileWrite(new File(work, "index.html").getPath(), "<p>index</p>\n");
+        FileUtils.fileWrite(new File(work, "other.html").getPath(), "<p>other</p>\n");
+        git(work, "add", "index.html", "other.html");
+        git(work, "commit", "-q", "-m", "First pages commit");
+
+        new File(work, "dir").mkdirs();
+        FileUtils.fileWrite(new File(work, "index.html").getPath(), "<p>changed</p>\n");
+        FileUtils.fileWrite(new File(work, "other.html").getPath(), "<p>changed</p>\n");
+        FileUtils.fileWrite(new File(work, "dir/new page.html").getPath(), "<p>new</p>\n");
+
+        List<File> files = new ArrayList<File>();
+
+        files.add(new File("index.html"));
+        files.add(new File("dir", "new page.html"));
+
+        CommandParameters parameters = new CommandParameters();
+
+        parameters.setScmVersion(CommandParameter.SCM_VERSION, new ScmBranch("gh-pages"));
+        parameters.setString(CommandParameter.MESSAGE, "Deploy 2 files");
+
+        GitSiteCheckInCommand checkIn = new GitSiteCheckInCommand();
+
+        checkIn.setLogger(new DefaultLog());
+
+        CheckInScmResult result = (CheckInScmResult) checkIn.execute(new GitScmProviderRepository(bare.toURI().toString()),
+                                                                     new ScmFileSet(work, files), parameters);
+
+        assertSuccess(result);
+
+        List<String> checkedIn = new ArrayList<String>();
+
+        for (Object file : result.getCheckedInFiles()) {
+            checkedIn.add(((ScmFile) file).getPath());
+        }
+
+        Collections.sort(checkedIn);
+
+        assertEquals(Arrays.asList(new String[] { "dir/new page.html", "index.html" }), checkedIn);
+        assertEquals("dir/new page.html\nindex.html\n", git(work, "diff", "--name-only", "HEAD~1", "HEAD"));
+        assertEquals(" M other.html\n", git(work, "status", "--porcelain", "--untracked-files=no"));
+    }
+
+    /**
+     * Fail unless a command succeeded.
+     *
+     * @param result the command's result.
+     */
+    private void assertSuccess(ScmResult result) {
+        assertTrue(result.getProviderMessage() + " " + result.getCommandOutput(), result.isSuccess());
+    }
+
+    /**
+     * Run git and return its output.
+     *
+     * @param  workingDirectory the working directory.
+     * @param  args             the arguments.
+     *
+     * @return the standard output.
+     *
+     * @throws CommandLineException if git cannot be run.
+     * @throws IOException          if git fails.
+     */
+    private String git(File workingDirectory, String... args) throws CommandLineException, IOException {
+        Commandline cl = new Commandline("git");
+
+        cl.setWorkingDirectory(workingDirectory.getPath());
+        cl.addArguments(args);
+
+        CommandLineUtils.StringStreamConsumer stdout = new CommandLineUtils.StringStreamConsumer();
+        CommandLineUtils.StringStreamConsumer stderr = new CommandLineUtils.StringStreamConsumer();
+
+        if (CommandLineUtils.executeCommandLine(cl, stdout, stderr) != 0) {
+            throw new IOException("git " + args[0] + " failed: " + stderr.getOutput());
+        }
+
+        return stdout.getOutput();
+    }
+}
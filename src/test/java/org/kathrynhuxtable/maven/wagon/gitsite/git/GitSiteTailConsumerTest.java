@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that only the last lines of the output are kept.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTailConsumerTest extends TestCase {
+
+    /**
+     * Output shorter than the tail is kept whole.
+     */
+    public void testShortOutputIsKept() {
+        GitSiteTailConsumer consumer = new GitSiteTailConsumer(3);
+
+        consumer.consumeLine("one");
+        consumer.consumeLine("two");
+
+        assertEquals(2, consumer.getLineCount());
+        assertEquals("one\ntwo\n", consumer.getOutput());
+    }
+
+    /**
+     * Output longer than the tail keeps the last lines, after a count of
+     * those dropped.
+     */
+    public void testLongOutputKeepsTail() {
+        GitSiteTailConsumer consumer = new GitSiteTailConsumer(3);
+
+        for (int i = 1; i <= 250; i++) {
+            consumer.consumeLine("line " + i);
+        }
+
+        assertEquals(250, consumer.getLineCount());
+        assertEquals("[247 lines omitted]\nline 248\nline 249\nline 250\n", consumer.getOutput());
+    }
+
+    /**
+     * A long line is truncated.
+     */
+    public void testLongLineIsTruncated() {
+        GitSiteTailConsumer consumer = new GitSiteTailConsumer();
+        StringBuilder       line     = new StringBuilder();
+
+        for (int i = 0; i < GitSiteTailConsumer.MAX_LINE_LENGTH * 2; i++) {
+            line.append('x');
+        }
+
+        consumer.consumeLine(line.toString());
+
+        assertEquals(line.substring(0, GitSiteTailConsumer.MAX_LINE_LENGTH) + "...\n", consumer.getOutput());
+    }
+}
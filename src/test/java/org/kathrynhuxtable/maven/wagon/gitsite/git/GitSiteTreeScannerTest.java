@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010 Kathryn Huxtable
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kathrynhuxtable.maven.wagon.gitsite.git;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Checks that the parallel and single-threaded scans of a synthetic site
+ * produce the same tree.
+ *
+ * @author Kathryn Huxtable
+ */
+public class GitSiteTreeScannerTest extends TestCase {
+
+    /** The synthetic site. */
+    private File site;
+
+    /**
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        site = new File(System.getProperty("basedir", "."), "target/scanner-test/site");
+
+        FileUtils.deleteDirectory(site);
+
+        Random random = new Random(42);
+
+        // Enough files in one directory to be hashed in several chunks.
+        for (int i = 0; i < GitSiteTreeScanner.CHUNK_SIZE * 3 + 5; i++) {
+            writeFile(new File(site, "apidocs/class-" + i + ".html"), random, random.nextInt(4096));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 10; j++) {
+                writeFile(new File(site, "module-" + i + "/sub-" + j + "/page-" + j + ".html"), random, random.nextInt(512));
+            }
+        }
+
+        writeFile(new File(site, "index.html"), random, 100);
+        writeFile(new File(site, "empty.txt"), random, 0);
+        writeFile(new File(site, "images/large.png"), random, 200000);
+        writeFile(new File(site, ".git/HEAD"), random, 10);
+        writeFile(new File(site, "css/.git"), random, 10);
+    }
+
+    /**
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(site.getParentFile());
+    }
+
+    /**
+     * The parallel scan finds the same paths, blob ids and lengths as the
+     * single-threaded one.
+     *
+     * @throws IOException if the site cannot be scanned.
+     */
+    public void testParallelScanMatchesSingleThreaded() throws IOException {
+        List<GitSiteTreeScanner.Entry> expected = new GitSiteTreeScanner(1, ".git").scan(site);
+
+        assertEquals(GitSiteTreeScanner.CHUNK_SIZE * 3 + 5 + 200 + 3, expected.size());
+
+        for (int parallelism = 2; parallelism <= 8; parallelism *= 2) {
+            for (int run = 0; run < 3; run++) {
+                List<GitSiteTreeScanner.Entry> actual = new GitSiteTreeScanner(parallelism, ".git").scan(site);
+
+                assertEquals("entries with parallelism " + parallelism, expected.size(), actual.size());
+
+                for (int i = 0; i < expected.size(); i++) {
+                    GitSiteTreeScanner.Entry e = expected.get(i);
+                    GitSiteTreeScanner.Entry a = actual.get(i);
+
+                    assertEquals("path with parallelism " + parallelism, e.getPath(), a.getPath());
+                    assertEquals("blob id of " + e.getPath(), e.getBlobId(), a.getBlobId());
+                    assertEquals("length of " + e.getPath(), e.getLength(), a.getLength());
+                    assertEquals("file of " + e.getPath(), e.getFile(), a.getFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * The scan skips the reserved name and sorts the entries by path.
+     *
+     * @throws IOException if the site cannot be scanned.
+     */
+    public void testScanSkipsReservedNameAndSorts() throws IOException {
+        List<GitSiteTreeScanner.Entry> entries = new GitSiteTreeScanner(4, ".git").scan(site);
+
+        String previous = null;
+
+        for (GitSiteTreeScanner.Entry entry : entries) {
+            assertFalse(entry.getPath(), entry.getPath().startsWith(".git/"));
+            assertFalse(entry.getPath(), entry.getPath().endsWith("/.git"));
+
+            if (previous != null) {
+                assertTrue(previous + " before " + entry.getPath(), previous.compareTo(entry.getPath()) < 0);
+            }
+
+            previous = entry.getPath();
+        }
+    }
+
+    /**
+     * Write a file of random bytes, creating its directory.
+     *
+     * @param  file   the file.
+     * @param  random the source of the bytes.
+     * @param  length the length of the file.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    private void writeFile(File file, Random random, int length) throws IOException {
+        file.getParentFile().mkdirs();
+
+        byte[] content = new byte[length];
+
+        random.nextBytes(content);
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+}